@@ -0,0 +1,78 @@
+package se.axelhjelmqvist.blocksgame;
+
+/**
+ * A bot that plays the game. When a new shape appears it searches every
+ * rotation and column for the shape, rates where it would land with a
+ * LinearHeuristic, and then plays the best one through the engine, by
+ * rotating and moving the shape and holding the drop button.
+ */
+public class AutoPlayer
+        implements MovePolicy {
+    private PlacementSearch search;
+
+    private int lastShape;
+
+    /**
+     * Constructor of a bot that plays on a board of the given size and rates
+     * the places with the given heuristic.
+     */
+    public AutoPlayer(int sizeX, int sizeY, LinearHeuristic heuristic) {
+        search = new PlacementSearch(sizeX, sizeY, heuristic);
+        lastShape = -1;
+    }
+
+    /**
+     * Returns a factory of bots that play on a board of the given size with
+     * a heuristic of the given weights.
+     */
+    public static MovePolicy.Factory factory(final int sizeX, final int sizeY, final double[] weights) {
+        final double[] copy = weights.clone();
+        return new MovePolicy.Factory() {
+            public MovePolicy create(long seed) {
+                return new AutoPlayer(sizeX, sizeY, new LinearHeuristic(copy));
+            }
+        };
+    }
+
+    /**
+     * Returns the search, for instance to read how many places it has rated.
+     */
+    public PlacementSearch getSearch() {
+        return search;
+    }
+
+    public void act(BlocksgameEngine engine) {
+        if (engine.shapeCount == lastShape) {
+            return;
+        }
+        lastShape = engine.shapeCount;
+        Shape shape = engine.shape;
+        engine.fastDrop(false);
+        if (search.search(engine.rows, shape.type, shape.orientation, shape.x, shape.y)) {
+            play(engine, search.bestRotations, search.bestX);
+        }
+        engine.fastDrop(true);
+    }
+
+    /**
+     * Rotates the shape in play the given number of times and then moves it
+     * sideways to the given position, through the engine like a player does.
+     */
+    static void play(BlocksgameEngine engine, int rotations, int targetX) {
+        Shape shape = engine.shape;
+        for (int i = 0; i < rotations; ++i) {
+            engine.rotateTile();
+        }
+        int lastX = Integer.MIN_VALUE;
+        while (shape.x != targetX && shape.x != lastX) {
+            lastX = shape.x;
+            if (shape.x < targetX) {
+                engine.moveRight(true);
+                engine.moveRight(false);
+            } else {
+                engine.moveLeft(true);
+                engine.moveLeft(false);
+            }
+        }
+    }
+}
@@ -0,0 +1,413 @@
+package se.axelhjelmqvist.blocksgame;
+
+/**
+ * A bot that looks ahead. It places the shape in play and then the shape in
+ * the preview box on copies of the board, keeps the best boards of every
+ * depth (the beam) and plays the first move of the best board of the last
+ * depth. The boards of a depth are expanded in parallel by a number of
+ * worker threads, which live as long as the bot and are woken for every
+ * depth, so no tasks or futures are created while searching. The search
+ * stops when its time budget runs out, and then plays the best move found
+ * so far, so it can be used within a frame of the game. Only the shape in
+ * play and the preview are known, so the search is at most two shapes deep.
+ */
+public class BeamSearchPlayer
+        implements MovePolicy {
+    /**
+     * The largest depth that can be searched, the shape in play and the preview.
+     */
+    public final static int MAX_DEPTH = 2;
+
+    final int sizeX, sizeY, wallRow, rowsLength;
+
+    final int beamWidth, depth, threads;
+
+    final long budgetNanos;
+
+    /**
+     * The beam: the boards, the lines completed on the way to them and the
+     * first move that leads to them.
+     */
+    final int[] beamBoards;
+
+    final int[] beamLines, beamFirst;
+
+    int beamSize;
+
+    final int[] nextBoards, scratch;
+
+    final int[] nextLines, nextFirst;
+
+    final Worker[] workers;
+
+    /**
+     * Guards round, pending and stopped. The calling thread runs the first
+     * worker, and each of the others has a thread that runs it once for
+     * every round.
+     */
+    final Object lock;
+
+    int round, pending;
+
+    boolean stopped;
+
+    /**
+     * Indices of the best candidates, as a heap with the lowest rating first.
+     */
+    final int[] heapWorker, heapIndex;
+
+    final double[] heapValue;
+
+    int heapSize;
+
+    long deadline;
+
+    volatile boolean timedOut;
+
+    private int lastShape;
+
+    /**
+     * The number of boards that have been rated and the time that was spent searching.
+     */
+    public long nodes, searchNanos;
+
+    /**
+     * The number of searches that ran out of time.
+     */
+    public int timeouts;
+
+    /**
+     * Constructor. The bot keeps beamWidth boards of every depth, searches depth
+     * shapes ahead (one or two), spends at most budgetNanos nanoseconds on a move
+     * and expands the boards on the given number of threads.
+     */
+    public BeamSearchPlayer(int sizeX, int sizeY, double[] weights, int beamWidth, int depth, long budgetNanos, int threads) {
+        if (beamWidth < 1 || depth < 1 || threads < 1) {
+            throw new IllegalArgumentException("The beam width, depth and number of threads must be positive");
+        }
+        this.sizeX = sizeX;
+        this.sizeY = sizeY;
+        this.beamWidth = beamWidth;
+        this.depth = Math.min(depth, MAX_DEPTH);
+        this.budgetNanos = budgetNanos;
+        this.threads = threads;
+        wallRow = BoardTool.getWallRow(sizeX);
+        rowsLength = sizeY + 2 * BlocksgameEngine.ROW_PADDING;
+        beamBoards = new int[beamWidth * rowsLength];
+        beamLines = new int[beamWidth];
+        beamFirst = new int[beamWidth];
+        nextBoards = new int[beamWidth * rowsLength];
+        scratch = new int[rowsLength];
+        nextLines = new int[beamWidth];
+        nextFirst = new int[beamWidth];
+        heapWorker = new int[beamWidth];
+        heapIndex = new int[beamWidth];
+        heapValue = new double[beamWidth];
+        workers = new Worker[threads];
+        for (int i = 0; i < threads; ++i) {
+            workers[i] = new Worker(new LinearHeuristic(weights), (beamWidth / threads + 1) * PlacementSearch.MAX_PLACEMENTS);
+        }
+        lock = new Object();
+        round = pending = 0;
+        stopped = false;
+        for (int i = 1; i < threads; ++i) {
+            final Worker worker = workers[i];
+            Thread thread = new Thread(new Runnable() {
+                public void run() {
+                    serve(worker);
+                }
+            }, "beam-search");
+            thread.setDaemon(true);
+            thread.start();
+        }
+        lastShape = -1;
+    }
+
+    /**
+     * Stops the worker threads. The bot can not be used after this.
+     */
+    public void shutdown() {
+        synchronized (lock) {
+            stopped = true;
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * The loop of the thread of a worker, which runs the worker once for
+     * every round until the bot is shut down.
+     */
+    private void serve(Worker worker) {
+        int served = 0;
+        while (true) {
+            synchronized (lock) {
+                while (round == served && !stopped) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException ie) {
+                        return;
+                    }
+                }
+                if (stopped) {
+                    return;
+                }
+                served = round;
+            }
+            worker.run();
+            synchronized (lock) {
+                if (--pending == 0) {
+                    lock.notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the number of boards that were rated per second of searching.
+     */
+    public double getNodesPerSecond() {
+        return searchNanos == 0 ? 0.0 : nodes * 1e9 / searchNanos;
+    }
+
+    public void act(BlocksgameEngine engine) {
+        if (engine.shapeCount == lastShape) {
+            return;
+        }
+        lastShape = engine.shapeCount;
+        engine.fastDrop(false);
+        int move = search(engine);
+        if (move != -1) {
+            AutoPlayer.play(engine, PlacementSearch.getRotations(move), PlacementSearch.getX(move));
+        }
+        engine.fastDrop(true);
+    }
+
+    /**
+     * Searches for the best move of the shape in play of the engine. Returns
+     * the move encoded as by PlacementSearch, or -1 if there is none.
+     */
+    public int search(BlocksgameEngine engine) {
+        long start = System.nanoTime();
+        deadline = start + budgetNanos;
+        timedOut = false;
+        System.arraycopy(engine.rows, 0, beamBoards, 0, rowsLength);
+        beamSize = 1;
+        beamLines[0] = 0;
+        beamFirst[0] = -1;
+        int best = -1;
+        for (int level = 0; level < depth && !timedOut; ++level) {
+            Shape shape = (level == 0) ? engine.shape : engine.nextShape;
+            int x = (level == 0) ? shape.x : (sizeX / 2) - 1;
+            int y = (level == 0) ? shape.y : BlocksgameEngine.SPAWN_Y;
+            expand(level, shape.type, shape.orientation, x, y);
+            if (heapSize == 0) {
+                // Every board of this depth loses, keep the move of the previous depth
+                break;
+            }
+            keepBest(shape.type);
+            best = beamFirst[0];
+        }
+        searchNanos += System.nanoTime() - start;
+        if (timedOut) {
+            ++timeouts;
+        }
+        return best;
+    }
+
+    /**
+     * Expands every board of the beam with every place of the given shape,
+     * splitting the boards between the workers, and collects the best
+     * candidates in the heap.
+     */
+    private void expand(int level, int type, int orientation, int x, int y) {
+        int perWorker = (beamSize + threads - 1) / threads;
+        for (int i = 0; i < threads; ++i) {
+            Worker worker = workers[i];
+            worker.set(level, type, orientation, x, y, Math.min(beamSize, i * perWorker), Math.min(beamSize, (i + 1) * perWorker));
+        }
+        if (threads == 1 || beamSize == 1) {
+            for (int i = 0; i < threads; ++i) {
+                workers[i].run();
+            }
+        } else {
+            synchronized (lock) {
+                pending = threads - 1;
+                ++round;
+                lock.notifyAll();
+            }
+            workers[0].run();
+            boolean interrupted = false;
+            synchronized (lock) {
+                // The workers write to their own arrays, which are read
+                // below, so they are waited for even when interrupted
+                while (pending != 0) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException ie) {
+                        interrupted = true;
+                        timedOut = true;
+                    }
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        heapSize = 0;
+        for (int i = 0; i < threads; ++i) {
+            Worker worker = workers[i];
+            nodes += worker.count;
+            for (int j = 0; j < worker.count; ++j) {
+                offer(i, j, worker.values[j]);
+            }
+        }
+    }
+
+    /**
+     * Offers a candidate to the heap of the best candidates.
+     */
+    private void offer(int worker, int index, double value) {
+        if (value == Double.NEGATIVE_INFINITY) {
+            return;
+        }
+        if (heapSize < beamWidth) {
+            int i = heapSize++;
+            // Sift up
+            while (i > 0 && heapValue[(i - 1) / 2] > value) {
+                moveHeapEntry((i - 1) / 2, i);
+                i = (i - 1) / 2;
+            }
+            setHeapEntry(i, worker, index, value);
+        } else if (value > heapValue[0]) {
+            int i = 0;
+            // Sift down from the root, which is replaced
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= heapSize) {
+                    break;
+                }
+                if (child + 1 < heapSize && heapValue[child + 1] < heapValue[child]) {
+                    ++child;
+                }
+                if (heapValue[child] >= value) {
+                    break;
+                }
+                moveHeapEntry(child, i);
+                i = child;
+            }
+            setHeapEntry(i, worker, index, value);
+        }
+    }
+
+    private void moveHeapEntry(int from, int to) {
+        setHeapEntry(to, heapWorker[from], heapIndex[from], heapValue[from]);
+    }
+
+    private void setHeapEntry(int i, int worker, int index, double value) {
+        heapWorker[i] = worker;
+        heapIndex[i] = index;
+        heapValue[i] = value;
+    }
+
+    /**
+     * Builds the boards of the best candidates and makes them the beam, with
+     * the best board first.
+     */
+    private void keepBest(int type) {
+        int bestEntry = 0;
+        for (int i = 1; i < heapSize; ++i) {
+            if (heapValue[i] > heapValue[bestEntry]) {
+                bestEntry = i;
+            }
+        }
+        for (int i = 0; i < heapSize; ++i) {
+            // The best board goes first, the one that was there takes its place
+            int entry = (i == 0) ? bestEntry : (i == bestEntry ? 0 : i);
+            Worker worker = workers[heapWorker[entry]];
+            int candidate = heapIndex[entry];
+            int parent = worker.parents[candidate];
+            int placement = worker.placements[candidate];
+            System.arraycopy(beamBoards, parent * rowsLength, scratch, 0, rowsLength);
+            int orientation = PlacementSearch.getOrientation(placement, worker.orientation);
+            BoardTool.insert(scratch, sizeY, type, orientation, PlacementSearch.getX(placement), PlacementSearch.getY(placement));
+            nextLines[i] = beamLines[parent] + BoardTool.clearFullRows(scratch, sizeY, wallRow);
+            System.arraycopy(scratch, 0, nextBoards, i * rowsLength, rowsLength);
+            nextFirst[i] = (beamFirst[parent] == -1) ? placement : beamFirst[parent];
+        }
+        System.arraycopy(nextBoards, 0, beamBoards, 0, heapSize * rowsLength);
+        System.arraycopy(nextLines, 0, beamLines, 0, heapSize);
+        System.arraycopy(nextFirst, 0, beamFirst, 0, heapSize);
+        beamSize = heapSize;
+    }
+
+    /**
+     * Expands a part of the boards of the beam. Every worker has its own
+     * scratch board and heuristic, and writes its candidates to its own arrays.
+     */
+    private class Worker
+            implements Runnable {
+        final LinearHeuristic heuristic;
+
+        final PlacementSearch search;
+
+        final int[] scratch, found;
+
+        final int[] parents, placements;
+
+        final double[] values;
+
+        int count;
+
+        int level, type, orientation, x, y, from, to;
+
+        Worker(LinearHeuristic heuristic, int capacity) {
+            this.heuristic = heuristic;
+            search = new PlacementSearch(sizeX, sizeY, heuristic);
+            scratch = new int[rowsLength];
+            found = new int[PlacementSearch.MAX_PLACEMENTS];
+            parents = new int[capacity];
+            placements = new int[capacity];
+            values = new double[capacity];
+        }
+
+        void set(int level, int type, int orientation, int x, int y, int from, int to) {
+            this.level = level;
+            this.type = type;
+            this.orientation = orientation;
+            this.x = x;
+            this.y = y;
+            this.from = from;
+            this.to = to;
+            count = 0;
+        }
+
+        public void run() {
+            for (int parent = from; parent < to; ++parent) {
+                if (System.nanoTime() > deadline) {
+                    timedOut = true;
+                    return;
+                }
+                System.arraycopy(beamBoards, parent * rowsLength, scratch, 0, rowsLength);
+                if (BoardTool.collides(scratch, type, orientation, x, y)) {
+                    // The shape can not even appear on this board
+                    continue;
+                }
+                int placementsCount = search.collectPlacements(scratch, type, orientation, x, y, found);
+                for (int i = 0; i < placementsCount; ++i) {
+                    int placement = found[i];
+                    System.arraycopy(beamBoards, parent * rowsLength, scratch, 0, rowsLength);
+                    double value = Double.NEGATIVE_INFINITY;
+                    if (BoardTool.insert(scratch, sizeY, type, PlacementSearch.getOrientation(placement, orientation),
+                            PlacementSearch.getX(placement), PlacementSearch.getY(placement))) {
+                        int lines = beamLines[parent] + BoardTool.clearFullRows(scratch, sizeY, wallRow);
+                        value = heuristic.evaluate(scratch, sizeX, sizeY, lines);
+                    }
+                    parents[count] = parent;
+                    placements[count] = placement;
+                    values[count] = value;
+                    ++count;
+                }
+            }
+        }
+    }
+}
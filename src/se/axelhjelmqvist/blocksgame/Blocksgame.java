@@ -12,11 +12,11 @@ import android.content.Context;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.Canvas;
 import android.graphics.Bitmap;
-import android.graphics.Rect;
 import android.view.View;
 import android.view.MotionEvent;
-
-import java.util.Random;
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
 
 /**
  * Class that is responsible for the gameloop and its timing. This class
@@ -27,14 +27,54 @@ import java.util.Random;
  */
 public class Blocksgame
         implements View.OnTouchListener {
-    private static Random rand = new Random();
+    /**
+     * The most ticks that a frame runs to catch up, the rest are skipped.
+     */
+    final static int MAX_TICKS_PER_FRAME = 5;
+
+    /**
+     * The number of best results that are kept on disk.
+     */
+    final static int SCORE_STORE_CAPACITY = 10;
+
+    /**
+     * The outbox of the results that have not been sent to the leaderboard.
+     */
+    final static String LEADERBOARD_OUTBOX = "leaderboard";
 
     public static float GAME_WIDTH, GAME_HEIGHT;
 
     private Bitmap bg, tile;
 
+    private CanvasRenderer renderer;
+
     private BlocksgameEngine blocksgameEngine;
 
+    private BoardPainter boardPainter;
+
+    private ReplayRecorder replayRecorder;
+
+    private ScoreStore scoreStore;
+
+    private LeaderboardClient leaderboardClient;
+
+    /**
+     * Set by the thread that opened the store and the client, once they can
+     * be attached to the engine by the game thread.
+     */
+    private volatile boolean storesOpened;
+
+    private boolean storesAttached;
+
+    /**
+     * The thread that opens or closes the stores of the last game. Both use
+     * the same files, so the stores of a game are opened after those of the
+     * previous game have been closed.
+     */
+    private static Thread storeThread = null;
+
+    private LockstepSession versusSession;
+
     private int buttonLeft, buttonRight, buttonRotate, buttonDown;
 
     private int buttonPause, buttonSound, buttonToggleScore;
@@ -43,14 +83,19 @@ public class Blocksgame
 
     private Timer timer;
 
-    /**
-     * Globally accessible function that will return a random integer within the
-     * given range.
-     * @return
-     */
-    public static int getRand(int min, int max) {
-        return min + rand.nextInt(max - min);
-    }
+    private GameLoop loop;
+
+    private LatencyTracer latencyTracer;
+
+    private boolean latencyOverlay;
+
+    private FrameProfiler frameProfiler;
+
+    private boolean profileOverlay;
+
+    private long reportedTicks, reportedLateTicks, reportedSkippedTicks, reportedOverBudgetFrames;
+
+    private long reportedTouchCount;
 
     /**
      * Constructor. Responsible for constructing the Input object, the Timer object
@@ -62,6 +107,13 @@ public class Blocksgame
         GAME_HEIGHT = gameHeight;
         input = new Input();
         timer = new Timer();
+        loop = new GameLoop(BlocksgameEngine.TICK_NANOS, MAX_TICKS_PER_FRAME);
+        latencyTracer = new LatencyTracer();
+        latencyOverlay = false;
+        frameProfiler = new FrameProfiler();
+        profileOverlay = false;
+        reportedTicks = reportedLateTicks = reportedSkippedTicks = reportedOverBudgetFrames = 0;
+        reportedTouchCount = 0;
         buttonRotate = input.addButton(0, 0.0625f * GAME_HEIGHT, GAME_WIDTH, 0.3125f * GAME_HEIGHT);
         buttonLeft = input.addButton(0, 0.375f * GAME_HEIGHT, 0.5f * GAME_WIDTH, 0.375f * GAME_HEIGHT);
         buttonRight = input.addButton(0.5f * GAME_WIDTH, 0.375f * GAME_HEIGHT, 0.5f * GAME_WIDTH, 0.375f * GAME_HEIGHT);
@@ -90,26 +142,132 @@ public class Blocksgame
             offset = (i - 1) * 3;
             canvas.drawARGB(63, colors[offset + 0], colors[offset + 1], colors[offset + 2]);
         }
-        blocksgameEngine = new BlocksgameEngine(10, 20, sprites);
+        long seed = System.nanoTime();
+        blocksgameEngine = new BlocksgameEngine(10, 20, seed);
+        replayRecorder = new ReplayRecorder(seed, 10, 20, false, ReplayRecorder.GAME_CAPACITY);
+        blocksgameEngine.setRecorder(replayRecorder);
+        blocksgameEngine.addListener(SoundPlayer.getInstance());
+        openStores(context.getFilesDir(), context.getString(R.string.leaderboard_url));
+        renderer = new CanvasRenderer(bg, sprites, (int)GAME_WIDTH, (int)GAME_HEIGHT);
+        boardPainter = new BoardPainter(blocksgameEngine, renderer, GAME_WIDTH, GAME_HEIGHT);
+    }
+
+    /**
+     * Opens the store of the best results, and the leaderboard client if a
+     * server is given, on a thread of their own, since they read and sync
+     * files. They are attached to the engine by update when they are open.
+     */
+    private void openStores(final File directory, final String server) {
+        synchronized (Blocksgame.class) {
+            final Thread previous = storeThread;
+            storeThread = new Thread(new Runnable() {
+                public void run() {
+                    join(previous);
+                    try {
+                        scoreStore = new ScoreStore(new File(directory, "scores"), SCORE_STORE_CAPACITY);
+                    } catch (IOException e) {
+                        LogTool.printError("Could not open the score store: " + e);
+                    }
+                    if (server.length() > 0) {
+                        try {
+                            leaderboardClient = new LeaderboardClient(new URL(server),
+                                    new File(directory, LEADERBOARD_OUTBOX));
+                        } catch (IOException e) {
+                            LogTool.printError("Could not start the leaderboard client: " + e);
+                        }
+                    }
+                    storesOpened = true;
+                }
+            }, "OpenStores");
+            storeThread.start();
+        }
+    }
+
+    /**
+     * Adds the store and the client to the listeners of the engine, once
+     * they have been opened.
+     */
+    private void attachStores() {
+        if (storesAttached || !storesOpened) {
+            return;
+        }
+        storesAttached = true;
+        if (scoreStore != null) {
+            blocksgameEngine.addListener(scoreStore);
+            blocksgameEngine.score.currentTopScore = Math.max(blocksgameEngine.score.currentTopScore,
+                    scoreStore.getScore(0));
+        }
+        if (leaderboardClient != null) {
+            blocksgameEngine.addListener(leaderboardClient);
+        }
+    }
+
+    /**
+     * Closes the store of the best results and the leaderboard client, on a
+     * thread of their own, after the results that have been submitted are
+     * written. This is called when the activity is destroyed, the game must
+     * not be updated after it.
+     */
+    public void close() {
+        synchronized (Blocksgame.class) {
+            final Thread previous = storeThread;
+            storeThread = new Thread(new Runnable() {
+                public void run() {
+                    // Joining the thread that opened them makes its fields
+                    // visible here
+                    join(previous);
+                    try {
+                        if (scoreStore != null) {
+                            scoreStore.close();
+                        }
+                        if (leaderboardClient != null) {
+                            leaderboardClient.close();
+                        }
+                    } catch (InterruptedException e) {
+                        LogTool.printError("Interrupted while closing the stores");
+                    }
+                }
+            }, "CloseStores");
+            storeThread.start();
+        }
+    }
+
+    private static void join(Thread thread) {
+        if (thread == null) {
+            return;
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
     }
 
     /**
      * Update method that accepts and routes the game input and handles the timing of the
-     * game. It updates the gameplay state.
+     * game. It updates the gameplay state in as many fixed ticks as the time since the
+     * last update holds, which may be none. It does not wait, the frame rate is set by
+     * how fast the frames can be drawn.
      */
     public void update() {
-        float deltaTime = timer.getDelta();
+        attachStores();
+        long deltaTime = timer.getDeltaNanos();
         Input.EventData event = input.getEvent();
         while (event != null && !timer.pausing) {
+            long dequeueTime = latencyTracer.getClock().nanoTime();
             if (event.state == 1) {
                 if (event.button == buttonLeft) {
-                    blocksgameEngine.moveLeft(true);
+                    perform(Replay.LEFT_DOWN);
+                    traceAction(event, dequeueTime);
                 } else if (event.button == buttonRight) {
-                    blocksgameEngine.moveRight(true);
+                    perform(Replay.RIGHT_DOWN);
+                    traceAction(event, dequeueTime);
                 } else if (event.button == buttonDown) {
-                    blocksgameEngine.fastDrop(true);
+                    perform(Replay.DROP_DOWN);
+                    traceAction(event, dequeueTime);
                 } else if (event.button == buttonRotate) {
-                    blocksgameEngine.rotateTile();
+                    perform(Replay.ROTATE);
+                    traceAction(event, dequeueTime);
                 } else if (event.button == buttonPause) {
                     timer.pause();
                 } else if (event.button == buttonToggleScore) {
@@ -119,11 +277,11 @@ public class Blocksgame
                 }
             } else if (event.state == 0) {
                 if (event.button == buttonLeft) {
-                    blocksgameEngine.moveLeft(false);
+                    perform(Replay.LEFT_UP);
                 } else if (event.button == buttonRight) {
-                    blocksgameEngine.moveRight(false);
+                    perform(Replay.RIGHT_UP);
                 } else if (event.button == buttonDown) {
-                    blocksgameEngine.fastDrop(false);
+                    perform(Replay.DROP_UP);
                 }
             }
             event = input.getEvent();
@@ -136,31 +294,211 @@ public class Blocksgame
             }
             event = input.getEvent();
         }
-        blocksgameEngine.update(deltaTime);
+        loop.beginFrame(deltaTime);
+        while (loop.nextTick()) {
+            boardPainter.beforeTick();
+            if (versusSession != null) {
+                pollVersus();
+            } else {
+                blocksgameEngine.update(loop.getTickSeconds());
+            }
+        }
         input.updateState();
         timer.update();
+        reportLateTicks();
+    }
+
+    /**
+     * Performs an input action, one of the actions of Replay, on the engine,
+     * or sends it through the versus session if there is one.
+     */
+    private void perform(int action) {
+        if (versusSession != null) {
+            versusSession.perform(action);
+        } else {
+            Replay.perform(blocksgameEngine, action);
+        }
+    }
+
+    /**
+     * Plays a tick of the versus session, which may wait for the input of the
+     * other player, in which case the board stands still.
+     */
+    private void pollVersus() {
         try {
-            Thread.sleep(33);
-        } catch (InterruptedException ie) {
-            /* Ignored */
+            versusSession.poll();
+        } catch (IOException e) {
+            LogTool.printError("The versus session failed: " + e);
+            setVersusSession(null);
         }
     }
 
+    /**
+     * Starts a versus game over the network. The board of the local player
+     * of the session is played and shown in place of the board of the single
+     * player game, which comes back when the session is set to null. The
+     * ticks of the game loop are as long as the ticks of the session, so the
+     * session is polled once per tick.
+     */
+    public void setVersusSession(LockstepSession session) {
+        if (versusSession != null) {
+            versusSession.getEngine(versusSession.getLocalPlayer()).removeListener(SoundPlayer.getInstance());
+        }
+        versusSession = session;
+        BlocksgameEngine engine = session != null ? session.getEngine(session.getLocalPlayer()) : blocksgameEngine;
+        if (session != null) {
+            engine.addListener(SoundPlayer.getInstance());
+        }
+        boardPainter = new BoardPainter(engine, renderer, GAME_WIDTH, GAME_HEIGHT);
+    }
+
+    /**
+     * Returns the versus session that is played, or null.
+     */
+    public LockstepSession getVersusSession() {
+        return versusSession;
+    }
+
+    /**
+     * Traces the latency of an event that the engine has acted on. Only the
+     * presses of the buttons that move the shape are traced, their result is
+     * seen in the next frame.
+     */
+    private void traceAction(Input.EventData event, long dequeueTime) {
+        latencyTracer.actionTaken(event.timeNanos, event.enqueueNanos, dequeueTime);
+    }
+
+    /**
+     * Invoked after a frame has been posted to the screen with
+     * unlockCanvasAndPost. The latency of the actions that the frame shows
+     * is recorded then. The real time that the frame reaches the screen is
+     * later, by the time it waits for the display to be refreshed.
+     */
+    public void framePosted() {
+        latencyTracer.framePosted();
+    }
+
+    /**
+     * Returns the tracer that measures the latency of the touches.
+     */
+    public LatencyTracer getLatencyTracer() {
+        return latencyTracer;
+    }
+
+    /**
+     * Shows or hides the percentiles of the latencies of the touches on top of
+     * the game.
+     */
+    public void setLatencyOverlay(boolean latencyOverlay) {
+        this.latencyOverlay = latencyOverlay;
+    }
+
+    /**
+     * Returns the profiler that times the phases of the frames.
+     */
+    public FrameProfiler getFrameProfiler() {
+        return frameProfiler;
+    }
+
+    /**
+     * Shows or hides the percentiles of the durations of the phases of the
+     * frames on top of the game.
+     */
+    public void setProfileOverlay(boolean profileOverlay) {
+        this.profileOverlay = profileOverlay;
+    }
+
+    /**
+     * Writes a log entry when ticks have been run late or skipped since the
+     * last entry, which means that the frames take too long, and the latency
+     * of the touches and the durations of the phases of the frames.
+     */
+    private void reportLateTicks() {
+        // The log is only written in debug builds, so the messages are not
+        // built in the others
+        if (!BuildConfig.DEBUG) {
+            return;
+        }
+        // At most one entry every ten seconds, the message is a new string
+        if (loop.getTicks() - reportedTicks < 10 * 60) {
+            return;
+        }
+        long touchCount = latencyTracer.getHistogram(LatencyTracer.TOUCH_TO_POST).getCount();
+        if (touchCount != reportedTouchCount) {
+            reportedTicks = loop.getTicks();
+            reportedTouchCount = touchCount;
+            LogTool.printVerbose("Touch latency:\n" + latencyTracer);
+        }
+        if (frameProfiler.getOverBudgetFrames() != reportedOverBudgetFrames) {
+            reportedTicks = loop.getTicks();
+            reportedOverBudgetFrames = frameProfiler.getOverBudgetFrames();
+            LogTool.printVerbose("Frame phases:\n" + frameProfiler.dump());
+        }
+        if (loop.getLateTicks() != reportedLateTicks || loop.getSkippedTicks() != reportedSkippedTicks) {
+            reportedTicks = loop.getTicks();
+            reportedLateTicks = loop.getLateTicks();
+            reportedSkippedTicks = loop.getSkippedTicks();
+            LogTool.printVerbose("Late ticks: " + reportedLateTicks + ", skipped ticks: "
+                    + reportedSkippedTicks + " of " + loop.getTicks());
+        }
+    }
+
+    /**
+     * Returns the loop that schedules the ticks of the game.
+     */
+    public GameLoop getGameLoop() {
+        return loop;
+    }
+
+    /**
+     * Returns the store of the best results, or null if it could not be
+     * opened or is still being opened.
+     */
+    public ScoreStore getScoreStore() {
+        return scoreStore;
+    }
+
+    /**
+     * Returns the client of the leaderboard, or null if no server is set in
+     * the resources or it is still being opened.
+     */
+    public LeaderboardClient getLeaderboardClient() {
+        return leaderboardClient;
+    }
+
+    /**
+     * Returns true while the game is paused, when the frames are drawn
+     * slowly and are not profiled.
+     */
+    public boolean isPaused() {
+        return timer.pausing;
+    }
+
+    /**
+     * Returns the recorder of the replay of the game that is being played.
+     * It has a fixed capacity, and ends the replay when it is full.
+     */
+    public ReplayRecorder getReplayRecorder() {
+        return replayRecorder;
+    }
+
     /**
      * This method draws the game, including the hints that are visible when
      * the game is paused.
      */
     public void draw(Canvas canvas) {
-        canvas.drawBitmap(bg, null, new Rect(0, 0, (int)GAME_WIDTH, (int)GAME_HEIGHT), null);
+        renderer.setCanvas(canvas);
+        renderer.drawBackground();
         if (timer.pausing) {
-            canvas.drawARGB(40, 255, 63, 63);
-            try {
-                Thread.sleep(100);
-            } catch (InterruptedException ie) {
-                // Ignored
-            }
+            renderer.fill(0x28ff3f3f);
+        }
+        boardPainter.draw(loop.getAlpha());
+        if (latencyOverlay) {
+            boardPainter.drawLatency(latencyTracer);
+        }
+        if (profileOverlay) {
+            boardPainter.drawProfile(frameProfiler);
         }
-        blocksgameEngine.draw(canvas);
     }
 
     /**
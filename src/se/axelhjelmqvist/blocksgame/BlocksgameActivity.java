@@ -49,6 +49,17 @@ public class BlocksgameActivity
         super.onPause();
     }
 
+    /**
+     * Called when the activity is destroyed. The game is closed, so that the
+     * game of the next activity can open its files.
+     */
+    public void onDestroy() {
+        if (surfaceView != null) {
+            surfaceView.closeGame();
+        }
+        super.onDestroy();
+    }
+
     /**
      * Method that is invoked whenever the back-key is pressed. If the back-key
      * is pressed twice in a sufficiently short amount of time, the app will close.
@@ -68,7 +68,8 @@ public class BlocksgameSurfaceView
     /**
      * The run method of the Runnable interface. This is runned from a
      * thread that is started/stopped using the corresponding methods
-     * on this class.
+     * on this class. The phases of each frame are timed by the frame
+     * profiler of the game, except while the game is paused.
      */
     @Override
     public void run() {
@@ -76,21 +77,42 @@ public class BlocksgameSurfaceView
         Canvas canvas;
         while (running) {
             if (surfaceCreated && blocksgame != null) {
+                FrameProfiler profiler = blocksgame.getFrameProfiler();
+                profiler.beginFrame();
                 blocksgame.update();
+                profiler.endPhase(FrameProfiler.UPDATE);
                 canvas = null;
                 SurfaceHolder holder = getHolder();
                 try {
                     synchronized(holder) {
                         while (canvas == null) {
                             canvas = holder.lockCanvas(null);
+                            if (canvas == null) {
+                                profiler.lockRetried();
+                            }
                         }
+                        profiler.endPhase(FrameProfiler.LOCK);
                         blocksgame.draw(canvas);
+                        profiler.endPhase(FrameProfiler.DRAW);
                     }
                 } catch (Exception e) {
                     System.out.println("could not draw game");
                 } finally {
                     holder.unlockCanvasAndPost(canvas);
                 }
+                profiler.endPhase(FrameProfiler.POST);
+                blocksgame.framePosted();
+                if (blocksgame.isPaused()) {
+                    // The paused screen is drawn ten times a second, and the
+                    // frame is not counted by the profiler
+                    try {
+                        Thread.sleep(100);
+                    } catch (InterruptedException ie) {
+                        // Ignored
+                    }
+                } else {
+                    profiler.endFrame();
+                }
             } else {
                 try {
                     Thread.sleep(100);
@@ -157,6 +179,17 @@ public class BlocksgameSurfaceView
         }
     }
 
+    /**
+     * Stops the thread and closes the game, so that the results that it has
+     * stored are written and its files are released.
+     */
+    public void closeGame() {
+        stopThread();
+        if (blocksgame != null) {
+            blocksgame.close();
+        }
+    }
+
     /**
      * Callback of the view that is invoked when the layout is layed out.
      * This is used to determine the size of the game. The game cannot be
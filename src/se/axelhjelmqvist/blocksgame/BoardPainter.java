@@ -0,0 +1,185 @@
+package se.axelhjelmqvist.blocksgame;
+
+/**
+ * Class that draws the state of a BlocksgameEngine using a Renderer.
+ * Knows about the positioning and sizing of the board, the preview box
+ * and the score on the screen. The engine itself knows nothing about
+ * drawing. The blocks that have landed are drawn into the layer of the
+ * renderer, in which only the rows that the engine reports as changed are
+ * redrawn, so a frame only draws the layer, the tile in play, the preview
+ * and the score.
+ */
+public class BoardPainter {
+    BlocksgameEngine engine;
+
+    Renderer renderer;
+
+    int posX, posY;
+
+    int nextPosX, nextPosY;
+
+    int brickWidth, brickHeight;
+
+    float scorePosX, scorePosY;
+
+    /**
+     * The position of the shape in play before the last tick of the engine,
+     * and the number of that shape, for interpolation.
+     */
+    int lastShapeX, lastShapeY, lastShapeCount;
+
+    /**
+     * Constructor of the BoardPainter. The positions and sizes of what is
+     * drawn are calculated from the size of the game.
+     */
+    public BoardPainter(BlocksgameEngine engine, Renderer renderer, float gameWidth, float gameHeight) {
+        this.engine = engine;
+        this.renderer = renderer;
+        brickWidth = (int)(0.073f * gameWidth);
+        brickHeight = (int)(0.044f * gameHeight);
+        posX = (int)(0.073f * gameWidth);
+        posY = (int)(0.0625f * gameHeight);
+        nextPosX = (int)(0.77f * gameWidth);
+        nextPosY = (int)(0.12f * gameHeight);
+        scorePosX = (int)(0.0833f * gameWidth);
+        scorePosY = (int)(0.0375f * gameHeight);
+        renderer.init(brickWidth, brickHeight, engine.sizeX * brickWidth, engine.sizeY * brickHeight);
+        // The whole layer is drawn the first time
+        engine.markDirty(0, engine.sizeY);
+        beforeTick();
+    }
+
+    /**
+     * Remembers the position of the shape in play. This should be called
+     * before every tick of the engine, so that the shape can be drawn
+     * between its positions before and after the tick.
+     */
+    public void beforeTick() {
+        lastShapeX = engine.shape.x;
+        lastShapeY = engine.shape.y;
+        lastShapeCount = engine.shapeCount;
+    }
+
+    /**
+     * Draws the state of the engine after its last tick.
+     */
+    public void draw() {
+        draw(1.0f);
+    }
+
+    /**
+     * Draws the tile that is currently in play, the tile that is currently visible in the
+     * preview box, aswell as the tiles that are currently in play using the renderer.
+     * The tile in play is drawn at alpha of the way from where it was before the last
+     * tick of the engine to where it is now.
+     */
+    public void draw(float alpha) {
+        Shape shape = engine.shape, nextShape = engine.nextShape;
+        int x = 0, y= 0, i = 0, color = 0;
+        // Draw the landed blocks, after bringing the changed rows of the layer up to date
+        updateBoardLayer();
+        renderer.drawLayer(posX, posY);
+
+        // Draw playing-tile, interpolated unless it is a new one
+        color = shape.color;
+        float shapeX = shape.x, shapeY = shape.y;
+        if (engine.shapeCount == lastShapeCount) {
+            shapeX = lastShapeX + (shape.x - lastShapeX) * alpha;
+            shapeY = lastShapeY + (shape.y - lastShapeY) * alpha;
+        }
+        int index = shape.getIndex();
+        for (i = 0; i < 4; ++i) {
+            x = (int)(brickWidth * (shapeX + ShapeTool.BLOCKS_X[index * 4 + i])) + posX;
+            y = (int)(brickHeight * (shapeY + ShapeTool.BLOCKS_Y[index * 4 + i])) + posY;
+            if (shape.getBlockY(i) >= 0) {
+                renderer.drawSprite(color, x, y);
+            }
+        }
+
+        // Draw next-tile
+        int offsetX = 1, offsetY = 2;
+        color = nextShape.color;
+        index = nextShape.getIndex();
+        for (i = 0; i < 4; ++i) {
+            x = brickWidth * (ShapeTool.BLOCKS_X[index * 4 + i] + offsetX) + nextPosX;
+            y = brickHeight * (ShapeTool.BLOCKS_Y[index * 4 + i] + offsetY) + nextPosY;
+            renderer.drawSprite(color, x, y);
+        }
+        drawScore();
+    }
+
+    /**
+     * Redraws the rows of the board layer that have changed since it was
+     * last updated. Each row is cleared and its blocks are drawn again.
+     */
+    private void updateBoardLayer() {
+        int from = engine.dirtyFrom, to = Math.min(engine.dirtyTo, engine.sizeY);
+        if (from >= to) {
+            return;
+        }
+        int sizeX = engine.sizeX;
+        int[][] field = engine.field;
+        int x = 0, y = 0, color = 0;
+        renderer.clearLayer(from * brickHeight, to * brickHeight);
+        for (int row = from; row < to; ++row) {
+            int[] colors = field[row];
+            for (int column = 0; column < sizeX; ++column) {
+                color = colors[column];
+                if (color != 0) {
+                    x = brickWidth * column;
+                    y = brickHeight * row;
+                    renderer.drawLayerSprite(color, x, y);
+                }
+            }
+        }
+        engine.clearDirtyRows();
+    }
+
+    /**
+     * Draw the current score using the renderer.
+     */
+    private void drawScore() {
+        ScoreKeeper score = engine.score;
+        char[] text = score.getText();
+        int[] colors = ScoreKeeper.COLORS;
+        renderer.drawText(text, 0, 4, scorePosX, scorePosY, argb(63, 63, 63));
+        int offset = (score.scoreCount % (colors.length / 3)) * 3;
+        renderer.drawText(text, 5, 14 - 5, scorePosX + 50, scorePosY,
+                argb(colors[offset + 0], colors[offset + 1], colors[offset + 2]));
+        renderer.drawText(text, 15, 30, scorePosX + 180, scorePosY,
+                argb(score.isViewingTop() ? 255 : 200, 200, 200));
+    }
+
+    /**
+     * Returns an opaque color of the given components.
+     */
+    static int argb(int red, int green, int blue) {
+        return 0xff000000 | (red << 16) | (green << 8) | blue;
+    }
+
+    /**
+     * Draws the median and the 99th percentile of the latencies of the
+     * touches, one stage per line below the score.
+     */
+    public void drawLatency(LatencyTracer tracer) {
+        float lineHeight = renderer.getTextSize();
+        for (int i = 0; i < LatencyTracer.STAGE_COUNT; ++i) {
+            char[] line = tracer.getLine(i);
+            renderer.drawText(line, 0, line.length, scorePosX, scorePosY + (i + 1) * lineHeight, 0xffffffff);
+        }
+    }
+
+    /**
+     * Draws the percentiles of the durations of the phases of the frames and
+     * the count of frames over budget, one line each, below the lines of the
+     * latencies.
+     */
+    public void drawProfile(FrameProfiler profiler) {
+        float lineHeight = renderer.getTextSize();
+        float top = scorePosY + (LatencyTracer.STAGE_COUNT + 1) * lineHeight;
+        for (int i = 0; i <= FrameProfiler.PHASE_COUNT; ++i) {
+            char[] line = profiler.getLine(i);
+            renderer.drawText(line, 0, line.length, scorePosX, top + i * lineHeight, 0xffffff00);
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package se.axelhjelmqvist.blocksgame;
+
+/**
+ * Class with static methods that operate on the occupancy masks of the rows
+ * of a board, in the layout that the BlocksgameEngine uses: one integer per
+ * row, with BlocksgameEngine.ROW_PADDING rows above and below the board and
+ * BlocksgameEngine.WALL_BITS bits of wall on each side of the columns. The
+ * engine and the bots use these, so a bot can work on copies of the board
+ * without touching the engine. None of the methods allocate.
+ */
+public class BoardTool {
+    /**
+     * Returns the mask of an empty row of a board that is sizeX blocks wide,
+     * where only the walls are set.
+     */
+    public static int getWallRow(int sizeX) {
+        return ~(((1 << sizeX) - 1) << BlocksgameEngine.WALL_BITS);
+    }
+
+    /**
+     * Detects if a shape of the given type and orientation at the given
+     * position would overlap an occupied cell, a wall or the floor of the board.
+     * Cells above the board are free but the walls extend upwards. Each row that
+     * the shape covers is a single AND against the occupancy mask of that row.
+     */
+    public static boolean collides(int[] rows, int type, int orientation, int x, int y) {
+        int index = ShapeTool.index(type, orientation);
+        int shift = x + ShapeTool.MIN_X[index] + BlocksgameEngine.WALL_BITS;
+        int row = y + ShapeTool.MIN_Y[index] + BlocksgameEngine.ROW_PADDING;
+        int height = ShapeTool.HEIGHT[index];
+        if (shift < 0 || shift > 32 - 4 || row < 0 || row + height > rows.length) {
+            return true;
+        }
+        for (int i = 0; i < height; ++i) {
+            if ((rows[row + i] & (ShapeTool.ROW_MASKS[index * 4 + i] << shift)) != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the lowest row that a shape that does not collide at the given
+     * position can fall to, the row where it would land.
+     */
+    public static int dropY(int[] rows, int type, int orientation, int x, int y) {
+        while (!collides(rows, type, orientation, x, y + 1)) {
+            ++y;
+        }
+        return y;
+    }
+
+    /**
+     * Sets the cells of a shape in the rows of a board that is sizeY rows high.
+     * Cells outside of the board are ignored. Returns false if any of the
+     * cells were above the board, which means that the round is lost.
+     */
+    public static boolean insert(int[] rows, int sizeY, int type, int orientation, int x, int y) {
+        int index = ShapeTool.index(type, orientation);
+        int shift = x + ShapeTool.MIN_X[index] + BlocksgameEngine.WALL_BITS;
+        int row = y + ShapeTool.MIN_Y[index];
+        boolean inside = row >= 0;
+        for (int i = 0; i < ShapeTool.HEIGHT[index]; ++i) {
+            if (row + i >= 0 && row + i < sizeY) {
+                rows[BlocksgameEngine.ROW_PADDING + row + i] |= ShapeTool.ROW_MASKS[index * 4 + i] << shift;
+            }
+        }
+        return inside;
+    }
+
+    /**
+     * Removes the complete rows of a board that is sizeY rows high and moves the
+     * rows above them downwards. The emptied rows at the top are set to the given
+     * wall row. Returns the number of rows that were removed.
+     */
+    public static int clearFullRows(int[] rows, int sizeY, int wallRow) {
+        int top = BlocksgameEngine.ROW_PADDING;
+        int to = top + sizeY - 1;
+        for (int from = to; from >= top; --from) {
+            if (rows[from] != BlocksgameEngine.FULL_ROW) {
+                rows[to--] = rows[from];
+            }
+        }
+        int cleared = to - top + 1;
+        while (to >= top) {
+            rows[to--] = wallRow;
+        }
+        return cleared;
+    }
+}
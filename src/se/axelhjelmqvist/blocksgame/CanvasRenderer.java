@@ -0,0 +1,98 @@
+package se.axelhjelmqvist.blocksgame;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.Rect;
+
+/**
+ * Renderer that draws on an Android Canvas. The canvas of each frame is set
+ * with setCanvas before drawing. The sprites are scaled to the size of a
+ * brick once by init, so a block is drawn without scaling, and the layer is
+ * a Bitmap.
+ */
+public class CanvasRenderer
+        implements Renderer {
+    Bitmap background;
+
+    Bitmap[] sourceSprites, sprites;
+
+    Rect backgroundRect;
+
+    Paint paint;
+
+    Bitmap layer;
+
+    Canvas layerCanvas;
+
+    int layerWidth;
+
+    Canvas canvas;
+
+    /**
+     * Constructor of a renderer of the given background, scaled to the size
+     * of the game, and sprites. The first sprite is not used.
+     */
+    public CanvasRenderer(Bitmap background, Bitmap[] sprites, int gameWidth, int gameHeight) {
+        this.background = background;
+        sourceSprites = sprites;
+        backgroundRect = new Rect(0, 0, gameWidth, gameHeight);
+        paint = new Paint();
+        paint.setTextSize(30);
+        canvas = null;
+    }
+
+    /**
+     * Sets the canvas that the next frame is drawn on.
+     */
+    public void setCanvas(Canvas canvas) {
+        this.canvas = canvas;
+    }
+
+    public void init(int brickWidth, int brickHeight, int layerWidth, int layerHeight) {
+        sprites = new Bitmap[sourceSprites.length];
+        for (int i = 1; i < sprites.length; ++i) {
+            sprites[i] = Bitmap.createScaledBitmap(sourceSprites[i], brickWidth, brickHeight, true);
+        }
+        this.layerWidth = layerWidth;
+        layer = Bitmap.createBitmap(layerWidth, layerHeight, Bitmap.Config.ARGB_8888);
+        layerCanvas = new Canvas(layer);
+    }
+
+    public void drawBackground() {
+        canvas.drawBitmap(background, null, backgroundRect, null);
+    }
+
+    public void fill(int argb) {
+        canvas.drawARGB(argb >>> 24, (argb >> 16) & 0xff, (argb >> 8) & 0xff, argb & 0xff);
+    }
+
+    public void clearLayer(int fromY, int toY) {
+        layerCanvas.save();
+        layerCanvas.clipRect(0, fromY, layerWidth, toY);
+        layerCanvas.drawColor(0, PorterDuff.Mode.CLEAR);
+        layerCanvas.restore();
+    }
+
+    public void drawLayerSprite(int sprite, int x, int y) {
+        layerCanvas.drawBitmap(sprites[sprite], x, y, null);
+    }
+
+    public void drawLayer(int x, int y) {
+        canvas.drawBitmap(layer, x, y, null);
+    }
+
+    public void drawSprite(int sprite, int x, int y) {
+        canvas.drawBitmap(sprites[sprite], x, y, null);
+    }
+
+    public void drawText(char[] text, int start, int count, float x, float y, int argb) {
+        paint.setColor(argb);
+        canvas.drawText(text, start, count, x, y, paint);
+    }
+
+    public float getTextSize() {
+        return paint.getTextSize();
+    }
+}
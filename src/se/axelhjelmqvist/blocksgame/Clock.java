@@ -0,0 +1,12 @@
+package se.axelhjelmqvist.blocksgame;
+
+/**
+ * A source of time for the Timer. The time is a count of nanoseconds from
+ * an arbitrary origin, that never goes backwards.
+ */
+public interface Clock {
+    /**
+     * Returns the current time in nanoseconds.
+     */
+    long nanoTime();
+}
@@ -0,0 +1,26 @@
+package se.axelhjelmqvist.blocksgame;
+
+/**
+ * Interface of objects that are notified of what happens in a
+ * BlocksgameEngine, for instance to play the sound effects of the game.
+ * The engine can run without any listeners at all.
+ */
+public interface EngineListener {
+    /**
+     * Invoked when the shape in play was moved sideways or rotated
+     * by the player.
+     */
+    void shapeMoved(BlocksgameEngine engine);
+
+    /**
+     * Invoked when the shape in play has landed and was inserted into the
+     * board. The number of completed rows that were removed is given.
+     */
+    void shapeLocked(BlocksgameEngine engine, int lines);
+
+    /**
+     * Invoked when the round is over, before the score and the board
+     * are reset, so that the final state of the round can be inspected.
+     */
+    void roundEnded(BlocksgameEngine engine, int finalScore);
+}
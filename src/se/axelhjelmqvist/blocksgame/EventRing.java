@@ -0,0 +1,147 @@
+package se.axelhjelmqvist.blocksgame;
+
+/**
+ * Bounded queue of button events from one producer thread to one consumer
+ * thread, such as from the UI thread to the game thread. The slots are
+ * allocated up front and neither side ever waits for the other: the
+ * producer only writes the slot at the tail and then publishes the tail,
+ * and the consumer only reads the slot at the head and then publishes the
+ * head. Events come out in the order they were put in. When the queue is
+ * full the new event is dropped and counted, instead of blocking the
+ * producer.
+ *
+ * Only one thread may call offer, and only one thread may call the other
+ * methods that read or remove events.
+ */
+public class EventRing {
+    final int mask;
+
+    final int[] buttons, states;
+
+    final long[] times, enqueueTimes;
+
+    /**
+     * The number of events that have been removed and put in. The producer
+     * only writes tail and the consumer only writes head, and the volatile
+     * writes publish the slots to the other side.
+     */
+    volatile long head, tail;
+
+    volatile long dropped;
+
+    /**
+     * The tail as last read by the consumer and the head as last read by the
+     * producer, so that the volatile fields of the other side are only read
+     * when the queue looks empty or full.
+     */
+    long cachedTail, cachedHead;
+
+    /**
+     * Constructor of a queue with room for the given number of events, which
+     * must be a power of two.
+     */
+    public EventRing(int capacity) {
+        if (capacity <= 0 || (capacity & (capacity - 1)) != 0) {
+            throw new IllegalArgumentException("Capacity is not a power of two: " + capacity);
+        }
+        mask = capacity - 1;
+        buttons = new int[capacity];
+        states = new int[capacity];
+        times = new long[capacity];
+        enqueueTimes = new long[capacity];
+        head = tail = dropped = 0;
+        cachedTail = cachedHead = 0;
+    }
+
+    public int getCapacity() {
+        return mask + 1;
+    }
+
+    /**
+     * Puts an event at the end of the queue, from the producer thread. The
+     * event has the time that it happened and the time that it is put in.
+     * Returns false, and counts the event as dropped, if the queue is full.
+     */
+    public boolean offer(int button, int state, long timeNanos, long enqueueNanos) {
+        long position = tail;
+        if (position - cachedHead > mask) {
+            cachedHead = head;
+            if (position - cachedHead > mask) {
+                ++dropped;
+                return false;
+            }
+        }
+        int index = (int)position & mask;
+        buttons[index] = button;
+        states[index] = state;
+        times[index] = timeNanos;
+        enqueueTimes[index] = enqueueNanos;
+        tail = position + 1;
+        return true;
+    }
+
+    /**
+     * Returns true if there is no event to read, from the consumer thread.
+     */
+    public boolean isEmpty() {
+        long position = head;
+        if (position == cachedTail) {
+            cachedTail = tail;
+        }
+        return position == cachedTail;
+    }
+
+    /**
+     * Returns the button of the first event. The queue must not be empty.
+     */
+    public int getButton() {
+        return buttons[(int)head & mask];
+    }
+
+    /**
+     * Returns the state of the first event. The queue must not be empty.
+     */
+    public int getState() {
+        return states[(int)head & mask];
+    }
+
+    /**
+     * Returns the time of the first event, in nanoseconds. The queue must not
+     * be empty.
+     */
+    public long getTimeNanos() {
+        return times[(int)head & mask];
+    }
+
+    /**
+     * Returns the time that the first event was put in, in nanoseconds. The
+     * queue must not be empty.
+     */
+    public long getEnqueueNanos() {
+        return enqueueTimes[(int)head & mask];
+    }
+
+    /**
+     * Removes the first event, after which its slot may be written by the
+     * producer. The queue must not be empty.
+     */
+    public void remove() {
+        head = head + 1;
+    }
+
+    /**
+     * Returns the number of events that could be read now. This may be out of
+     * date as soon as it returns if the producer is putting events in.
+     */
+    public int size() {
+        return (int)(tail - head);
+    }
+
+    /**
+     * Returns the number of events that have been dropped because the queue
+     * was full.
+     */
+    public long getDropped() {
+        return dropped;
+    }
+}
@@ -0,0 +1,272 @@
+package se.axelhjelmqvist.blocksgame;
+
+import java.util.Arrays;
+
+/**
+ * Measures how long each phase of a frame takes: updating the game, locking
+ * the canvas of the surface, drawing and posting the canvas. The durations
+ * of the last frames are kept in preallocated rings, one per phase and one
+ * for the whole frame, so the percentiles are of a rolling window of frames.
+ * Frames that take longer than the budget are counted, as are the times
+ * that locking the canvas had to be retried.
+ *
+ * A frame is measured by calling beginFrame, then endPhase after each phase
+ * and last endFrame, all on the thread that runs the frames. Measuring reads
+ * the clock once per phase and allocates nothing.
+ */
+public class FrameProfiler {
+    public final static int UPDATE = 0;
+    public final static int LOCK = 1;
+    public final static int DRAW = 2;
+    public final static int POST = 3;
+    public final static int FRAME = 4;
+    public final static int PHASE_COUNT = 5;
+
+    final static String[] PHASE_NAMES = {
+        "update", "lock", "draw", "post", "frame"
+    };
+
+    /**
+     * The number of frames between rewrites of the text of the overlay,
+     * since computing the percentiles sorts the window.
+     */
+    final static int TEXT_INTERVAL = 30;
+
+    final Clock clock;
+
+    final long budgetNanos;
+
+    /**
+     * The durations of the phases of the last frames in nanoseconds, indexed
+     * by phase and then by frame modulo the size of the window.
+     */
+    final long[][] durations;
+
+    /**
+     * Where the percentiles are sorted, so that they do not allocate.
+     */
+    final long[] sorted;
+
+    long frames, overBudgetFrames, lockRetries;
+
+    long frameStart, phaseStart;
+
+    final char[][] lines;
+
+    long linesFrames;
+
+    /**
+     * Constructor of a profiler that keeps the durations of the given number
+     * of frames and counts the frames that take longer than budgetNanos.
+     */
+    public FrameProfiler(Clock clock, int window, long budgetNanos) {
+        if (window <= 0) {
+            throw new IllegalArgumentException("The window must hold at least one frame");
+        }
+        this.clock = clock;
+        this.budgetNanos = budgetNanos;
+        durations = new long[PHASE_COUNT][window];
+        sorted = new long[window];
+        lines = new char[PHASE_COUNT + 1][];
+        for (int i = 0; i < PHASE_COUNT; ++i) {
+            lines[i] = new char[PHASE_NAMES[i].length() + 96];
+        }
+        lines[PHASE_COUNT] = new char[128];
+        reset();
+    }
+
+    /**
+     * Constructor of a profiler of the last 256 frames with a budget of a
+     * frame at 60 frames per second, that uses System.nanoTime.
+     */
+    public FrameProfiler() {
+        this(MonotonicClock.INSTANCE, 256, 1000000000L / 60);
+    }
+
+    /**
+     * Forgets every measured frame.
+     */
+    public void reset() {
+        for (int i = 0; i < PHASE_COUNT; ++i) {
+            Arrays.fill(durations[i], 0);
+        }
+        frames = overBudgetFrames = lockRetries = 0;
+        frameStart = phaseStart = 0;
+        linesFrames = -1;
+    }
+
+    /**
+     * Starts measuring a frame, and its first phase.
+     */
+    public void beginFrame() {
+        frameStart = phaseStart = clock.nanoTime();
+    }
+
+    /**
+     * Ends a phase of the frame, the next phase starts now.
+     */
+    public void endPhase(int phase) {
+        long now = clock.nanoTime();
+        durations[phase][(int)(frames % sorted.length)] = now - phaseStart;
+        phaseStart = now;
+    }
+
+    /**
+     * Counts a failed attempt to lock the canvas.
+     */
+    public void lockRetried() {
+        ++lockRetries;
+    }
+
+    /**
+     * Ends the frame, which ended with its last phase.
+     */
+    public void endFrame() {
+        long duration = phaseStart - frameStart;
+        durations[FRAME][(int)(frames % sorted.length)] = duration;
+        if (duration > budgetNanos) {
+            ++overBudgetFrames;
+        }
+        ++frames;
+    }
+
+    public long getFrames() {
+        return frames;
+    }
+
+    public long getOverBudgetFrames() {
+        return overBudgetFrames;
+    }
+
+    public long getLockRetries() {
+        return lockRetries;
+    }
+
+    public long getBudgetNanos() {
+        return budgetNanos;
+    }
+
+    public static String getPhaseName(int phase) {
+        return PHASE_NAMES[phase];
+    }
+
+    /**
+     * Returns the number of frames in the window.
+     */
+    public int getWindowFrames() {
+        return (int)Math.min(frames, sorted.length);
+    }
+
+    /**
+     * Returns the duration in nanoseconds of a phase of the last frame.
+     */
+    public long getLastNanos(int phase) {
+        if (frames == 0) {
+            return 0;
+        }
+        return durations[phase][(int)((frames - 1) % sorted.length)];
+    }
+
+    /**
+     * Returns the duration in nanoseconds that the given percentage (0 to 100)
+     * of the frames in the window spent at most in a phase.
+     */
+    public long getPercentile(int phase, double percentile) {
+        sortWindow(phase);
+        return getSortedPercentile(percentile);
+    }
+
+    /**
+     * Copies the durations of a phase in the window to sorted and sorts them.
+     * A shell sort is used because Arrays.sort may allocate.
+     */
+    void sortWindow(int phase) {
+        int count = getWindowFrames();
+        System.arraycopy(durations[phase], 0, sorted, 0, count);
+        int gap = 1;
+        while (gap < count / 3) {
+            gap = gap * 3 + 1;
+        }
+        for (; gap > 0; gap /= 3) {
+            for (int i = gap; i < count; ++i) {
+                long value = sorted[i];
+                int j = i;
+                for (; j >= gap && sorted[j - gap] > value; j -= gap) {
+                    sorted[j] = sorted[j - gap];
+                }
+                sorted[j] = value;
+            }
+        }
+    }
+
+    /**
+     * Returns a percentile of the durations that sortWindow sorted last.
+     */
+    long getSortedPercentile(double percentile) {
+        int count = getWindowFrames();
+        if (count == 0) {
+            return 0;
+        }
+        int index = (int)Math.ceil(Math.min(100.0, Math.max(0.0, percentile)) / 100.0 * count) - 1;
+        return sorted[Math.max(index, 0)];
+    }
+
+    /**
+     * Returns a line of text for the overlay. The lines up to PHASE_COUNT show
+     * the median, the 99th percentile and the maximum of a phase in
+     * milliseconds, and the line PHASE_COUNT shows the counts of frames. The
+     * arrays are reused and are rewritten every TEXT_INTERVAL frames. The end
+     * of the text is filled with spaces.
+     */
+    public char[] getLine(int line) {
+        if (linesFrames < 0 || frames - linesFrames >= TEXT_INTERVAL) {
+            linesFrames = frames;
+            for (int i = 0; i < PHASE_COUNT; ++i) {
+                writeLine(i);
+            }
+            writeCounts();
+        }
+        return lines[line];
+    }
+
+    private void writeLine(int phase) {
+        char[] line = lines[phase];
+        sortWindow(phase);
+        int position = TextTool.putText(line, 0, PHASE_NAMES[phase]);
+        position = TextTool.putText(line, position, " p50 ");
+        position = TextTool.putMillis(line, position, getSortedPercentile(50) / 1000);
+        position = TextTool.putText(line, position, " p99 ");
+        position = TextTool.putMillis(line, position, getSortedPercentile(99) / 1000);
+        position = TextTool.putText(line, position, " max ");
+        position = TextTool.putMillis(line, position, getSortedPercentile(100) / 1000);
+        position = TextTool.putText(line, position, " ms");
+        TextTool.padLine(line, position);
+    }
+
+    private void writeCounts() {
+        char[] line = lines[PHASE_COUNT];
+        int position = TextTool.putNumber(line, 0, overBudgetFrames);
+        position = TextTool.putText(line, position, " of ");
+        position = TextTool.putNumber(line, position, frames);
+        position = TextTool.putText(line, position, " frames over budget, ");
+        position = TextTool.putNumber(line, position, lockRetries);
+        position = TextTool.putText(line, position, " lock retries");
+        TextTool.padLine(line, position);
+    }
+
+    /**
+     * Returns a summary of the window, one line per phase, and of the counts.
+     */
+    public String dump() {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < PHASE_COUNT; ++i) {
+            sortWindow(i);
+            builder.append(String.format("%s us: p50=%d p90=%d p99=%d max=%d\n", PHASE_NAMES[i],
+                    getSortedPercentile(50) / 1000, getSortedPercentile(90) / 1000,
+                    getSortedPercentile(99) / 1000, getSortedPercentile(100) / 1000));
+        }
+        builder.append(String.format("%d of %d frames over %d us, %d lock retries, window of %d frames\n",
+                overBudgetFrames, frames, budgetNanos / 1000, lockRetries, getWindowFrames()));
+        return builder.toString();
+    }
+}
@@ -0,0 +1,115 @@
+package se.axelhjelmqvist.blocksgame;
+
+/**
+ * Fixed time step scheduling of the updates of a game. The time of every
+ * frame is added to an accumulator, and the game is updated in ticks of a
+ * fixed length for as long as a whole tick has accumulated, so the game
+ * behaves the same at any frame rate. What remains of the accumulator, as
+ * a fraction of a tick, is used to interpolate what is drawn between the
+ * last two ticks.
+ *
+ * A frame runs at most maxTicksPerFrame ticks. Ticks beyond that are
+ * dropped and counted as skipped, so that a long stall does not make the
+ * game try to catch up with more work than it can do. A tick that is run
+ * because a frame took longer than a tick, in addition to the first tick
+ * of the frame, is counted as late.
+ */
+public class GameLoop {
+    final long tickNanos;
+
+    final float tickSeconds;
+
+    final int maxTicksPerFrame;
+
+    /**
+     * The time that has not been run yet, in nanoseconds so that it is exact.
+     */
+    long accumulator;
+
+    int frameTicks;
+
+    long ticks, lateTicks, skippedTicks;
+
+    /**
+     * Constructor of a loop with ticks of the given length in nanoseconds.
+     */
+    public GameLoop(long tickNanos, int maxTicksPerFrame) {
+        this.tickNanos = tickNanos;
+        tickSeconds = (float)(tickNanos / 1e9);
+        this.maxTicksPerFrame = maxTicksPerFrame;
+        accumulator = 0;
+        frameTicks = 0;
+        ticks = lateTicks = skippedTicks = 0;
+    }
+
+    /**
+     * Starts a frame that follows the given number of nanoseconds after the
+     * start of the previous frame.
+     */
+    public void beginFrame(long frameNanos) {
+        accumulator += frameNanos;
+        frameTicks = 0;
+    }
+
+    /**
+     * Returns true if the game should be updated with a tick of getTickSeconds
+     * now, and then this method should be called again. Returns false when the
+     * frame has run all of the ticks that it should.
+     */
+    public boolean nextTick() {
+        if (accumulator < tickNanos) {
+            return false;
+        }
+        if (frameTicks == maxTicksPerFrame) {
+            long skipped = accumulator / tickNanos;
+            skippedTicks += skipped;
+            accumulator -= skipped * tickNanos;
+            return false;
+        }
+        accumulator -= tickNanos;
+        if (frameTicks > 0) {
+            ++lateTicks;
+        }
+        ++frameTicks;
+        ++ticks;
+        return true;
+    }
+
+    /**
+     * Returns how far the time of the frame is between the last tick and the
+     * next one, from 0 to 1. The state that is drawn is interpolated by this.
+     */
+    public float getAlpha() {
+        return Math.min((float)accumulator / tickNanos, 1.0f);
+    }
+
+    /**
+     * Returns the length of a tick in seconds, the time step of the engine.
+     */
+    public float getTickSeconds() {
+        return tickSeconds;
+    }
+
+    /**
+     * Returns the number of ticks that have been run.
+     */
+    public long getTicks() {
+        return ticks;
+    }
+
+    /**
+     * Returns the number of ticks that were run late, to catch up after a
+     * frame that took longer than a tick.
+     */
+    public long getLateTicks() {
+        return lateTicks;
+    }
+
+    /**
+     * Returns the number of ticks that were dropped since a frame would have
+     * had to run more than maxTicksPerFrame ticks.
+     */
+    public long getSkippedTicks() {
+        return skippedTicks;
+    }
+}
@@ -0,0 +1,192 @@
+package se.axelhjelmqvist.blocksgame;
+
+/**
+ * A histogram of non-negative integer values that uses a fixed amount of
+ * memory. Small values are counted exactly and larger values are counted in
+ * buckets whose width grows with the magnitude of the value, so that every
+ * recorded value is kept with the same relative precision. Recording a value
+ * never allocates. Histograms of the same precision can be merged, which
+ * makes it possible to record on many threads and combine the results.
+ */
+public class Histogram {
+    final int subBucketBits;
+
+    final int subBucketCount;
+
+    final long[] counts;
+
+    long count, min, max;
+
+    double sum;
+
+    /**
+     * Constructor. The precision is given as the number of significant bits
+     * of a recorded value that are kept. Five bits keeps values within about
+     * three percent.
+     */
+    public Histogram(int subBucketBits) {
+        if (subBucketBits < 1 || subBucketBits > 16) {
+            throw new IllegalArgumentException("The precision must be between 1 and 16 bits");
+        }
+        this.subBucketBits = subBucketBits;
+        subBucketCount = 1 << subBucketBits;
+        counts = new long[subBucketCount + (64 - subBucketBits) * (subBucketCount / 2)];
+        reset();
+    }
+
+    /**
+     * Constructor of a histogram that keeps values within about three percent.
+     */
+    public Histogram() {
+        this(5);
+    }
+
+    /**
+     * Removes every recorded value.
+     */
+    public void reset() {
+        for (int i = 0; i < counts.length; ++i) {
+            counts[i] = 0;
+        }
+        count = 0;
+        min = Long.MAX_VALUE;
+        max = 0;
+        sum = 0.0;
+    }
+
+    /**
+     * Returns the index of the bucket that counts the given value.
+     */
+    int indexOf(long value) {
+        if (value < subBucketCount) {
+            return (int)value;
+        }
+        int shift = (63 - Long.numberOfLeadingZeros(value)) - (subBucketBits - 1);
+        return subBucketCount + (shift - 1) * (subBucketCount / 2)
+                + (int)((value >>> shift) - (subBucketCount / 2));
+    }
+
+    /**
+     * Returns the lowest value that is counted by the bucket of the given index.
+     */
+    long lowestValueOf(int index) {
+        if (index < subBucketCount) {
+            return index;
+        }
+        int shift = (index - subBucketCount) / (subBucketCount / 2) + 1;
+        long subBucket = (index - subBucketCount) % (subBucketCount / 2) + (subBucketCount / 2);
+        return subBucket << shift;
+    }
+
+    /**
+     * Returns the highest value that is counted by the bucket of the given index.
+     */
+    long highestValueOf(int index) {
+        if (index + 1 >= counts.length) {
+            return Long.MAX_VALUE;
+        }
+        return lowestValueOf(index + 1) - 1;
+    }
+
+    /**
+     * Records a value. Negative values are recorded as zero.
+     */
+    public void record(long value) {
+        record(value, 1);
+    }
+
+    /**
+     * Records a value a number of times. Negative values are recorded as zero.
+     */
+    public void record(long value, long times) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts[indexOf(value)] += times;
+        count += times;
+        sum += (double)value * times;
+        if (value < min) {
+            min = value;
+        }
+        if (value > max) {
+            max = value;
+        }
+    }
+
+    /**
+     * Adds all of the values that are recorded in another histogram of the
+     * same precision to this histogram.
+     */
+    public void merge(Histogram other) {
+        if (other.subBucketBits != subBucketBits) {
+            throw new IllegalArgumentException("Only histograms of the same precision can be merged");
+        }
+        for (int i = 0; i < counts.length; ++i) {
+            counts[i] += other.counts[i];
+        }
+        count += other.count;
+        sum += other.sum;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+    }
+
+    /**
+     * Returns the number of recorded values.
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Returns the lowest recorded value, or zero if nothing is recorded.
+     */
+    public long getMin() {
+        return count == 0 ? 0 : min;
+    }
+
+    /**
+     * Returns the highest recorded value.
+     */
+    public long getMax() {
+        return max;
+    }
+
+    /**
+     * Returns the mean of the recorded values.
+     */
+    public double getMean() {
+        return count == 0 ? 0.0 : sum / count;
+    }
+
+    /**
+     * Returns the value that the given percentage (0 to 100) of the recorded
+     * values are less than or equal to, within the precision of the histogram.
+     */
+    public long getValueAtPercentile(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        long target = (long)Math.ceil(Math.min(100.0, Math.max(0.0, percentile)) / 100.0 * count);
+        if (target < 1) {
+            target = 1;
+        }
+        long seen = 0;
+        for (int i = 0; i < counts.length; ++i) {
+            seen += counts[i];
+            if (seen >= target) {
+                return Math.min(highestValueOf(i), max);
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Returns a single line that presents the distribution of the values.
+     */
+    @Override
+    public String toString() {
+        return String.format("n=%d mean=%.1f min=%d p50=%d p90=%d p99=%d max=%d",
+                count, getMean(), getMin(), getValueAtPercentile(50), getValueAtPercentile(90),
+                getValueAtPercentile(99), getMax());
+    }
+}
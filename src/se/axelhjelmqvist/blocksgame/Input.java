@@ -1,14 +1,19 @@
 package se.axelhjelmqvist.blocksgame;
 
 import android.view.MotionEvent;
-import java.util.TreeMap;
-import java.util.ArrayList;
+import java.util.Arrays;
 import android.graphics.Rect;
 
 /**
  * Class that receives and tracks MotionEvents in relation to rectangles.
  * It invokes callbacks to indicate if a logical button is depressed or
  * not. Handles the input of the game.
+ *
+ * The MotionEvents are handled on the UI thread and the button events are
+ * read on the game thread. They are passed through an EventRing, so neither
+ * thread waits for the other and the events are read in the order they
+ * happened. The pointers are only tracked on the UI thread, and the state
+ * of the buttons is only written there.
  */
 public class Input {
     /**
@@ -18,17 +23,20 @@ public class Input {
     private class ButtonRecord {
         public Rect area;
 
-        public ArrayList<Integer> activePointers;
+        /**
+         * The number of pointers that are on the button.
+         */
+        public int activePointers;
 
-        public int state;
+        public volatile int state;
 
-        public long downTick;
+        public volatile long downTick;
 
         /**
          * Constructor that initializes the ButtonRecord values.
          */
         public ButtonRecord() {
-            activePointers = new ArrayList<Integer>();
+            activePointers = 0;
         }
     }
 
@@ -43,14 +51,19 @@ public class Input {
     public class EventData {
         public int button, state;
 
-        public volatile boolean consumed;
+        /**
+         * The time of the MotionEvent that caused the event and the time
+         * that the event was put in the queue, in the nanoseconds of
+         * System.nanoTime.
+         */
+        public long timeNanos, enqueueNanos;
 
         /**
          * Constructor of the EventData class. Initializes
          * the state according to the arguments.
          */
-        public EventData(int id, int state) {
-            set(id, state);
+        public EventData(int id, int state, long timeNanos, long enqueueNanos) {
+            set(id, state, timeNanos, enqueueNanos);
         }
         
         /**
@@ -58,26 +71,40 @@ public class Input {
          * EventData instance. This is handy because the objects
          * are retained and reused to limit GC-freezes of the application.
          */
-        public void set(int id, int state) {
+        public void set(int id, int state, long timeNanos, long enqueueNanos) {
             button = id;
             this.state = state;
-            consumed = false;
+            this.timeNanos = timeNanos;
+            this.enqueueNanos = enqueueNanos;
         }
     }
 
-    Object inputLock;
-
-    TreeMap<Integer, Integer> pointerToButton;
+    /**
+     * The number of button events that can wait to be read by the game.
+     */
+    final static int EVENT_CAPACITY = 64;
 
-    ArrayList<ButtonRecord> buttons;
+    /**
+     * The button that each pointer id is on, or -1. Pointer ids are small
+     * integers, and the array grows if a larger one appears. An array is used
+     * instead of a map so that no boxed integers are created by the events.
+     */
+    int[] pointerToButton;
 
-    ArrayList<EventData> events;
+    /**
+     * The buttons, replaced by a longer copy when a button is added so that
+     * the UI thread always sees a complete array.
+     */
+    volatile ButtonRecord[] buttons;
 
-    ArrayList<EventData> buttonEvents;
+    EventRing buttonEvents;
 
-    EventData lastEvent;
+    /**
+     * The event that getEvent returns, which is valid until the next call.
+     */
+    EventData event;
 
-    long ticks;
+    volatile long ticks;
 
     /**
      * Constructor of the (touch-) Input handler class. This initializes
@@ -85,31 +112,30 @@ public class Input {
      * datastructures that are retained as class members.
      */
     public Input() {
-        inputLock = new Object();
-        pointerToButton = new TreeMap<Integer, Integer>();
-        buttons = new ArrayList<ButtonRecord>();
-        buttonEvents = new ArrayList<EventData>();
-        events = new ArrayList<EventData>();
-        lastEvent = null;
+        pointerToButton = new int[16];
+        Arrays.fill(pointerToButton, -1);
+        buttons = new ButtonRecord[0];
+        buttonEvents = new EventRing(EVENT_CAPACITY);
+        event = new EventData(-1, -1, 0, 0);
         ticks = 0;
 	}
 
     /**
      * Adds a logical button that is tracked by the Input handler class. The
      * button is represented as a logical rectangle. The button can be tracked
-     * from the outside using the returned integer id.
+     * from the outside using the returned integer id. Buttons are added by
+     * the game thread.
      */
 	public int addButton(float x, float y, float width, float height) {
         ButtonRecord record = new ButtonRecord();
         record.area = new Rect((int)x, (int)y, (int)(x + width), (int)(y + height));
         record.state = 0;
         record.downTick = 0;
-        int buttonsCount = 0;
-        synchronized (inputLock) {
-            buttons.add(record);
-            buttonsCount = buttons.size();
-        }
-        return buttonsCount - 1;
+        ButtonRecord[] grown = new ButtonRecord[buttons.length + 1];
+        System.arraycopy(buttons, 0, grown, 0, buttons.length);
+        grown[buttons.length] = record;
+        buttons = grown;
+        return grown.length - 1;
     }
 
 	/**
@@ -119,37 +145,40 @@ public class Input {
 	 * It can also be not known, represented as -1. 
 	 */
     public int checkButton(int id) {
-        ButtonRecord result = null;
-        synchronized (inputLock) {
-            if (id < buttons.size()) {
-                result = buttons.get(id);
-                if (result.state == 1 && result.downTick < ticks) {
-                    ++result.state;
-                }
-            }
+        ButtonRecord[] records = buttons;
+        if (id < 0 || id >= records.length) {
+            return -1;
+        }
+        ButtonRecord record = records[id];
+        int state = record.state;
+        if (state == 1 && record.downTick < ticks) {
+            state = 2;
         }
-        return result == null ? -1 : result.state;
+        return state;
     }
 
     /**
-     * Method that is used to pop a new event out of the event queue.
-     * If no events are available, null will be returned.
-     * @return
+     * Method that is used to take the oldest event out of the event queue,
+     * from the game thread. If no events are available, null will be
+     * returned. The returned object is reused, and is only valid until the
+     * next call.
      */
     public EventData getEvent() {
-        EventData result = null;
-        synchronized(inputLock) {
-            if (lastEvent != null) {
-                lastEvent.consumed = true;
-            }
-            int eventsCount = buttonEvents.size();
-            if (eventsCount > 0) {
-                result = buttonEvents.remove(eventsCount - 1);
-                events.add(result);
-            }
+        if (buttonEvents.isEmpty()) {
+            return null;
         }
-        lastEvent = result;
-        return result;
+        event.set(buttonEvents.getButton(), buttonEvents.getState(), buttonEvents.getTimeNanos(),
+                buttonEvents.getEnqueueNanos());
+        buttonEvents.remove();
+        return event;
+    }
+
+    /**
+     * Returns the number of button events that have been lost because the
+     * game did not read them fast enough.
+     */
+    public long getDroppedEvents() {
+        return buttonEvents.getDropped();
     }
 
     /**
@@ -158,41 +187,46 @@ public class Input {
      * from a continuously pressed button.
      */
     public void updateState() {
-        synchronized (inputLock) {
-            ++ticks;
-        }
+        ticks = ticks + 1;
     }
 
     /**
-     * Creates an updated button event and puts it on the stack.
-     * Handles logic to reuse old EventData object instances.
-     * If a lot of events happens in a sufficiently short amount of
-     * time, the Input handler class can hog a lot of memory. This
-     * is tolerated because the alternative is either introducing
-     * more advanced logic to trim the reusable event queue or
-     * instantiating a new object for each and every touch input.
-     * The latter case would likely introduce a significant amount of
-     * stutter (of a duration on the order of several tens of milliseconds)
-     * due to garbage collection freezes.
+     * Puts a button event at the end of the queue. If the game has fallen so
+     * far behind that the queue is full the event is dropped, the state of
+     * the button can still be polled with checkButton.
      */
-    private void createEvent(int button, int state) {
-        EventData event = null;
-        int counter = 0;
-        while (event == null && counter < events.size()) {
-            event = events.get(counter);
-            if (!event.consumed) {
-                event = null;
-            } else {
-                events.remove(counter);
-            }
-            ++counter;
-        }
-        if (event == null) {
-            event = new EventData(button, state);
-        } else {
-            event.set(button, state);
+    private void createEvent(int button, int state, long timeNanos) {
+        buttonEvents.offer(button, state, timeNanos, System.nanoTime());
+    }
+
+    /**
+     * Returns the button that a pointer is on, or -1 if it is on none.
+     */
+    private int getPointerButton(int pointerId) {
+        return pointerId >= 0 && pointerId < pointerToButton.length ? pointerToButton[pointerId] : -1;
+    }
+
+    /**
+     * Sets the button that a pointer is on, or -1 if it is on none.
+     */
+    private void setPointerButton(int pointerId, int button) {
+        if (pointerId >= pointerToButton.length) {
+            int length = pointerToButton.length;
+            int[] grown = new int[Math.max(pointerId + 1, length * 2)];
+            System.arraycopy(pointerToButton, 0, grown, 0, length);
+            Arrays.fill(grown, length, grown.length, -1);
+            pointerToButton = grown;
         }
-        buttonEvents.add(event);
+        pointerToButton[pointerId] = button;
+    }
+
+    /**
+     * Returns the time of a MotionEvent in nanoseconds. The event time is in
+     * the milliseconds of SystemClock.uptimeMillis, which counts from the
+     * same monotonic clock as System.nanoTime on Android.
+     */
+    private static long getTimeNanos(MotionEvent event) {
+        return event.getEventTime() * 1000000L;
     }
 
     /**
@@ -206,19 +240,18 @@ public class Input {
         int pointerId = event.getPointerId(actionIndex);
         float pointX = event.getX(actionIndex);
         float pointY = event.getY(actionIndex);
-        synchronized(inputLock) {
-            // Find corresponding button - overlapping button/s is/are (an) error/s
-            if (!pointerToButton.containsKey(pointerId)) {
-                for (int i = 0; i < buttons.size(); ++i) {
-                    ButtonRecord record = buttons.get(i);
-                    if (record.area.contains((int)pointX, (int)pointY)) {
-                        pointerToButton.put(pointerId, i);
-                        record.activePointers.add(pointerId);
-                        if (record.state != 2) {
-                            record.state = 1;
-                            record.downTick = ticks;
-                            createEvent(i, 1);
-                        }
+        // Find corresponding button - overlapping button/s is/are (an) error/s
+        if (getPointerButton(pointerId) < 0) {
+            ButtonRecord[] records = buttons;
+            for (int i = 0; i < records.length; ++i) {
+                ButtonRecord record = records[i];
+                if (record.area.contains((int)pointX, (int)pointY)) {
+                    setPointerButton(pointerId, i);
+                    ++record.activePointers;
+                    if (record.state != 2) {
+                        record.downTick = ticks;
+                        record.state = 1;
+                        createEvent(i, 1, getTimeNanos(event));
                     }
                 }
             }
@@ -237,13 +270,9 @@ public class Input {
             float pointX = event.getX(i);
             float pointY = event.getY(i);
             int pointerId = event.getPointerId(i);
-            synchronized(inputLock) {
-                if (pointerToButton.containsKey(pointerId)) {
-                    ButtonRecord record = buttons.get(pointerToButton.get(pointerId));
-                    if (!record.area.contains((int)pointX, (int)pointY)) {
-                        removePointer(pointerId, record);
-                    }
-                }
+            int button = getPointerButton(pointerId);
+            if (button >= 0 && !buttons[button].area.contains((int)pointX, (int)pointY)) {
+                removePointer(pointerId, button, getTimeNanos(event));
             }
         }
     }
@@ -252,19 +281,14 @@ public class Input {
      * Helper method to remove a logical touch pointer that should
      * no longer be tracked (because a finger has been lifted...)
      */
-    private void removePointer(Integer pointerId, ButtonRecord record) {
-        int foundId = record.activePointers.size();
-        while (--foundId + 1 >= 0) {
-            if (record.activePointers.get(foundId) == pointerId) {
-                record.activePointers.remove(foundId);
-                foundId = -1;
-            }
-        }
-        if (record.activePointers.size() == 0) {
+    private void removePointer(int pointerId, int button, long timeNanos) {
+        ButtonRecord record = buttons[button];
+        --record.activePointers;
+        if (record.activePointers == 0) {
             record.state = 0;
-            createEvent(pointerToButton.get(pointerId), 0);
+            createEvent(button, 0, timeNanos);
         }
-        pointerToButton.remove(pointerId);
+        setPointerButton(pointerId, -1);
     }
 
     /**
@@ -286,11 +310,10 @@ public class Input {
             case (MotionEvent.ACTION_UP): /* should be the last pointer left on screen */
             case (MotionEvent.ACTION_POINTER_UP):
             case (MotionEvent.ACTION_CANCEL):
-                synchronized(inputLock) {
-                    int pointerId = event.getPointerId(event.getActionIndex());
-                    if (pointerToButton.containsKey(pointerId)) {
-                        removePointer(pointerId, buttons.get(pointerToButton.get(pointerId)));
-                    }
+                int pointerId = event.getPointerId(event.getActionIndex());
+                int button = getPointerButton(pointerId);
+                if (button >= 0) {
+                    removePointer(pointerId, button, getTimeNanos(event));
                 }
                 break;
         }
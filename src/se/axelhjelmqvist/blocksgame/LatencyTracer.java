@@ -0,0 +1,197 @@
+package se.axelhjelmqvist.blocksgame;
+
+/**
+ * Measures the latency of touches from the screen to the frame that shows
+ * their result. A touch is traced through four times: when the MotionEvent
+ * happened, when its button event was put in the queue on the UI thread,
+ * when the game took it out of the queue and when the engine acted on it.
+ * The trace is then kept until the next frame has been posted, which is the
+ * last time that the game can see. The latency between each stage and the
+ * whole latency are recorded in histograms, in microseconds.
+ *
+ * All of the methods are called on the game thread. Nothing is allocated
+ * after construction, except by toString.
+ */
+public class LatencyTracer {
+    public final static int TOUCH_TO_ENQUEUE = 0;
+    public final static int ENQUEUE_TO_DEQUEUE = 1;
+    public final static int DEQUEUE_TO_ACTION = 2;
+    public final static int ACTION_TO_POST = 3;
+    public final static int TOUCH_TO_POST = 4;
+    public final static int STAGE_COUNT = 5;
+
+    final static String[] STAGE_NAMES = {
+        "touch-enqueue", "enqueue-dequeue", "dequeue-action", "action-post", "touch-post"
+    };
+
+    /**
+     * The most traces that can wait for a frame, more are not recorded.
+     */
+    final static int PENDING_CAPACITY = 64;
+
+    final Clock clock;
+
+    final Histogram[] histograms;
+
+    final long[] touchTimes, enqueueTimes, dequeueTimes, actionTimes;
+
+    int pendingCount;
+
+    long overflows;
+
+    /**
+     * The text of the overlay, one line per stage, and the number of traces
+     * that it was written for.
+     */
+    final char[][] lines;
+
+    long linesCount;
+
+    /**
+     * Constructor of a tracer that takes the time of the later stages from
+     * the given clock. The clock must count the same nanoseconds as the times
+     * of the events, which on Android is System.nanoTime.
+     */
+    public LatencyTracer(Clock clock) {
+        this.clock = clock;
+        histograms = new Histogram[STAGE_COUNT];
+        lines = new char[STAGE_COUNT][];
+        for (int i = 0; i < STAGE_COUNT; ++i) {
+            histograms[i] = new Histogram();
+            lines[i] = new char[STAGE_NAMES[i].length() + 64];
+        }
+        touchTimes = new long[PENDING_CAPACITY];
+        enqueueTimes = new long[PENDING_CAPACITY];
+        dequeueTimes = new long[PENDING_CAPACITY];
+        actionTimes = new long[PENDING_CAPACITY];
+        pendingCount = 0;
+        overflows = 0;
+        linesCount = -1;
+    }
+
+    /**
+     * Constructor of a tracer that uses System.nanoTime.
+     */
+    public LatencyTracer() {
+        this(MonotonicClock.INSTANCE);
+    }
+
+    public Clock getClock() {
+        return clock;
+    }
+
+    /**
+     * Traces an event that the engine has just acted on, given the time of
+     * its touch, the time it was put in the queue and the time it was taken
+     * out of the queue. The action is timed now.
+     */
+    public void actionTaken(long touchNanos, long enqueueNanos, long dequeueNanos) {
+        if (pendingCount == PENDING_CAPACITY) {
+            ++overflows;
+            return;
+        }
+        touchTimes[pendingCount] = touchNanos;
+        enqueueTimes[pendingCount] = enqueueNanos;
+        dequeueTimes[pendingCount] = dequeueNanos;
+        actionTimes[pendingCount] = clock.nanoTime();
+        ++pendingCount;
+    }
+
+    /**
+     * Records the traces that wait for a frame, after the frame has been
+     * posted to the screen.
+     */
+    public void framePosted() {
+        if (pendingCount == 0) {
+            return;
+        }
+        long postNanos = clock.nanoTime();
+        for (int i = 0; i < pendingCount; ++i) {
+            record(TOUCH_TO_ENQUEUE, enqueueTimes[i] - touchTimes[i]);
+            record(ENQUEUE_TO_DEQUEUE, dequeueTimes[i] - enqueueTimes[i]);
+            record(DEQUEUE_TO_ACTION, actionTimes[i] - dequeueTimes[i]);
+            record(ACTION_TO_POST, postNanos - actionTimes[i]);
+            record(TOUCH_TO_POST, postNanos - touchTimes[i]);
+        }
+        pendingCount = 0;
+    }
+
+    private void record(int stage, long nanos) {
+        histograms[stage].record(nanos / 1000);
+    }
+
+    /**
+     * Returns the histogram of the latencies of a stage, in microseconds.
+     */
+    public Histogram getHistogram(int stage) {
+        return histograms[stage];
+    }
+
+    public static String getStageName(int stage) {
+        return STAGE_NAMES[stage];
+    }
+
+    /**
+     * Returns the number of traces that were not recorded because too many
+     * waited for a frame.
+     */
+    public long getOverflows() {
+        return overflows;
+    }
+
+    /**
+     * Removes every recorded latency.
+     */
+    public void reset() {
+        for (int i = 0; i < STAGE_COUNT; ++i) {
+            histograms[i].reset();
+        }
+        pendingCount = 0;
+        overflows = 0;
+        linesCount = -1;
+    }
+
+    /**
+     * Returns a line of text for the overlay that shows the median and the
+     * 99th percentile of a stage in milliseconds, such as
+     * "touch-post p50 12.3 p99 45.6 ms". The array is reused, and is only
+     * rewritten when more latencies have been recorded. The end of the text
+     * is filled with spaces.
+     */
+    public char[] getLine(int stage) {
+        if (linesCount != histograms[TOUCH_TO_POST].getCount()) {
+            linesCount = histograms[TOUCH_TO_POST].getCount();
+            for (int i = 0; i < STAGE_COUNT; ++i) {
+                writeLine(i);
+            }
+        }
+        return lines[stage];
+    }
+
+    private void writeLine(int stage) {
+        char[] line = lines[stage];
+        Histogram histogram = histograms[stage];
+        int position = TextTool.putText(line, 0, STAGE_NAMES[stage]);
+        position = TextTool.putText(line, position, " p50 ");
+        position = TextTool.putMillis(line, position, histogram.getValueAtPercentile(50));
+        position = TextTool.putText(line, position, " p99 ");
+        position = TextTool.putMillis(line, position, histogram.getValueAtPercentile(99));
+        position = TextTool.putText(line, position, " ms");
+        TextTool.padLine(line, position);
+    }
+
+    /**
+     * Returns a summary of every stage, one line each.
+     */
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < STAGE_COUNT; ++i) {
+            builder.append(STAGE_NAMES[i]).append(" us: ").append(histograms[i]).append('\n');
+        }
+        if (overflows != 0) {
+            builder.append("overflows: ").append(overflows).append('\n');
+        }
+        return builder.toString();
+    }
+}
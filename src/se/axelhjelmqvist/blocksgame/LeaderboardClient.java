@@ -0,0 +1,516 @@
+package se.axelhjelmqvist.blocksgame;
+
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Client of an online leaderboard that works offline first. It is an
+ * EngineListener, and the result of each round that ends is only put in a
+ * queue by the game thread. A sender thread keeps the results that have not
+ * been accepted by the server in an outbox, which is saved to a file so
+ * that they are sent after the app has been restarted, and which holds at
+ * most a fixed number of results, the oldest are dropped when it is full.
+ *
+ * The results are sent in batches, as a gzipped POST to the scores path of
+ * the server. A batch is sent when it is full or when its oldest result has
+ * waited for the batch delay, with a random part added so that clients that
+ * finish at the same moment do not send at the same moment. A batch that
+ * fails is sent again after a backoff that doubles up to a limit, also
+ * with a random part, or after the time that the server asks for with
+ * Retry-After. Each result has an id, the id of the installation and a
+ * sequence number, so a result that is sent again after an unanswered
+ * request is not counted twice by the server.
+ *
+ * The body of a batch is the magic number, the id of the installation and
+ * the number of results as big-endian int, long and int, and then for each
+ * result its sequence number, score, level and time in milliseconds as
+ * long, int, int and long.
+ */
+public class LeaderboardClient
+        implements EngineListener {
+    public final static int MAGIC = 0x42474c01;
+
+    final static int OUTBOX_MAGIC = 0x42474f01;
+    final static int OUTBOX_HEADER_SIZE = 24;
+    final static int OUTBOX_ENTRY_SIZE = 24;
+
+    final static int QUEUE_CAPACITY = 64;
+
+    final static int TIMEOUT_MILLIS = 15000;
+
+    /**
+     * A result of a round, or a request to send now or to stop.
+     */
+    private static class Entry {
+        int score, level;
+        long timeMillis;
+        CountDownLatch done;
+        boolean stop;
+    }
+
+    final URL scoresUrl, topUrl;
+
+    final File outboxFile;
+
+    final int capacity, batchSize;
+
+    final long batchDelayMillis, maxBackoffMillis;
+
+    final ArrayBlockingQueue<Entry> queue;
+
+    final XorShiftRandom random;
+
+    /**
+     * The outbox, owned by the sender thread: the results in the order they
+     * ended, with their sequence numbers and the time they were queued.
+     */
+    long[] sequences, times, queuedTimes;
+
+    int[] scores, levels;
+
+    int count;
+
+    long installId, nextSequence;
+
+    long backoffMillis, nextAttemptMillis;
+
+    volatile long sent, batches, failures, dropped;
+
+    volatile IOException error;
+
+    Thread sender;
+
+    /**
+     * Constructor of a client of the server at the given base URL, that keeps
+     * its outbox in the given file. The outbox holds at most capacity results,
+     * and a batch holds at most batchSize results and is sent when its oldest
+     * result has waited for batchDelayMillis, or up to twice that. A failed
+     * batch waits from one second up to maxBackoffMillis.
+     */
+    public LeaderboardClient(URL server, File outboxFile, int capacity, int batchSize,
+            long batchDelayMillis, long maxBackoffMillis) throws IOException {
+        scoresUrl = new URL(server, "scores");
+        topUrl = new URL(server, "top");
+        this.outboxFile = outboxFile;
+        this.capacity = capacity;
+        this.batchSize = batchSize;
+        this.batchDelayMillis = batchDelayMillis;
+        this.maxBackoffMillis = maxBackoffMillis;
+        queue = new ArrayBlockingQueue<Entry>(QUEUE_CAPACITY);
+        random = new XorShiftRandom(System.nanoTime() ^ outboxFile.hashCode());
+        sequences = new long[capacity];
+        times = new long[capacity];
+        queuedTimes = new long[capacity];
+        scores = new int[capacity];
+        levels = new int[capacity];
+        count = 0;
+        backoffMillis = 0;
+        nextAttemptMillis = 0;
+        sent = batches = failures = dropped = 0;
+        error = null;
+        loadOutbox();
+        sender = new Thread(new Runnable() {
+            public void run() {
+                send();
+            }
+        }, "LeaderboardClient");
+        sender.setDaemon(true);
+        sender.start();
+    }
+
+    /**
+     * Constructor of a client that sends batches of up to 50 results after
+     * at most a minute, keeps up to 1000 results and backs off for up to an
+     * hour.
+     */
+    public LeaderboardClient(URL server, File outboxFile) throws IOException {
+        this(server, outboxFile, 1000, 50, 60000, 3600000);
+    }
+
+    /**
+     * Reads the outbox file, or creates a new id of the installation if there
+     * is none. A damaged outbox is started over with a new id.
+     */
+    private void loadOutbox() throws IOException {
+        installId = 0;
+        if (outboxFile.exists()) {
+            RandomAccessFile file = new RandomAccessFile(outboxFile, "r");
+            try {
+                ByteBuffer buffer = ByteBuffer.allocate((int)file.length()).order(ByteOrder.LITTLE_ENDIAN);
+                FileChannel channel = file.getChannel();
+                while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                    // Read until full
+                }
+                // A file too short for the header and the checksum is damaged
+                int stored = buffer.limit() >= OUTBOX_HEADER_SIZE + 4 ? buffer.getInt(20) : -1;
+                if (stored >= 0 && buffer.getInt(0) == OUTBOX_MAGIC
+                        && buffer.limit() == OUTBOX_HEADER_SIZE + (long)stored * OUTBOX_ENTRY_SIZE + 4
+                        && buffer.getInt(buffer.limit() - 4) == checksum(buffer, buffer.limit() - 4)) {
+                    installId = buffer.getLong(4);
+                    nextSequence = buffer.getLong(12);
+                    long now = System.currentTimeMillis();
+                    for (int i = 0; i < stored; ++i) {
+                        int position = OUTBOX_HEADER_SIZE + i * OUTBOX_ENTRY_SIZE;
+                        add(buffer.getLong(position), buffer.getInt(position + 8), buffer.getInt(position + 12),
+                                buffer.getLong(position + 16), now);
+                    }
+                }
+            } finally {
+                file.close();
+            }
+        }
+        if (installId == 0) {
+            // The jitter random is seeded from the clock, which two installs
+            // can share, so the id comes from the secure random
+            installId = new SecureRandom().nextLong() | 1;
+            nextSequence = 0;
+            saveOutbox();
+        }
+    }
+
+    /**
+     * Writes the outbox to a temporary file and renames it over the outbox
+     * file, so the file is whole after a crash.
+     */
+    private void saveOutbox() throws IOException {
+        int length = OUTBOX_HEADER_SIZE + count * OUTBOX_ENTRY_SIZE + 4;
+        ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(0, OUTBOX_MAGIC);
+        buffer.putLong(4, installId);
+        buffer.putLong(12, nextSequence);
+        buffer.putInt(20, count);
+        for (int i = 0; i < count; ++i) {
+            int position = OUTBOX_HEADER_SIZE + i * OUTBOX_ENTRY_SIZE;
+            buffer.putLong(position, sequences[i]);
+            buffer.putInt(position + 8, scores[i]);
+            buffer.putInt(position + 12, levels[i]);
+            buffer.putLong(position + 16, times[i]);
+        }
+        buffer.putInt(length - 4, checksum(buffer, length - 4));
+        File temporary = new File(outboxFile.getPath() + ".tmp");
+        RandomAccessFile file = new RandomAccessFile(temporary, "rw");
+        try {
+            file.setLength(0);
+            FileChannel channel = file.getChannel();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        } finally {
+            file.close();
+        }
+        if (!temporary.renameTo(outboxFile)) {
+            throw new IOException("Could not replace " + outboxFile);
+        }
+    }
+
+    private static int checksum(ByteBuffer buffer, int length) {
+        CRC32 crc = new CRC32();
+        for (int i = 0; i < length; ++i) {
+            crc.update(buffer.get(i));
+        }
+        return (int)crc.getValue();
+    }
+
+    /**
+     * Adds a result to the end of the outbox, dropping the oldest result if
+     * it is full.
+     */
+    private void add(long sequence, int score, int level, long timeMillis, long queuedMillis) {
+        if (count == capacity) {
+            remove(1);
+            ++dropped;
+        }
+        sequences[count] = sequence;
+        scores[count] = score;
+        levels[count] = level;
+        times[count] = timeMillis;
+        queuedTimes[count] = queuedMillis;
+        ++count;
+    }
+
+    /**
+     * Removes the given number of results from the start of the outbox.
+     */
+    private void remove(int removed) {
+        count -= removed;
+        System.arraycopy(sequences, removed, sequences, 0, count);
+        System.arraycopy(scores, removed, scores, 0, count);
+        System.arraycopy(levels, removed, levels, 0, count);
+        System.arraycopy(times, removed, times, 0, count);
+        System.arraycopy(queuedTimes, removed, queuedTimes, 0, count);
+    }
+
+    /**
+     * The loop of the sender thread.
+     */
+    private void send() {
+        ArrayList<CountDownLatch> waiting = new ArrayList<CountDownLatch>();
+        boolean running = true;
+        long batchDeadline = 0;
+        while (running) {
+            long now = System.currentTimeMillis();
+            // Wait for the next result, for the batch to be due or for the
+            // backoff to end
+            long wait = Long.MAX_VALUE;
+            if (count > 0) {
+                if (batchDeadline == 0) {
+                    batchDeadline = queuedTimes[0] + batchDelayMillis + random.nextInt((int)Math.min(batchDelayMillis + 1, Integer.MAX_VALUE));
+                }
+                long due = count >= batchSize ? now : batchDeadline;
+                wait = Math.max(Math.max(due, nextAttemptMillis) - now, 0);
+            }
+            boolean changed = false, sendNow = false;
+            try {
+                Entry entry = wait == Long.MAX_VALUE ? queue.take() : queue.poll(wait, TimeUnit.MILLISECONDS);
+                while (entry != null) {
+                    if (entry.stop) {
+                        running = false;
+                    } else if (entry.done != null) {
+                        waiting.add(entry.done);
+                        sendNow = true;
+                    } else {
+                        add(nextSequence++, entry.score, entry.level, entry.timeMillis, System.currentTimeMillis());
+                        changed = true;
+                    }
+                    entry = queue.poll();
+                }
+            } catch (InterruptedException e) {
+                running = false;
+            }
+            try {
+                if (changed) {
+                    saveOutbox();
+                }
+                now = System.currentTimeMillis();
+                boolean due = count >= batchSize || (batchDeadline != 0 && now >= batchDeadline);
+                if (count > 0 && (sendNow || ((due || !running) && now >= nextAttemptMillis))) {
+                    // A flush or the end of the client sends everything that it can
+                    boolean ok = true;
+                    do {
+                        ok = sendBatch();
+                    } while (ok && count > 0 && (sendNow || !running));
+                    batchDeadline = 0;
+                }
+            } catch (IOException e) {
+                error = e;
+            }
+            for (int i = 0; i < waiting.size(); ++i) {
+                waiting.get(i).countDown();
+            }
+            waiting.clear();
+        }
+    }
+
+    /**
+     * Sends the oldest results of the outbox as one batch. Returns true if the
+     * server accepted them, and otherwise sets the backoff.
+     */
+    private boolean sendBatch() throws IOException {
+        int batch = Math.min(count, batchSize);
+        ++batches;
+        int retryAfter = -1;
+        boolean ok = false;
+        try {
+            HttpURLConnection connection = (HttpURLConnection)scoresUrl.openConnection();
+            connection.setConnectTimeout(TIMEOUT_MILLIS);
+            connection.setReadTimeout(TIMEOUT_MILLIS);
+            connection.setDoOutput(true);
+            connection.setRequestMethod("POST");
+            connection.setRequestProperty("Content-Type", "application/octet-stream");
+            connection.setRequestProperty("Content-Encoding", "gzip");
+            try {
+                OutputStream output = connection.getOutputStream();
+                DataOutputStream data = new DataOutputStream(new GZIPOutputStream(output));
+                data.writeInt(MAGIC);
+                data.writeLong(installId);
+                data.writeInt(batch);
+                for (int i = 0; i < batch; ++i) {
+                    data.writeLong(sequences[i]);
+                    data.writeInt(scores[i]);
+                    data.writeInt(levels[i]);
+                    data.writeLong(times[i]);
+                }
+                data.close();
+                int status = connection.getResponseCode();
+                ok = status == HttpURLConnection.HTTP_OK;
+                if (!ok && connection.getHeaderField("Retry-After") != null) {
+                    try {
+                        retryAfter = Integer.parseInt(connection.getHeaderField("Retry-After").trim());
+                    } catch (NumberFormatException e) {
+                        // Only a number of seconds is understood
+                    }
+                }
+                drain(ok ? connection.getInputStream() : connection.getErrorStream());
+            } finally {
+                connection.disconnect();
+            }
+        } catch (IOException e) {
+            error = e;
+        }
+        if (ok) {
+            sent += batch;
+            remove(batch);
+            saveOutbox();
+            backoffMillis = 0;
+            nextAttemptMillis = 0;
+        } else {
+            ++failures;
+            backoffMillis = Math.min(Math.max(backoffMillis * 2, 1000), maxBackoffMillis);
+            long delay = backoffMillis / 2 + random.nextInt((int)Math.min(backoffMillis / 2 + 1, Integer.MAX_VALUE));
+            if (retryAfter >= 0) {
+                delay = Math.max(delay, retryAfter * 1000L);
+            }
+            nextAttemptMillis = System.currentTimeMillis() + delay;
+        }
+        return ok;
+    }
+
+    private static void drain(InputStream input) throws IOException {
+        if (input == null) {
+            return;
+        }
+        byte[] buffer = new byte[256];
+        while (input.read(buffer) >= 0) {
+            // Read the response so that the connection can be reused
+        }
+        input.close();
+    }
+
+    /**
+     * Queues the result of a round without waiting. Returns false, and counts
+     * the result as dropped, if the sender has fallen too far behind.
+     */
+    public boolean submit(int score, int level, long timeMillis) {
+        Entry entry = new Entry();
+        entry.score = score;
+        entry.level = level;
+        entry.timeMillis = timeMillis;
+        if (!queue.offer(entry)) {
+            ++dropped;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Sends the queued results now, without waiting for the batch delay or
+     * the backoff, and waits until that has been tried.
+     */
+    public void flush() throws InterruptedException {
+        Entry entry = new Entry();
+        entry.done = new CountDownLatch(1);
+        queue.put(entry);
+        entry.done.await();
+    }
+
+    /**
+     * Tries to send the queued results once more, saves the rest in the
+     * outbox and stops the sender.
+     */
+    public void close() throws InterruptedException {
+        Entry entry = new Entry();
+        entry.stop = true;
+        queue.put(entry);
+        sender.join();
+    }
+
+    /**
+     * Fetches the best scores from the server. This waits for the network, so
+     * it must not be called on the game thread.
+     */
+    public int[] fetchTop(int count) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection)new URL(topUrl, "top?count=" + count).openConnection();
+        connection.setConnectTimeout(TIMEOUT_MILLIS);
+        connection.setReadTimeout(TIMEOUT_MILLIS);
+        try {
+            if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                throw new IOException("The server answered " + connection.getResponseCode());
+            }
+            BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream(), "UTF-8"));
+            int[] result = new int[count];
+            int found = 0;
+            String line;
+            while (found < count && (line = reader.readLine()) != null) {
+                if (line.length() > 0) {
+                    result[found++] = Integer.parseInt(line.trim());
+                }
+            }
+            reader.close();
+            int[] top = new int[found];
+            System.arraycopy(result, 0, top, 0, found);
+            return top;
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    public long getInstallId() {
+        return installId;
+    }
+
+    /**
+     * Returns the number of results that the server has accepted.
+     */
+    public long getSent() {
+        return sent;
+    }
+
+    /**
+     * Returns the number of batches that have been sent, and the number of
+     * them that failed.
+     */
+    public long getBatches() {
+        return batches;
+    }
+
+    public long getFailures() {
+        return failures;
+    }
+
+    /**
+     * Returns the number of results that were lost because the queue or the
+     * outbox was full.
+     */
+    public long getDropped() {
+        return dropped;
+    }
+
+    /**
+     * Returns the last error, or null if there has been none.
+     */
+    public IOException getError() {
+        return error;
+    }
+
+    public void shapeMoved(BlocksgameEngine engine) {
+    }
+
+    public void shapeLocked(BlocksgameEngine engine, int lines) {
+    }
+
+    /**
+     * Queues the result of the round that ended.
+     */
+    public void roundEnded(BlocksgameEngine engine, int finalScore) {
+        submit(finalScore, engine.score.levelMultiplier, System.currentTimeMillis());
+    }
+}
@@ -0,0 +1,92 @@
+package se.axelhjelmqvist.blocksgame;
+
+/**
+ * A heuristic that rates a board as a weighted sum of a few features: the
+ * sum of the heights of the columns, the number of rows that were completed,
+ * the number of holes (empty cells with an occupied cell somewhere above
+ * them) and the bumpiness (the sum of the differences in height between
+ * neighbouring columns). A higher value is a better board. The features
+ * are calculated from the occupancy masks of the rows, see BoardTool.
+ * An instance keeps scratch arrays and must only be used by one thread.
+ */
+public class LinearHeuristic {
+    public final static int AGGREGATE_HEIGHT = 0, COMPLETE_LINES = 1, HOLES = 2, BUMPINESS = 3;
+
+    public final static int FEATURES = 4;
+
+    /**
+     * Weights that are known to play well on a ten column wide board.
+     */
+    public final static double[] DEFAULT_WEIGHTS = new double[] {
+            -0.510066, 0.760666, -0.35663, -0.184483
+    };
+
+    private double[] weights;
+
+    private int[] heights;
+
+    /**
+     * Constructor of a heuristic with the default weights.
+     */
+    public LinearHeuristic() {
+        this(DEFAULT_WEIGHTS);
+    }
+
+    /**
+     * Constructor of a heuristic with the given weights, one for each feature.
+     */
+    public LinearHeuristic(double[] weights) {
+        this.weights = new double[FEATURES];
+        heights = new int[32];
+        setWeights(weights);
+    }
+
+    /**
+     * Sets the weights of the features. The weights are copied.
+     */
+    public void setWeights(double[] weights) {
+        if (weights.length != FEATURES) {
+            throw new IllegalArgumentException("There must be " + FEATURES + " weights");
+        }
+        System.arraycopy(weights, 0, this.weights, 0, FEATURES);
+    }
+
+    /**
+     * Returns the weights of the features. The array must not be modified.
+     */
+    public double[] getWeights() {
+        return weights;
+    }
+
+    /**
+     * Rates the board of the given size, after the given number of lines
+     * were completed and removed from it.
+     */
+    public double evaluate(int[] rows, int sizeX, int sizeY, int lines) {
+        int boardMask = ((1 << sizeX) - 1) << BlocksgameEngine.WALL_BITS;
+        for (int i = 0; i < sizeX; ++i) {
+            heights[i] = 0;
+        }
+        int covered = 0, holes = 0;
+        for (int y = 0; y < sizeY; ++y) {
+            int row = rows[BlocksgameEngine.ROW_PADDING + y] & boardMask;
+            // Columns that have their topmost block in this row
+            int tops = row & ~covered;
+            while (tops != 0) {
+                heights[Integer.numberOfTrailingZeros(tops) - BlocksgameEngine.WALL_BITS] = sizeY - y;
+                tops &= tops - 1;
+            }
+            covered |= row;
+            holes += Integer.bitCount(covered & ~row);
+        }
+        int aggregateHeight = heights[0], bumpiness = 0;
+        for (int i = 1; i < sizeX; ++i) {
+            aggregateHeight += heights[i];
+            bumpiness += Math.abs(heights[i] - heights[i - 1]);
+        }
+        return weights[AGGREGATE_HEIGHT] * aggregateHeight
+                + weights[COMPLETE_LINES] * lines
+                + weights[HOLES] * holes
+                + weights[BUMPINESS] * bumpiness;
+    }
+}
@@ -0,0 +1,479 @@
+package se.axelhjelmqvist.blocksgame;
+
+import java.io.IOException;
+import java.net.PortUnreachableException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * A versus game of two players over UDP, where the engines of both players
+ * run on both devices in lockstep. Both engines start from the same seed, so
+ * both players get the same shapes, and are updated with the same fixed time
+ * step, so only the input actions have to be sent. Since the engine is
+ * deterministic, both devices then play the same two games, and the round
+ * ends for both at the same tick, when either player's board is full.
+ *
+ * An action of the local player is played inputDelay ticks after the tick it
+ * was made in, which gives it that long to reach the other device. A tick is
+ * only played when the input of the other player is known up to it, if it is
+ * not the session stalls and tries again at the next poll.
+ *
+ * Every SEND_INTERVAL polls a packet is sent with every action that the
+ * other device has not acknowledged, so a lost packet is made up for by the
+ * next one without resending on timeouts. The ticks of the actions are sent
+ * as differences, in the varints of the replay format, and a packet without
+ * actions is a few bytes. Every HASH_INTERVAL ticks both devices hash both
+ * engines, and the packets carry the latest hash, so a desync is found
+ * within a second or two and ends the session.
+ *
+ * A packet is the MAGIC byte followed by varints: the number of ticks of
+ * input of the sender that are final, then that number minus the number of
+ * ticks of the receiver's input that the sender has, minus the tick the
+ * actions start from and the number of actions. Each action is a varint of
+ * the ticks since the previous one shifted left three bits, or:ed with the
+ * action. Last is the final ticks minus the tick of the hash, and the hash
+ * as four bytes, big-endian, if that tick is not zero.
+ *
+ * The session is not synchronized, it is used by the game thread only. The
+ * channel must be connected to the other device and non-blocking.
+ */
+public class LockstepSession
+        implements EngineListener {
+    public final static int PLAYING = 0, WON = 1, LOST = 2, DRAW = 3, DESYNC = 4;
+
+    public final static float TICK_SECONDS = BlocksgameEngine.TICK_SECONDS;
+
+    public final static int DEFAULT_INPUT_DELAY = 6;
+
+    final static byte MAGIC = 'L';
+
+    final static int SEND_INTERVAL = 3;
+
+    final static int HASH_INTERVAL = 60;
+
+    final static int HASH_HISTORY = 8;
+
+    /**
+     * The number of actions of a player that are kept, a power of two.
+     */
+    final static int EVENT_CAPACITY = 256;
+
+    final static int PENDING_CAPACITY = 16;
+
+    final static int PACKET_SIZE = 1024;
+
+    /**
+     * The bytes of the IPv4 and UDP headers of a packet, which are counted in
+     * the bytes sent.
+     */
+    final static int HEADER_BYTES = 28;
+
+    final DatagramChannel channel;
+
+    final BlocksgameEngine[] engines;
+
+    final int localPlayer, remotePlayer;
+
+    final int inputDelay;
+
+    final byte[] sendData, receiveData;
+
+    final ByteBuffer sendBuffer, receiveBuffer;
+
+    /**
+     * The actions of each player, in the order they are played, in rings
+     * where eventStart is the oldest that is kept, eventApplied the next to
+     * be played and eventEnd the next free. The indices only grow.
+     */
+    final int[][] eventTicks;
+
+    final byte[][] eventActions;
+
+    final int[] eventStart, eventApplied, eventEnd;
+
+    /**
+     * The actions of a packet that is being read, before it is accepted.
+     */
+    final int[] packetTicks;
+
+    final byte[] packetActions;
+
+    int readPosition, readLength;
+
+    final byte[] pending;
+
+    int pendingCount;
+
+    /**
+     * The ticks that both engines have made.
+     */
+    int tick;
+
+    /**
+     * The number of ticks of the input of each player that are final, and
+     * the number of ticks of the local input that the other device has.
+     */
+    int localKnown, remoteKnown, remoteAck;
+
+    final long[] hashes;
+
+    final int[] hashTicks;
+
+    /**
+     * The latest hash of the other device that has not been checked yet, and
+     * the tick of the last hash that has been.
+     */
+    int remoteHashTick, remoteHash, checkedHashTick;
+
+    final boolean[] ended;
+
+    int state;
+
+    int polls;
+
+    long packetsSent, bytesSent, packetsReceived, badPackets, stalls, hashesChecked, droppedActions;
+
+    /**
+     * Constructor of a session of the given player, zero or one, that plays
+     * boards of the given size from the given seed. Both devices must give
+     * the same seed, size and input delay, and different players.
+     */
+    public LockstepSession(DatagramChannel channel, int localPlayer, long seed, int sizeX, int sizeY,
+            int inputDelay) {
+        this.channel = channel;
+        this.localPlayer = localPlayer;
+        remotePlayer = 1 - localPlayer;
+        this.inputDelay = inputDelay;
+        engines = new BlocksgameEngine[2];
+        for (int i = 0; i < 2; ++i) {
+            engines[i] = new BlocksgameEngine(sizeX, sizeY, seed);
+            engines[i].addListener(this);
+        }
+        sendData = new byte[PACKET_SIZE];
+        receiveData = new byte[PACKET_SIZE];
+        sendBuffer = ByteBuffer.wrap(sendData);
+        receiveBuffer = ByteBuffer.wrap(receiveData);
+        eventTicks = new int[2][EVENT_CAPACITY];
+        eventActions = new byte[2][EVENT_CAPACITY];
+        eventStart = new int[2];
+        eventApplied = new int[2];
+        eventEnd = new int[2];
+        packetTicks = new int[EVENT_CAPACITY];
+        packetActions = new byte[EVENT_CAPACITY];
+        pending = new byte[PENDING_CAPACITY];
+        pendingCount = 0;
+        tick = 0;
+        // Nothing is played in the first ticks, both devices know that
+        localKnown = remoteKnown = inputDelay;
+        remoteAck = 0;
+        hashes = new long[HASH_HISTORY];
+        hashTicks = new int[HASH_HISTORY];
+        remoteHashTick = checkedHashTick = 0;
+        ended = new boolean[2];
+        state = PLAYING;
+        polls = 0;
+    }
+
+    /**
+     * Queues an input action of the local player, one of the actions of
+     * Replay, to be played at the next tick plus the input delay.
+     */
+    public void perform(int action) {
+        if (pendingCount == PENDING_CAPACITY) {
+            ++droppedActions;
+            return;
+        }
+        pending[pendingCount++] = (byte)action;
+    }
+
+    /**
+     * Reads the packets that have arrived, plays a tick if the input of both
+     * players is known up to it and sends a packet if it is time to. This is
+     * called once for every tick of the game loop. Returns true if a tick was
+     * played.
+     */
+    public boolean poll() throws IOException {
+        receive();
+        boolean played = false;
+        if (state == PLAYING) {
+            int local = eventEnd[localPlayer] - eventStart[localPlayer];
+            if (remoteKnown > tick && local + pendingCount <= EVENT_CAPACITY) {
+                play();
+                played = true;
+            } else {
+                ++stalls;
+            }
+        }
+        if (++polls % SEND_INTERVAL == 0) {
+            send();
+        }
+        return played;
+    }
+
+    private void play() {
+        // The actions since the last tick are played inputDelay ticks from now
+        int target = tick + inputDelay;
+        for (int i = 0; i < pendingCount; ++i) {
+            add(localPlayer, target, pending[i]);
+        }
+        pendingCount = 0;
+        localKnown = target + 1;
+        for (int player = 0; player < 2; ++player) {
+            int[] ticks = eventTicks[player];
+            byte[] actions = eventActions[player];
+            while (eventApplied[player] < eventEnd[player]
+                    && ticks[eventApplied[player] & (EVENT_CAPACITY - 1)] == tick) {
+                Replay.perform(engines[player], actions[eventApplied[player] & (EVENT_CAPACITY - 1)]);
+                ++eventApplied[player];
+            }
+            engines[player].update(TICK_SECONDS);
+        }
+        ++tick;
+        eventStart[remotePlayer] = eventApplied[remotePlayer];
+        trimLocal();
+        if (tick % HASH_INTERVAL == 0) {
+            int slot = (tick / HASH_INTERVAL) % HASH_HISTORY;
+            hashTicks[slot] = tick;
+            hashes[slot] = engines[0].getStateHash() * 31 + engines[1].getStateHash();
+            compareHashes();
+        }
+        if (state == PLAYING && (ended[0] || ended[1])) {
+            state = ended[0] && ended[1] ? DRAW : ended[localPlayer] ? LOST : WON;
+        }
+    }
+
+    private void add(int player, int tick, int action) {
+        int index = eventEnd[player]++ & (EVENT_CAPACITY - 1);
+        eventTicks[player][index] = tick;
+        eventActions[player][index] = (byte)action;
+    }
+
+    /**
+     * Forgets the local actions that have been played and that the other
+     * device has.
+     */
+    private void trimLocal() {
+        int[] ticks = eventTicks[localPlayer];
+        while (eventStart[localPlayer] < eventApplied[localPlayer]
+                && ticks[eventStart[localPlayer] & (EVENT_CAPACITY - 1)] < remoteAck) {
+            ++eventStart[localPlayer];
+        }
+    }
+
+    private void compareHashes() {
+        int slot = (remoteHashTick / HASH_INTERVAL) % HASH_HISTORY;
+        if (remoteHashTick != 0 && hashTicks[slot] == remoteHashTick) {
+            ++hashesChecked;
+            if (fold(hashes[slot]) != remoteHash) {
+                state = DESYNC;
+            }
+            // Each hash is checked once
+            checkedHashTick = remoteHashTick;
+            remoteHashTick = 0;
+        }
+    }
+
+    private static int fold(long hash) {
+        return (int)(hash ^ (hash >>> 32));
+    }
+
+    private void send() throws IOException {
+        int base = remoteAck;
+        int position = 0;
+        sendData[position++] = MAGIC;
+        position = Replay.writeVarint(sendData, position, localKnown);
+        position = Replay.writeVarint(sendData, position, localKnown - remoteKnown);
+        position = Replay.writeVarint(sendData, position, localKnown - base);
+        int[] ticks = eventTicks[localPlayer];
+        int first = eventStart[localPlayer];
+        while (first < eventEnd[localPlayer] && ticks[first & (EVENT_CAPACITY - 1)] < base) {
+            ++first;
+        }
+        position = Replay.writeVarint(sendData, position, eventEnd[localPlayer] - first);
+        int previous = base;
+        for (int i = first; i < eventEnd[localPlayer]; ++i) {
+            int index = i & (EVENT_CAPACITY - 1);
+            position = Replay.writeVarint(sendData, position,
+                    (long)(ticks[index] - previous) << 3 | eventActions[localPlayer][index]);
+            previous = ticks[index];
+        }
+        int slot = (tick / HASH_INTERVAL) % HASH_HISTORY;
+        int hashTick = hashTicks[slot] == tick - tick % HASH_INTERVAL ? hashTicks[slot] : 0;
+        position = Replay.writeVarint(sendData, position, localKnown - hashTick);
+        if (hashTick != 0) {
+            int hash = fold(hashes[slot]);
+            sendData[position++] = (byte)(hash >>> 24);
+            sendData[position++] = (byte)(hash >>> 16);
+            sendData[position++] = (byte)(hash >>> 8);
+            sendData[position++] = (byte)hash;
+        }
+        sendBuffer.clear();
+        sendBuffer.limit(position);
+        try {
+            channel.write(sendBuffer);
+            ++packetsSent;
+            bytesSent += position + HEADER_BYTES;
+        } catch (PortUnreachableException e) {
+            // The other device is not listening yet, the next packet is tried
+        }
+    }
+
+    private void receive() throws IOException {
+        while (true) {
+            receiveBuffer.clear();
+            int length;
+            try {
+                length = channel.read(receiveBuffer);
+            } catch (PortUnreachableException e) {
+                continue;
+            }
+            if (length <= 0) {
+                return;
+            }
+            ++packetsReceived;
+            try {
+                read(length);
+            } catch (IllegalArgumentException e) {
+                ++badPackets;
+            }
+        }
+    }
+
+    private void read(int length) {
+        readLength = length;
+        readPosition = 0;
+        if (readByte() != MAGIC) {
+            throw new IllegalArgumentException("Not a packet of a session");
+        }
+        int known = (int)readVarint();
+        int ack = known - (int)readVarint();
+        int base = known - (int)readVarint();
+        int count = (int)readVarint();
+        if (count > EVENT_CAPACITY) {
+            throw new IllegalArgumentException("Too many actions");
+        }
+        int previous = base;
+        for (int i = 0; i < count; ++i) {
+            long value = readVarint();
+            previous += (int)(value >>> 3);
+            packetTicks[i] = previous;
+            packetActions[i] = (byte)(value & 7);
+        }
+        int hashTick = known - (int)readVarint();
+        int hash = 0;
+        if (hashTick != 0) {
+            hash = readByte() << 24 | (readByte() & 0xff) << 16 | (readByte() & 0xff) << 8 | (readByte() & 0xff);
+        }
+        // The packet is whole, it is taken in from here
+        if (ack > remoteAck && ack <= localKnown) {
+            remoteAck = ack;
+            trimLocal();
+        }
+        // The actions are taken if they follow on what is known, late packets
+        // and actions that are already known are skipped
+        int remote = eventEnd[remotePlayer] - eventStart[remotePlayer];
+        if (base <= remoteKnown && known > remoteKnown && remote + count <= EVENT_CAPACITY) {
+            for (int i = 0; i < count; ++i) {
+                if (packetTicks[i] >= remoteKnown && packetTicks[i] < known) {
+                    add(remotePlayer, packetTicks[i], packetActions[i]);
+                }
+            }
+            remoteKnown = known;
+        }
+        if (hashTick > remoteHashTick && hashTick > checkedHashTick) {
+            remoteHashTick = hashTick;
+            remoteHash = hash;
+            compareHashes();
+        }
+    }
+
+    private int readByte() {
+        if (readPosition >= readLength) {
+            throw new IllegalArgumentException("The packet is truncated");
+        }
+        return receiveData[readPosition++];
+    }
+
+    private long readVarint() {
+        long value = 0;
+        int shift = 0;
+        while (true) {
+            int b = readByte();
+            value |= (long)(b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+            shift += 7;
+        }
+    }
+
+    /**
+     * Returns the engine of a player, zero or one.
+     */
+    public BlocksgameEngine getEngine(int player) {
+        return engines[player];
+    }
+
+    public int getLocalPlayer() {
+        return localPlayer;
+    }
+
+    /**
+     * Returns the number of ticks that both engines have made.
+     */
+    public int getTick() {
+        return tick;
+    }
+
+    /**
+     * Returns PLAYING, or how the session ended for the local player: WON,
+     * LOST, DRAW or DESYNC.
+     */
+    public int getState() {
+        return state;
+    }
+
+    public long getPacketsSent() {
+        return packetsSent;
+    }
+
+    /**
+     * Returns the bytes that have been sent, with the IPv4 and UDP headers.
+     */
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    public long getPacketsReceived() {
+        return packetsReceived;
+    }
+
+    /**
+     * Returns the number of polls that could not play a tick because the
+     * input of the other player had not arrived.
+     */
+    public long getStalls() {
+        return stalls;
+    }
+
+    /**
+     * Returns the number of hashes that have been compared with the other
+     * device.
+     */
+    public long getHashesChecked() {
+        return hashesChecked;
+    }
+
+    public void shapeMoved(BlocksgameEngine engine) {
+    }
+
+    public void shapeLocked(BlocksgameEngine engine, int lines) {
+    }
+
+    /**
+     * Ends the session for the player whose board is full.
+     */
+    public void roundEnded(BlocksgameEngine engine, int finalScore) {
+        ended[engine == engines[0] ? 0 : 1] = true;
+    }
+}
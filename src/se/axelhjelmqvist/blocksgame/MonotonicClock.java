@@ -0,0 +1,17 @@
+package se.axelhjelmqvist.blocksgame;
+
+/**
+ * The real time of the system monotonic clock, System.nanoTime. It is not
+ * affected by changes of the wall clock time.
+ */
+public class MonotonicClock
+        implements Clock {
+    /**
+     * The shared instance, the clock has no state.
+     */
+    public final static MonotonicClock INSTANCE = new MonotonicClock();
+
+    public long nanoTime() {
+        return System.nanoTime();
+    }
+}
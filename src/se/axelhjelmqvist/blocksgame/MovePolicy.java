@@ -0,0 +1,26 @@
+package se.axelhjelmqvist.blocksgame;
+
+/**
+ * Interface of something that plays the game by acting on a BlocksgameEngine,
+ * the way a player does through the touchscreen. It is used when games are
+ * played without a player, for instance by the simulators and the bots.
+ */
+public interface MovePolicy {
+    /**
+     * Invoked once before every update of the engine. The policy may invoke
+     * moveLeft, moveRight, rotateTile and fastDrop on the engine.
+     */
+    void act(BlocksgameEngine engine);
+
+    /**
+     * Interface of a factory of policies. A policy is only used by one thread,
+     * so a parallel simulation creates one policy for every task.
+     */
+    interface Factory {
+        /**
+         * Creates a policy. The seed can be used by policies that make
+         * random decisions, so that they can be reproduced.
+         */
+        MovePolicy create(long seed);
+    }
+}
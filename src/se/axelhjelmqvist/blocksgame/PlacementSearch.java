@@ -0,0 +1,152 @@
+package se.axelhjelmqvist.blocksgame;
+
+/**
+ * Finds the places where the shape in play can land and rates them with a
+ * LinearHeuristic. A shape can reach a place by first being rotated where
+ * it is, the way the rotateTile method of the engine rotates it, then being
+ * moved sideways and then falling straight down. The search works on a
+ * scratch copy of the board and does not allocate, so it can evaluate a
+ * large number of places every second. An instance must only be used by
+ * one thread.
+ */
+public class PlacementSearch {
+    /**
+     * The largest number of places that collectPlacements can return.
+     */
+    public final static int MAX_PLACEMENTS = 4 * 32;
+
+    final int sizeX, sizeY, wallRow;
+
+    final int[] board;
+
+    final int[] placements;
+
+    LinearHeuristic heuristic;
+
+    /**
+     * The best place that was found by the last search, as the number of rotations
+     * of the shape, its horizontal position, its orientation and its rating.
+     */
+    public int bestRotations, bestX, bestOrientation;
+
+    public double bestScore;
+
+    /**
+     * The number of places that have been rated.
+     */
+    public long evaluated;
+
+    /**
+     * Constructor of a search on a board of the given size, using the given heuristic.
+     */
+    public PlacementSearch(int sizeX, int sizeY, LinearHeuristic heuristic) {
+        this.sizeX = sizeX;
+        this.sizeY = sizeY;
+        this.heuristic = heuristic;
+        wallRow = BoardTool.getWallRow(sizeX);
+        board = new int[sizeY + 2 * BlocksgameEngine.ROW_PADDING];
+        placements = new int[MAX_PLACEMENTS];
+        evaluated = 0;
+    }
+
+    /**
+     * Returns the heuristic that rates the places.
+     */
+    public LinearHeuristic getHeuristic() {
+        return heuristic;
+    }
+
+    /**
+     * Encodes a place as a single integer from the number of rotations, the
+     * horizontal position and the row where the shape lands.
+     */
+    public static int encode(int rotations, int x, int y) {
+        return rotations | ((x + 64) << 2) | ((y + 64) << 10);
+    }
+
+    public static int getRotations(int placement) {
+        return placement & 3;
+    }
+
+    public static int getX(int placement) {
+        return ((placement >>> 2) & 255) - 64;
+    }
+
+    public static int getY(int placement) {
+        return ((placement >>> 10) & 255) - 64;
+    }
+
+    /**
+     * Returns the orientation of the shape of a place, given the orientation
+     * that the shape had before it was rotated.
+     */
+    public static int getOrientation(int placement, int orientation) {
+        return ShapeTool.rotate(orientation, 3 * getRotations(placement));
+    }
+
+    /**
+     * Collects every place that a shape at the given position can reach on the
+     * board into the given array, which must hold at least MAX_PLACEMENTS values.
+     * Returns the number of places.
+     */
+    public int collectPlacements(int[] rows, int type, int orientation, int x, int y, int[] result) {
+        int count = 0;
+        for (int rotations = 0; rotations < 4; ++rotations) {
+            if (rotations > 0) {
+                orientation = ShapeTool.rotate(orientation, 3);
+                if (BoardTool.collides(rows, type, orientation, x, y)) {
+                    // The rotations after a blocked one can not be reached either
+                    break;
+                }
+            }
+            result[count++] = encode(rotations, x, BoardTool.dropY(rows, type, orientation, x, y));
+            for (int step = -1; step <= 1; step += 2) {
+                for (int targetX = x + step; !BoardTool.collides(rows, type, orientation, targetX, y); targetX += step) {
+                    result[count++] = encode(rotations, targetX, BoardTool.dropY(rows, type, orientation, targetX, y));
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Places a shape in a scratch copy of the board, removes the completed
+     * rows and rates the result. Returns negative infinity if the shape
+     * lands above the board, since that loses the round.
+     */
+    public double evaluate(int[] rows, int type, int orientation, int x, int y) {
+        ++evaluated;
+        System.arraycopy(rows, 0, board, 0, board.length);
+        if (!BoardTool.insert(board, sizeY, type, orientation, x, y)) {
+            return Double.NEGATIVE_INFINITY;
+        }
+        int lines = BoardTool.clearFullRows(board, sizeY, wallRow);
+        return heuristic.evaluate(board, sizeX, sizeY, lines);
+    }
+
+    /**
+     * Searches for the best place for a shape at the given position on the
+     * board. Returns false if the shape can not land anywhere.
+     */
+    public boolean search(int[] rows, int type, int orientation, int x, int y) {
+        int count = collectPlacements(rows, type, orientation, x, y, placements);
+        bestScore = Double.NEGATIVE_INFINITY;
+        bestRotations = 0;
+        bestX = x;
+        bestOrientation = orientation;
+        boolean found = false;
+        for (int i = 0; i < count; ++i) {
+            int placement = placements[i];
+            int placedOrientation = getOrientation(placement, orientation);
+            double score = evaluate(rows, type, placedOrientation, getX(placement), getY(placement));
+            if (!found || score > bestScore) {
+                found = true;
+                bestScore = score;
+                bestRotations = getRotations(placement);
+                bestX = getX(placement);
+                bestOrientation = placedOrientation;
+            }
+        }
+        return found;
+    }
+}
@@ -0,0 +1,36 @@
+package se.axelhjelmqvist.blocksgame;
+
+/**
+ * Interface of a source of random numbers that is owned by a single game.
+ * Implementations are not synchronized, every engine has its own source, and
+ * a source that is given the same seed always produces the same numbers, so
+ * that games can be reproduced.
+ */
+public interface RandomSource {
+    /**
+     * Restarts the sequence of numbers from the given seed.
+     */
+    void setSeed(long seed);
+
+    /**
+     * Returns a random integer that is at least zero and less than bound.
+     */
+    int nextInt(int bound);
+
+    /**
+     * Returns the complete state of the source, so that the sequence can be
+     * continued from this point with setState.
+     */
+    long getState();
+
+    /**
+     * Continues the sequence from a state that was returned by getState.
+     */
+    void setState(long state);
+
+    /**
+     * Returns a new source that continues the sequence from the current
+     * state of this one, independently of it.
+     */
+    RandomSource copy();
+}
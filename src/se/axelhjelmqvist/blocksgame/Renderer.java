@@ -0,0 +1,60 @@
+package se.axelhjelmqvist.blocksgame;
+
+/**
+ * What the game is drawn with. The BoardPainter decides what is drawn where,
+ * and a renderer draws it on a target, such as an Android Canvas or a
+ * framebuffer in memory. Positions are in pixels of the target.
+ *
+ * The sprites are the tinted blocks, numbered by color as in the field of
+ * the engine, and are drawn at the size of a brick. A renderer also keeps a
+ * layer, a transparent image that the landed blocks are drawn into and that
+ * is kept between frames, so that only the rows of it that change have to be
+ * drawn again.
+ */
+public interface Renderer {
+    /**
+     * Sets the size of a brick, which the sprites are scaled to once, and the
+     * size of the layer. This is called before anything is drawn.
+     */
+    void init(int brickWidth, int brickHeight, int layerWidth, int layerHeight);
+
+    /**
+     * Draws the background over the whole target.
+     */
+    void drawBackground();
+
+    /**
+     * Blends a color over the whole target.
+     */
+    void fill(int argb);
+
+    /**
+     * Makes the pixel rows of the layer from fromY up to toY transparent.
+     */
+    void clearLayer(int fromY, int toY);
+
+    /**
+     * Draws a sprite into the layer.
+     */
+    void drawLayerSprite(int sprite, int x, int y);
+
+    /**
+     * Draws the layer on the target.
+     */
+    void drawLayer(int x, int y);
+
+    /**
+     * Draws a sprite on the target.
+     */
+    void drawSprite(int sprite, int x, int y);
+
+    /**
+     * Draws count characters of the text from start, with the baseline at y.
+     */
+    void drawText(char[] text, int start, int count, float x, float y, int argb);
+
+    /**
+     * Returns the height of a line of text.
+     */
+    float getTextSize();
+}
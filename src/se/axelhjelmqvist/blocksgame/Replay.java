@@ -0,0 +1,86 @@
+package se.axelhjelmqvist.blocksgame;
+
+/**
+ * Constants and helpers of the replay format. A replay is the seed and the
+ * size of a game followed by the input that the engine received, as a stream
+ * of actions that are stamped with the update (the tick) of the engine they
+ * happened before. Since the engine is deterministic given its seed, its input
+ * and its time steps, a replay is enough to play a game again exactly.
+ *
+ * Every action is encoded as one varint of (ticks since the previous action
+ * shifted left four bits, or:ed with the code of the action). A change of the
+ * time step is followed by the zigzag varint of the difference of the bits
+ * of the new and the old time step, as a float. When the game runs at a fixed
+ * time step there is a single such change at the start.
+ */
+public class Replay {
+    public final static int LEFT_UP = 0, LEFT_DOWN = 1;
+
+    public final static int RIGHT_UP = 2, RIGHT_DOWN = 3;
+
+    public final static int DROP_UP = 4, DROP_DOWN = 5;
+
+    public final static int ROTATE = 6;
+
+    public final static int TIME_STEP = 7;
+
+    public final static int END = 8;
+
+    /**
+     * The bytes that a replay starts with, the last one is the version.
+     */
+    public final static byte[] MAGIC = new byte[] { 'B', 'G', 'R', 1 };
+
+    public final static int FLAG_SHAPE_BAG = 1;
+
+    /**
+     * Performs an input action on the engine.
+     */
+    public static void perform(BlocksgameEngine engine, int action) {
+        switch (action) {
+            case LEFT_UP:
+            case LEFT_DOWN:
+                engine.moveLeft(action == LEFT_DOWN);
+                break;
+            case RIGHT_UP:
+            case RIGHT_DOWN:
+                engine.moveRight(action == RIGHT_DOWN);
+                break;
+            case DROP_UP:
+            case DROP_DOWN:
+                engine.fastDrop(action == DROP_DOWN);
+                break;
+            case ROTATE:
+                engine.rotateTile();
+                break;
+        }
+    }
+
+    /**
+     * Writes an unsigned varint, seven bits per byte with the lowest bits first,
+     * at the given position of the buffer. Returns the position after it.
+     */
+    public static int writeVarint(byte[] buffer, int position, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer[position++] = (byte)((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[position++] = (byte)value;
+        return position;
+    }
+
+    /**
+     * Maps a signed value to an unsigned one so that small negative values
+     * become small varints.
+     */
+    public static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    /**
+     * Reverses the zigzag mapping.
+     */
+    public static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
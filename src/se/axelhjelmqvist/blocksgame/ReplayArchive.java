@@ -0,0 +1,245 @@
+package se.axelhjelmqvist.blocksgame;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * An archive of many replays in a single file, that is read through memory
+ * mapped buffers so that the replays are never copied to the heap. Besides
+ * the input of a game, the archive holds its final score and keyframes of
+ * the complete state of the engine at regular ticks, so that any tick of any
+ * game can be reached by restoring the closest keyframe and playing at most
+ * one keyframe interval of the replay.
+ *
+ * The file starts with a header of the magic bytes and the keyframe interval.
+ * It is followed by the games, each a header of GAME_HEADER_SIZE bytes, the
+ * replay, the table of keyframes sorted by tick and the keyframes. The file
+ * ends with an index of the offsets of the games and a trailer with the offset
+ * of the index, the number of games and the magic bytes. The file is mapped
+ * in segments of SEGMENT_SIZE bytes, and a game is never split between two
+ * segments.
+ *
+ * An archive can be used by several threads at once.
+ */
+public class ReplayArchive {
+    final static byte[] MAGIC = new byte[] { 'B', 'G', 'A', 1 };
+
+    final static int FILE_HEADER_SIZE = 8;
+
+    /**
+     * Length, seed, score, top score, ticks, length of the replay, number of
+     * keyframes and size of a keyframe.
+     */
+    final static int GAME_HEADER_SIZE = 4 + 8 + 4 + 4 + 8 + 4 + 4 + 4;
+
+    /**
+     * Tick, position of the next action, tick and time step before that action.
+     */
+    final static int KEYFRAME_ENTRY_SIZE = 8 + 4 + 8 + 4;
+
+    final static int TRAILER_SIZE = 8 + 4 + 4;
+
+    final static long SEGMENT_SIZE = 1L << 30;
+
+    private RandomAccessFile file;
+
+    private FileChannel channel;
+
+    private long indexOffset;
+
+    private int gameCount;
+
+    private int keyframeInterval;
+
+    private MappedByteBuffer index;
+
+    private MappedByteBuffer[] segments;
+
+    /**
+     * Constructor that opens the archive in the given file.
+     */
+    public ReplayArchive(File path) throws IOException {
+        file = new RandomAccessFile(path, "r");
+        channel = file.getChannel();
+        long size = channel.size();
+        ByteBuffer buffer = ByteBuffer.allocate(Math.max(FILE_HEADER_SIZE, TRAILER_SIZE));
+        if (size < FILE_HEADER_SIZE + TRAILER_SIZE) {
+            file.close();
+            throw new IOException("Not a replay archive");
+        }
+        readFully(buffer, size - TRAILER_SIZE, TRAILER_SIZE);
+        indexOffset = buffer.getLong();
+        gameCount = buffer.getInt();
+        if (!hasMagic(buffer)) {
+            file.close();
+            throw new IOException("Not a replay archive, or it was not closed");
+        }
+        readFully(buffer, 0, FILE_HEADER_SIZE);
+        if (!hasMagic(buffer)) {
+            file.close();
+            throw new IOException("Not a replay archive of a supported version");
+        }
+        keyframeInterval = buffer.getInt();
+        index = channel.map(FileChannel.MapMode.READ_ONLY, indexOffset, 8L * gameCount);
+        segments = new MappedByteBuffer[(int)((indexOffset + SEGMENT_SIZE - 1) / SEGMENT_SIZE)];
+    }
+
+    private void readFully(ByteBuffer buffer, long offset, int length) throws IOException {
+        buffer.clear();
+        buffer.limit(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0) {
+                throw new IOException("The replay archive is truncated");
+            }
+        }
+        buffer.flip();
+    }
+
+    private static boolean hasMagic(ByteBuffer buffer) {
+        for (int i = 0; i < MAGIC.length; ++i) {
+            if (buffer.get() != MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the segment of the file that holds the game at the given
+     * offset, it is mapped when it is first used.
+     */
+    private synchronized MappedByteBuffer getSegment(long offset) throws IOException {
+        int segment = (int)(offset / SEGMENT_SIZE);
+        if (segments[segment] == null) {
+            long start = segment * SEGMENT_SIZE;
+            segments[segment] = channel.map(FileChannel.MapMode.READ_ONLY, start,
+                    Math.min(SEGMENT_SIZE, indexOffset - start));
+        }
+        return segments[segment];
+    }
+
+    /**
+     * Returns the number of games in the archive.
+     */
+    public int getGameCount() {
+        return gameCount;
+    }
+
+    /**
+     * Returns the number of ticks between two keyframes.
+     */
+    public int getKeyframeInterval() {
+        return keyframeInterval;
+    }
+
+    private long getOffset(int game) {
+        if (game < 0 || game >= gameCount) {
+            throw new IndexOutOfBoundsException("No game " + game + " in the archive");
+        }
+        return index.getLong(8 * game);
+    }
+
+    /**
+     * Returns the position of the header of a game in its segment.
+     */
+    private static int getPosition(long offset) {
+        return (int)(offset % SEGMENT_SIZE);
+    }
+
+    /**
+     * Returns the seed of the engine of a game.
+     */
+    public long getSeed(int game) throws IOException {
+        long offset = getOffset(game);
+        return getSegment(offset).getLong(getPosition(offset) + 4);
+    }
+
+    /**
+     * Returns the score at the end of a game.
+     */
+    public int getScore(int game) throws IOException {
+        long offset = getOffset(game);
+        return getSegment(offset).getInt(getPosition(offset) + 12);
+    }
+
+    /**
+     * Returns the highscore at the end of a game, of all of the rounds that
+     * were played in it.
+     */
+    public int getTopScore(int game) throws IOException {
+        long offset = getOffset(game);
+        return getSegment(offset).getInt(getPosition(offset) + 16);
+    }
+
+    /**
+     * Returns the number of ticks of a game.
+     */
+    public long getTicks(int game) throws IOException {
+        long offset = getOffset(game);
+        return getSegment(offset).getLong(getPosition(offset) + 20);
+    }
+
+    /**
+     * Returns a reader of the replay of a game, that reads the mapped file.
+     */
+    public ReplayReader getReplay(int game) throws IOException {
+        long offset = getOffset(game);
+        ByteBuffer segment = getSegment(offset);
+        int position = getPosition(offset);
+        return new ReplayReader(segment, position + GAME_HEADER_SIZE, segment.getInt(position + 28));
+    }
+
+    /**
+     * Returns a player of a game that has played the game to the given tick,
+     * or to the end of the game if it is shorter. The closest keyframe before
+     * the tick is found by a binary search and restored, then the replay is
+     * played from there.
+     */
+    public ReplayPlayer seek(int game, long tick) throws IOException {
+        long offset = getOffset(game);
+        ByteBuffer segment = getSegment(offset);
+        int position = getPosition(offset);
+        int replayLength = segment.getInt(position + 28);
+        int keyframeCount = segment.getInt(position + 32);
+        int stateSize = segment.getInt(position + 36);
+        int entries = position + GAME_HEADER_SIZE + replayLength;
+        ReplayReader reader = new ReplayReader(segment, position + GAME_HEADER_SIZE, replayLength);
+        // Find the last keyframe that is not after the tick
+        int low = 0, high = keyframeCount - 1, found = -1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (segment.getLong(entries + middle * KEYFRAME_ENTRY_SIZE) <= tick) {
+                found = middle;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        ReplayPlayer player;
+        if (found < 0) {
+            player = new ReplayPlayer(reader);
+        } else {
+            int entry = entries + found * KEYFRAME_ENTRY_SIZE;
+            BlocksgameEngine engine = reader.createEngine();
+            ByteBuffer state = segment.duplicate();
+            state.position(entries + keyframeCount * KEYFRAME_ENTRY_SIZE + found * stateSize);
+            engine.restore(state);
+            reader.seek(segment.getInt(entry + 8), segment.getLong(entry + 12), segment.getInt(entry + 20));
+            player = new ReplayPlayer(reader, engine);
+        }
+        player.playTo(tick);
+        return player;
+    }
+
+    /**
+     * Closes the file of the archive. The mapped buffers stay valid until
+     * they are garbage collected.
+     */
+    public void close() throws IOException {
+        file.close();
+    }
+}
@@ -0,0 +1,157 @@
+package se.axelhjelmqvist.blocksgame;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes replays to an archive file that is read with ReplayArchive. Every
+ * replay is played once when it is added, to find its final score and to
+ * take a keyframe of the complete state of the engine at every
+ * keyframeInterval ticks. See ReplayArchive for the layout of the file.
+ */
+public class ReplayArchiveWriter {
+    private RandomAccessFile file;
+
+    private FileChannel channel;
+
+    private int keyframeInterval;
+
+    private long position;
+
+    private long[] offsets;
+
+    private int gameCount;
+
+    private ByteBuffer header, entries, keyframes;
+
+    /**
+     * Constructor of a writer of a new archive in the given file. A file that
+     * exists is overwritten.
+     */
+    public ReplayArchiveWriter(File path, int keyframeInterval) throws IOException {
+        if (keyframeInterval <= 0) {
+            throw new IllegalArgumentException("The keyframe interval must be positive");
+        }
+        this.keyframeInterval = keyframeInterval;
+        file = new RandomAccessFile(path, "rw");
+        file.setLength(0);
+        channel = file.getChannel();
+        offsets = new long[1024];
+        gameCount = 0;
+        header = ByteBuffer.allocate(ReplayArchive.GAME_HEADER_SIZE);
+        entries = ByteBuffer.allocate(64 * ReplayArchive.KEYFRAME_ENTRY_SIZE);
+        keyframes = ByteBuffer.allocate(4096);
+        ByteBuffer fileHeader = ByteBuffer.allocate(ReplayArchive.FILE_HEADER_SIZE);
+        fileHeader.put(ReplayArchive.MAGIC);
+        fileHeader.putInt(keyframeInterval);
+        fileHeader.flip();
+        writeFully(fileHeader);
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    /**
+     * Returns a buffer with the contents of the given buffer and room for at
+     * least the given number of additional bytes.
+     */
+    private static ByteBuffer ensureCapacity(ByteBuffer buffer, int additional) {
+        if (buffer.remaining() >= additional) {
+            return buffer;
+        }
+        ByteBuffer grown = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + additional));
+        buffer.flip();
+        grown.put(buffer);
+        return grown;
+    }
+
+    /**
+     * Adds a replay to the archive. Returns the number of the game in the archive.
+     */
+    public int add(byte[] replay) throws IOException {
+        ReplayPlayer player = new ReplayPlayer(new ReplayReader(replay));
+        BlocksgameEngine engine = player.getEngine();
+        ReplayReader reader = player.getReader();
+        int stateSize = engine.getSnapshotSize();
+        entries.clear();
+        keyframes.clear();
+        int keyframeCount = 0;
+        while (!player.isFinished()) {
+            if (engine.ticks > 0 && engine.ticks % keyframeInterval == 0) {
+                entries = ensureCapacity(entries, ReplayArchive.KEYFRAME_ENTRY_SIZE);
+                entries.putLong(engine.ticks);
+                entries.putInt(reader.getActionPosition());
+                entries.putLong(reader.getActionBaseTick());
+                entries.putInt(reader.getActionBaseTimeStepBits());
+                keyframes = ensureCapacity(keyframes, stateSize);
+                engine.snapshot(keyframes);
+                ++keyframeCount;
+            }
+            player.step();
+        }
+        entries.flip();
+        keyframes.flip();
+        long length = (long)ReplayArchive.GAME_HEADER_SIZE + replay.length + entries.remaining() + keyframes.remaining();
+        if (length > ReplayArchive.SEGMENT_SIZE) {
+            throw new IllegalArgumentException("The replay is too long for the archive");
+        }
+        // A game is never split between two segments of the file, since they are mapped separately
+        long segmentEnd = (position / ReplayArchive.SEGMENT_SIZE + 1) * ReplayArchive.SEGMENT_SIZE;
+        if (position + length > segmentEnd) {
+            position = segmentEnd;
+        }
+        if (gameCount == offsets.length) {
+            long[] grown = new long[offsets.length * 2];
+            System.arraycopy(offsets, 0, grown, 0, gameCount);
+            offsets = grown;
+        }
+        offsets[gameCount] = position;
+        header.clear();
+        header.putInt((int)length);
+        header.putLong(reader.seed);
+        header.putInt(engine.score.currentScore);
+        header.putInt(engine.score.currentTopScore);
+        header.putLong(engine.ticks);
+        header.putInt(replay.length);
+        header.putInt(keyframeCount);
+        header.putInt(stateSize);
+        header.flip();
+        writeFully(header);
+        writeFully(ByteBuffer.wrap(replay));
+        writeFully(entries);
+        writeFully(keyframes);
+        return gameCount++;
+    }
+
+    /**
+     * Writes the index of the games and closes the file.
+     */
+    public void close() throws IOException {
+        long indexOffset = position;
+        ByteBuffer buffer = ByteBuffer.allocate(8 * 1024);
+        for (int i = 0; i < gameCount; ++i) {
+            if (!buffer.hasRemaining()) {
+                buffer.flip();
+                writeFully(buffer);
+                buffer.clear();
+            }
+            buffer.putLong(offsets[i]);
+        }
+        buffer.flip();
+        writeFully(buffer);
+        ByteBuffer trailer = ByteBuffer.allocate(ReplayArchive.TRAILER_SIZE);
+        trailer.putLong(indexOffset);
+        trailer.putInt(gameCount);
+        trailer.put(ReplayArchive.MAGIC);
+        trailer.flip();
+        writeFully(trailer);
+        channel.force(true);
+        file.close();
+    }
+}
@@ -0,0 +1,103 @@
+package se.axelhjelmqvist.blocksgame;
+
+/**
+ * Plays a replay on an engine, as fast as possible. Before every update of
+ * the engine the actions that were recorded for that tick are performed,
+ * then the engine is updated with the recorded time step.
+ */
+public class ReplayPlayer {
+    private final ReplayReader reader;
+
+    private final BlocksgameEngine engine;
+
+    private boolean pending, ended;
+
+    private float timeStep;
+
+    /**
+     * Constructor of a player of the replay that the reader reads. An
+     * engine is created from the header of the replay.
+     */
+    public ReplayPlayer(ReplayReader reader) {
+        this.reader = reader;
+        engine = reader.createEngine();
+        pending = reader.next();
+        ended = !pending;
+        timeStep = 0.0f;
+    }
+
+    /**
+     * Constructor of a player that continues a replay on an engine that has
+     * been restored to a tick of the replay. The reader must have been moved
+     * to the first action at or after that tick with ReplayReader.seek.
+     */
+    public ReplayPlayer(ReplayReader reader, BlocksgameEngine engine) {
+        this.reader = reader;
+        this.engine = engine;
+        timeStep = reader.timeStep;
+        pending = reader.next();
+        ended = !pending;
+    }
+
+    /**
+     * Returns the engine that the replay is played on.
+     */
+    public BlocksgameEngine getEngine() {
+        return engine;
+    }
+
+    /**
+     * Returns the reader of the replay.
+     */
+    public ReplayReader getReader() {
+        return reader;
+    }
+
+    /**
+     * Returns true when every action of the replay has been performed and
+     * the engine has reached the last tick of the replay.
+     */
+    public boolean isFinished() {
+        return ended && engine.ticks >= reader.tick;
+    }
+
+    /**
+     * Performs the actions of the current tick and updates the engine once.
+     * Returns false if the replay is finished.
+     */
+    public boolean step() {
+        while (pending && reader.tick <= engine.ticks) {
+            // The reader has read ahead when the action is performed, so the
+            // time step is taken from it when its change is reached
+            if (reader.action == Replay.TIME_STEP) {
+                timeStep = reader.timeStep;
+            } else {
+                Replay.perform(engine, reader.action);
+            }
+            pending = reader.next();
+        }
+        ended = !pending;
+        if (isFinished()) {
+            return false;
+        }
+        engine.update(timeStep);
+        return true;
+    }
+
+    /**
+     * Plays the replay until the engine has made the given number of updates,
+     * or the replay is finished.
+     */
+    public void playTo(long tick) {
+        while (engine.ticks < tick && step()) {
+        }
+    }
+
+    /**
+     * Plays the whole replay.
+     */
+    public void playToEnd() {
+        while (step()) {
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package se.axelhjelmqvist.blocksgame;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reads the header and then the actions of a replay, one action at a time,
+ * from a buffer. The buffer is read with absolute positions, so a replay can
+ * be read straight from a mapped file without copying it. See Replay for the
+ * format.
+ */
+public class ReplayReader {
+    private final ByteBuffer data;
+
+    private int position;
+
+    private final int start, end;
+
+    public final long seed;
+
+    public final int sizeX, sizeY, flags;
+
+    /**
+     * The tick and the code of the action that was read last, and the time
+     * step that is in effect after it.
+     */
+    public long tick;
+
+    public int action;
+
+    public float timeStep;
+
+    private int timeStepBits;
+
+    /**
+     * The position of the action that was read last, and the tick and the
+     * bits of the time step before it. A reader can be moved back to the
+     * action with seek.
+     */
+    private int actionPosition;
+
+    private long actionBaseTick;
+
+    private int actionBaseTimeStepBits;
+
+    /**
+     * Constructor of a reader of the replay in the given part of a buffer.
+     * The header is read immediately.
+     */
+    public ReplayReader(ByteBuffer data, int offset, int length) {
+        this.data = data;
+        start = position = offset;
+        end = offset + length;
+        for (int i = 0; i < Replay.MAGIC.length; ++i) {
+            if (position >= end || data.get(position++) != Replay.MAGIC[i]) {
+                throw new IllegalArgumentException("Not a replay of a supported version");
+            }
+        }
+        long readSeed = 0;
+        for (int i = 0; i < 8; ++i) {
+            readSeed |= (long)(data.get(position++) & 0xFF) << (8 * i);
+        }
+        seed = readSeed;
+        sizeX = (int)readVarint();
+        sizeY = (int)readVarint();
+        flags = (int)readVarint();
+        tick = 0;
+        action = -1;
+        timeStepBits = Float.floatToIntBits(0.0f);
+        timeStep = 0.0f;
+        actionPosition = position;
+        actionBaseTick = 0;
+        actionBaseTimeStepBits = timeStepBits;
+    }
+
+    /**
+     * Constructor of a reader of a whole array.
+     */
+    public ReplayReader(byte[] data) {
+        this(ByteBuffer.wrap(data), 0, data.length);
+    }
+
+    /**
+     * Creates an engine that is set up like the engine of the recorded game was.
+     */
+    public BlocksgameEngine createEngine() {
+        BlocksgameEngine engine = new BlocksgameEngine(sizeX, sizeY, seed);
+        engine.setShapeBag((flags & Replay.FLAG_SHAPE_BAG) != 0);
+        return engine;
+    }
+
+    private long readVarint() {
+        long value = 0;
+        int shift = 0;
+        while (true) {
+            if (position >= end) {
+                throw new IllegalArgumentException("The replay is truncated");
+            }
+            int b = data.get(position++);
+            value |= (long)(b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+            shift += 7;
+        }
+    }
+
+    /**
+     * Reads the next action. Returns false at the end of the replay, also if
+     * the replay was cut off without an end.
+     */
+    public boolean next() {
+        if (action == Replay.END) {
+            return false;
+        }
+        actionPosition = position;
+        actionBaseTick = tick;
+        actionBaseTimeStepBits = timeStepBits;
+        if (position >= end) {
+            action = Replay.END;
+            return false;
+        }
+        long value = readVarint();
+        tick += value >>> 4;
+        action = (int)(value & 15);
+        if (action == Replay.TIME_STEP) {
+            timeStepBits = (int)(timeStepBits + Replay.unzigzag(readVarint()));
+            timeStep = Float.intBitsToFloat(timeStepBits);
+        }
+        return action != Replay.END;
+    }
+
+    /**
+     * Returns the position of the action that was read last, relative to
+     * the start of the replay.
+     */
+    public int getActionPosition() {
+        return actionPosition - start;
+    }
+
+    /**
+     * Returns the tick of the action before the action that was read last.
+     */
+    public long getActionBaseTick() {
+        return actionBaseTick;
+    }
+
+    /**
+     * Returns the bits of the time step before the action that was read last.
+     */
+    public int getActionBaseTimeStepBits() {
+        return actionBaseTimeStepBits;
+    }
+
+    /**
+     * Moves the reader to an action that was read before, given by the values
+     * of getActionPosition, getActionBaseTick and getActionBaseTimeStepBits at
+     * that time. The action is read by the next call to next.
+     */
+    public void seek(int actionPosition, long baseTick, int baseTimeStepBits) {
+        position = start + actionPosition;
+        tick = baseTick;
+        timeStepBits = baseTimeStepBits;
+        timeStep = Float.intBitsToFloat(baseTimeStepBits);
+        action = -1;
+    }
+}
@@ -0,0 +1,172 @@
+package se.axelhjelmqvist.blocksgame;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Records a replay of the game that an engine plays. The recorder is
+ * attached to the engine with BlocksgameEngine.setRecorder, after which the
+ * engine reports every input action and time step to it.
+ *
+ * At a fixed time step a player who acts several times a second takes 200 to
+ * 350 bytes per thousand ticks, so ten minutes at 60 ticks a second take 6 to
+ * 12 KB. A time step that changes every tick adds its bits to every tick, and
+ * takes about 4 KB per thousand ticks, or 140 KB for ten minutes. The buffer
+ * of a recorder either grows when needed, or has a fixed capacity, and then
+ * the replay is ended when it is full and nothing is recorded after that.
+ */
+public class ReplayRecorder {
+    /**
+     * The capacity in bytes of the replay of the game, one to one and a half
+     * hours of play at the fixed time step.
+     */
+    public final static int GAME_CAPACITY = 64 * 1024;
+
+    private byte[] buffer;
+
+    private int length;
+
+    private long lastTick;
+
+    private int lastTimeStepBits;
+
+    private boolean finished;
+
+    private boolean truncated;
+
+    /**
+     * The fixed capacity of the buffer, or 0 if it grows.
+     */
+    private final int capacity;
+
+    /**
+     * Constructor of a recorder of a game on a board of the given size,
+     * whose engine was created from the given seed. The buffer grows when
+     * needed.
+     */
+    public ReplayRecorder(long seed, int sizeX, int sizeY, boolean shapeBag) {
+        this(seed, sizeX, sizeY, shapeBag, 0);
+    }
+
+    /**
+     * Constructor of a recorder like the one above, whose buffer has the given
+     * capacity in bytes and never grows, or grows if the capacity is 0. When a
+     * recorder with a capacity is full, it ends the replay.
+     */
+    public ReplayRecorder(long seed, int sizeX, int sizeY, boolean shapeBag, int capacity) {
+        this.capacity = capacity;
+        // About ten minutes at a fixed time step before a growing buffer
+        // allocates
+        buffer = new byte[capacity != 0 ? capacity : 16 * 1024];
+        length = 0;
+        ensureCapacity(Replay.MAGIC.length + 8 + 3 * 10);
+        System.arraycopy(Replay.MAGIC, 0, buffer, 0, Replay.MAGIC.length);
+        length = Replay.MAGIC.length;
+        for (int i = 0; i < 8; ++i) {
+            buffer[length++] = (byte)(seed >>> (8 * i));
+        }
+        length = Replay.writeVarint(buffer, length, sizeX);
+        length = Replay.writeVarint(buffer, length, sizeY);
+        length = Replay.writeVarint(buffer, length, shapeBag ? Replay.FLAG_SHAPE_BAG : 0);
+        lastTick = 0;
+        lastTimeStepBits = Float.floatToIntBits(0.0f);
+        finished = false;
+        truncated = false;
+    }
+
+    /**
+     * Makes sure that the buffer can hold the given number of additional bytes.
+     */
+    private void ensureCapacity(int additional) {
+        if (length + additional > buffer.length) {
+            byte[] grown = new byte[Math.max(buffer.length * 2, length + additional)];
+            System.arraycopy(buffer, 0, grown, 0, length);
+            buffer = grown;
+        }
+    }
+
+    /**
+     * Makes room for the given number of additional bytes, that are recorded
+     * at the given tick, and returns true. If the buffer has a capacity and
+     * there is no room left for them and the end of the replay, the replay is
+     * ended at that tick instead and false is returned.
+     */
+    private boolean reserve(long tick, int additional) {
+        if (capacity == 0) {
+            ensureCapacity(additional);
+            return true;
+        }
+        if (length + additional + 10 <= capacity) {
+            return true;
+        }
+        length = Replay.writeVarint(buffer, length, ((tick - lastTick) << 4) | Replay.END);
+        lastTick = tick;
+        finished = true;
+        truncated = true;
+        return false;
+    }
+
+    /**
+     * Records an action that happened before the given tick of the engine.
+     */
+    public void record(long tick, int action) {
+        if (finished || !reserve(tick, 10)) {
+            return;
+        }
+        length = Replay.writeVarint(buffer, length, ((tick - lastTick) << 4) | action);
+        lastTick = tick;
+    }
+
+    /**
+     * Records the time step of the given tick of the engine, if it differs
+     * from the time step of the previous tick.
+     */
+    public void timeStep(long tick, float timeStep) {
+        int bits = Float.floatToIntBits(timeStep);
+        if (bits == lastTimeStepBits || finished || !reserve(tick, 20)) {
+            return;
+        }
+        record(tick, Replay.TIME_STEP);
+        length = Replay.writeVarint(buffer, length, Replay.zigzag((long)bits - lastTimeStepBits));
+        lastTimeStepBits = bits;
+    }
+
+    /**
+     * Ends the replay at the given tick, which is the number of updates that
+     * the engine made. Nothing is recorded after this.
+     */
+    public void finish(long tick) {
+        record(tick, Replay.END);
+        finished = true;
+    }
+
+    /**
+     * Returns true if the replay was ended because the buffer was full.
+     */
+    public boolean isTruncated() {
+        return truncated;
+    }
+
+    /**
+     * Returns the number of bytes of the replay.
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * Returns a copy of the bytes of the replay.
+     */
+    public byte[] toByteArray() {
+        byte[] result = new byte[length];
+        System.arraycopy(buffer, 0, result, 0, length);
+        return result;
+    }
+
+    /**
+     * Writes the bytes of the replay to a stream.
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(buffer, 0, length);
+    }
+}
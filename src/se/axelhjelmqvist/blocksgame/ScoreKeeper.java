@@ -1,10 +1,10 @@
 package se.axelhjelmqvist.blocksgame;
 
-import android.graphics.Canvas;
-import android.graphics.Paint;
+import java.nio.ByteBuffer;
 
 /**
- * ScoreKeeper tracks and presents the current score.
+ * ScoreKeeper tracks the current score and keeps the text that
+ * presents it. The text is drawn by the BoardPainter.
  */
 public class ScoreKeeper {
     /**
@@ -20,12 +20,22 @@ public class ScoreKeeper {
             0, 255, 127
     };
 
-    float posX, posY;
+    /**
+     * The number of bytes of the state that writeState writes.
+     */
+    final static int STATE_SIZE = 5 * 4 + 1;
+
+    final static char[] MESSAGE = ":    :         :".toCharArray();
 
     char[] messageString;
 
     char[] text;
 
+    /**
+     * Set when the numbers have changed since the text was last updated.
+     */
+    boolean textDirty;
+
     public int currentScore, currentTopScore, lastRoundScore;
 
     public int levelMultiplier;
@@ -34,38 +44,49 @@ public class ScoreKeeper {
 
     private boolean viewTop;
 
-    public Paint paint;
-
     /**
-     * Constructor of the scorekeeper object. Requires
-     * position values for where on screen the score should
-     * be drawn.
+     * Constructor of the scorekeeper object.
      */
-    public ScoreKeeper(int x, int y) {
-        posX = x;
-        posY = y;
-        text = new char[100];
-        messageString = ":    :         :".toCharArray();
+    public ScoreKeeper() {
+        messageString = MESSAGE;
         currentTopScore = lastRoundScore = 0;
         viewTop = false;
-        paint = new Paint();
-        paint.setTextSize(30);
         reset();
     }
 
+    /**
+     * Constructor of a scorekeeper with the counters of another one. The
+     * text is not created until it is asked for.
+     */
+    ScoreKeeper(ScoreKeeper other) {
+        messageString = other.messageString;
+        currentScore = other.currentScore;
+        currentTopScore = other.currentTopScore;
+        lastRoundScore = other.lastRoundScore;
+        levelMultiplier = other.levelMultiplier;
+        scoreCount = other.scoreCount;
+        viewTop = other.viewTop;
+        textDirty = true;
+    }
+
     /**
      * Resets the current score but not the highscore.
      */
     private void reset() {
         currentScore = scoreCount = 0;
         levelMultiplier = 1;
-        updateText();
+        textDirty = true;
     }
 
     /**
-     * Returns the textstring that presents the current score.
+     * Returns the textstring that presents the current score. The text is
+     * only updated when it is asked for, after the score has changed.
      */
     public char[] getText(){
+        if (textDirty) {
+            updateText();
+            textDirty = false;
+        }
         return text;
     }
 
@@ -73,6 +94,9 @@ public class ScoreKeeper {
      * Update the current textstring based on the current score.
      */
     private void updateText() {
+        if (text == null) {
+            text = new char[100];
+        }
         for (int i = 0; i < text.length; ++i) {
             if (i < messageString.length) {
                 text[i] = messageString[i];
@@ -80,17 +104,28 @@ public class ScoreKeeper {
                 text[i] = ' ';
             }
         }
-        String string = String.valueOf(levelMultiplier);
-        for (int i = 0; i < string.length(); ++i) {
-            text[i + 1] = string.charAt(i);
+        putNumber(levelMultiplier, 1);
+        putNumber(currentScore, 6);
+        putNumber(viewTop ? currentTopScore : lastRoundScore, 16);
+    }
+
+    /**
+     * Writes the decimal digits of a number into the text from the given
+     * position, like String.valueOf but without creating a string.
+     */
+    private void putNumber(int number, int position) {
+        long value = number;
+        if (value < 0) {
+            text[position++] = '-';
+            value = -value;
         }
-        string = String.valueOf(currentScore);
-        for (int i = 0; i < string.length(); ++i) {
-            text[i + 6] = string.charAt(i);
+        int digits = 1;
+        for (long rest = value; rest >= 10; rest /= 10) {
+            ++digits;
         }
-        string = String.valueOf(viewTop ? currentTopScore : lastRoundScore);
-        for (int i = 0; i < string.length(); ++i) {
-            text[i + 16] = string.charAt(i);
+        for (int i = position + digits - 1; i >= position; --i) {
+            text[i] = (char)('0' + value % 10);
+            value /= 10;
         }
     }
 
@@ -105,12 +140,45 @@ public class ScoreKeeper {
         reset();
     }
 
+    /**
+     * Returns true if the highscore is presented instead of the score
+     * of the last round.
+     */
+    public boolean isViewingTop() {
+        return viewTop;
+    }
+
     /**
      * Enables/disables the visibility of the score on screen
      */
     public void toggleScore() {
         viewTop = !viewTop;
-        updateText();
+        textDirty = true;
+    }
+
+    /**
+     * Writes the counters of the score to the buffer, STATE_SIZE bytes.
+     */
+    void writeState(ByteBuffer buffer) {
+        buffer.putInt(currentScore);
+        buffer.putInt(currentTopScore);
+        buffer.putInt(lastRoundScore);
+        buffer.putInt(levelMultiplier);
+        buffer.putInt(scoreCount);
+        buffer.put((byte)(viewTop ? 1 : 0));
+    }
+
+    /**
+     * Reads counters that were written by writeState.
+     */
+    void readState(ByteBuffer buffer) {
+        currentScore = buffer.getInt();
+        currentTopScore = buffer.getInt();
+        lastRoundScore = buffer.getInt();
+        levelMultiplier = buffer.getInt();
+        scoreCount = buffer.getInt();
+        viewTop = buffer.get() != 0;
+        textDirty = true;
     }
 
     /**
@@ -122,19 +190,6 @@ public class ScoreKeeper {
         currentScore += baseScore*levelMultiplier*(lines*(lines/2+1));
         ++scoreCount;
         if (scoreCount/levelMultiplier > 5) ++levelMultiplier;
-        updateText();
-    }
-
-    /**
-     * Draw the current score using the Canvas object.
-     */
-    public void draw(Canvas canvas) {
-        paint.setARGB(255, 63, 63, 63);
-        canvas.drawText(text, 0, 4, posX, posY, paint);
-        int offset = (scoreCount % (COLORS.length / 3)) * 3;
-        paint.setARGB(255, COLORS[offset + 0], COLORS[offset + 1], COLORS[offset + 2]);
-        canvas.drawText(text, 5, 14 - 5, posX + 50, posY, paint);
-        paint.setARGB(255, viewTop ? 255 : 200, 200, 200);
-        canvas.drawText(text, 15, 30, posX + 180, posY, paint);
+        textDirty = true;
     }
 }
@@ -0,0 +1,499 @@
+package se.axelhjelmqvist.blocksgame;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Durable store of the results of the rounds, that keeps the best scores.
+ * It is an EngineListener, so that the result of every round that ends is
+ * stored, and the game thread only puts the result in a queue. A writer
+ * thread appends the results to a journal in batches, with one fsync per
+ * batch, so a result is safe a short moment after the round ended.
+ *
+ * The best scores are kept in a small top file that is memory-mapped, so
+ * that reading a rank is a read from memory. The top file is never changed
+ * in place: a new one is written to a temporary file, synced and renamed
+ * over the old one, so it is either the old or the new file after a crash.
+ * It records which part of the journals it covers, a generation and an
+ * offset into that journal, and the journal of a generation is only deleted
+ * when a top file covers it. When the store is opened the results in the
+ * journals that the top file does not cover are read again, up to the first
+ * record that is torn or does not match its checksum.
+ *
+ * The files are top and journal.N in the directory of the store.
+ */
+public class ScoreStore
+        implements EngineListener {
+    final static int MAGIC = 0x42475301;
+    final static int TOP_HEADER_SIZE = 32;
+    final static int ENTRY_SIZE = 16;
+    final static int RECORD_SIZE = ENTRY_SIZE + 4;
+
+    /**
+     * The size that a journal is allowed to grow to before a new one is
+     * started.
+     */
+    final static long JOURNAL_LIMIT = 64 * 1024;
+
+    /**
+     * How long the writer waits for more results after the first result of
+     * a batch, in milliseconds, and the most results in a batch.
+     */
+    final static long BATCH_MILLIS = 50;
+    final static int BATCH_LIMIT = 64;
+
+    final static int QUEUE_CAPACITY = 256;
+
+    /**
+     * A result of a round, or a request to flush or stop the writer.
+     */
+    private static class Entry {
+        int score, level;
+        long timeMillis;
+        CountDownLatch done;
+        boolean stop;
+    }
+
+    final File directory;
+
+    final int capacity;
+
+    /**
+     * The best results in order, owned by the writer thread after opening.
+     */
+    int[] scores, levels;
+
+    long[] times;
+
+    int count;
+
+    long generation;
+
+    FileChannel journal;
+
+    long journalLength;
+
+    /**
+     * The mapped top file that the ranks are read from, replaced by the
+     * writer when the best results change.
+     */
+    volatile MappedByteBuffer top;
+
+    final ArrayBlockingQueue<Entry> queue;
+
+    volatile long dropped;
+
+    /**
+     * The last error of the writer, the results of a batch that failed are
+     * still ranked but may not be on disk.
+     */
+    volatile IOException error;
+
+    Thread writer;
+
+    /**
+     * Opens the store in a directory, which is created if it does not exist,
+     * and starts its writer. The store keeps the given number of best results.
+     */
+    public ScoreStore(File directory, int capacity) throws IOException {
+        this.directory = directory;
+        this.capacity = capacity;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory);
+        }
+        scores = new int[capacity];
+        levels = new int[capacity];
+        times = new long[capacity];
+        count = 0;
+        error = null;
+        queue = new ArrayBlockingQueue<Entry>(QUEUE_CAPACITY);
+        dropped = 0;
+        recover();
+        writer = new Thread(new Runnable() {
+            public void run() {
+                write();
+            }
+        }, "ScoreStore");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Reads the top file and the journals after it, and starts a new journal
+     * with a top file that covers all of the results.
+     */
+    private void recover() throws IOException {
+        long fromGeneration = 0, fromOffset = 0;
+        File topFile = new File(directory, "top");
+        if (topFile.exists()) {
+            ByteBuffer buffer = readFile(topFile);
+            if (isValidTop(buffer)) {
+                fromGeneration = buffer.getLong(8);
+                fromOffset = buffer.getLong(16);
+                int topCount = Math.min(buffer.getInt(4), capacity);
+                for (int i = 0; i < topCount; ++i) {
+                    int position = TOP_HEADER_SIZE + i * ENTRY_SIZE;
+                    insert(buffer.getInt(position), buffer.getInt(position + 4), buffer.getLong(position + 8));
+                }
+            }
+        }
+        long[] generations = listJournals();
+        long lastGeneration = fromGeneration - 1;
+        for (int i = 0; i < generations.length; ++i) {
+            if (generations[i] >= fromGeneration) {
+                readJournal(getJournal(generations[i]), generations[i] == fromGeneration ? fromOffset : 0);
+                lastGeneration = generations[i];
+            }
+        }
+        startJournal(Math.max(lastGeneration + 1, 0));
+        for (int i = 0; i < generations.length; ++i) {
+            if (generations[i] < generation) {
+                getJournal(generations[i]).delete();
+            }
+        }
+    }
+
+    private static boolean isValidTop(ByteBuffer buffer) {
+        if (buffer.limit() < TOP_HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            return false;
+        }
+        int topCount = buffer.getInt(4);
+        if (topCount < 0 || buffer.limit() != TOP_HEADER_SIZE + topCount * ENTRY_SIZE) {
+            return false;
+        }
+        return buffer.getInt(24) == checksum(buffer, TOP_HEADER_SIZE, topCount * ENTRY_SIZE);
+    }
+
+    /**
+     * Reads the valid records of a journal from an offset. A torn or damaged
+     * record ends the journal.
+     */
+    private void readJournal(File file, long offset) throws IOException {
+        ByteBuffer buffer = readFile(file);
+        for (int position = (int)offset; position + RECORD_SIZE <= buffer.limit(); position += RECORD_SIZE) {
+            if (buffer.getInt(position + ENTRY_SIZE) != checksum(buffer, position, ENTRY_SIZE)) {
+                return;
+            }
+            insert(buffer.getInt(position), buffer.getInt(position + 4), buffer.getLong(position + 8));
+        }
+    }
+
+    private long[] listJournals() {
+        String[] names = directory.list();
+        long[] generations = new long[names == null ? 0 : names.length];
+        int found = 0;
+        for (int i = 0; i < generations.length; ++i) {
+            if (names[i].startsWith("journal.")) {
+                try {
+                    generations[found] = Long.parseLong(names[i].substring("journal.".length()));
+                    ++found;
+                } catch (NumberFormatException e) {
+                    // Not a journal
+                }
+            }
+        }
+        long[] journals = new long[found];
+        System.arraycopy(generations, 0, journals, 0, found);
+        Arrays.sort(journals);
+        return journals;
+    }
+
+    private File getJournal(long generation) {
+        return new File(directory, "journal." + generation);
+    }
+
+    /**
+     * Starts an empty journal of a generation, and writes a top file that
+     * covers everything before it.
+     */
+    private void startJournal(long generation) throws IOException {
+        if (journal != null) {
+            journal.close();
+        }
+        this.generation = generation;
+        RandomAccessFile file = new RandomAccessFile(getJournal(generation), "rw");
+        file.setLength(0);
+        journal = file.getChannel();
+        journalLength = 0;
+        writeTop();
+    }
+
+    /**
+     * Writes the best results to a new top file that covers the journal up to
+     * its current length, and maps it.
+     */
+    private void writeTop() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(TOP_HEADER_SIZE + count * ENTRY_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, count);
+        buffer.putLong(8, generation);
+        buffer.putLong(16, journalLength);
+        for (int i = 0; i < count; ++i) {
+            int position = TOP_HEADER_SIZE + i * ENTRY_SIZE;
+            buffer.putInt(position, scores[i]);
+            buffer.putInt(position + 4, levels[i]);
+            buffer.putLong(position + 8, times[i]);
+        }
+        buffer.putInt(24, checksum(buffer, TOP_HEADER_SIZE, count * ENTRY_SIZE));
+        File temporary = new File(directory, "top.tmp");
+        RandomAccessFile file = new RandomAccessFile(temporary, "rw");
+        try {
+            file.setLength(0);
+            FileChannel channel = file.getChannel();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        } finally {
+            file.close();
+        }
+        File topFile = new File(directory, "top");
+        if (!temporary.renameTo(topFile)) {
+            throw new IOException("Could not replace " + topFile);
+        }
+        file = new RandomAccessFile(topFile, "r");
+        try {
+            MappedByteBuffer mapped = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+            mapped.order(ByteOrder.LITTLE_ENDIAN);
+            top = mapped;
+        } finally {
+            file.close();
+        }
+    }
+
+    private static ByteBuffer readFile(File file) throws IOException {
+        RandomAccessFile input = new RandomAccessFile(file, "r");
+        try {
+            ByteBuffer buffer = ByteBuffer.allocate((int)input.length()).order(ByteOrder.LITTLE_ENDIAN);
+            FileChannel channel = input.getChannel();
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                // Read until full
+            }
+            buffer.flip();
+            return buffer;
+        } finally {
+            input.close();
+        }
+    }
+
+    private static int checksum(ByteBuffer buffer, int offset, int length) {
+        CRC32 crc = new CRC32();
+        for (int i = offset; i < offset + length; ++i) {
+            crc.update(buffer.get(i));
+        }
+        return (int)crc.getValue();
+    }
+
+    /**
+     * Puts a result among the best ones if it is good enough. Returns true if
+     * the best results changed. Equal scores are ordered by time.
+     */
+    private boolean insert(int score, int level, long timeMillis) {
+        int position = count;
+        while (position > 0 && (scores[position - 1] < score
+                || (scores[position - 1] == score && times[position - 1] > timeMillis))) {
+            --position;
+        }
+        if (position >= capacity) {
+            return false;
+        }
+        int moved = Math.min(count, capacity - 1) - position;
+        System.arraycopy(scores, position, scores, position + 1, moved);
+        System.arraycopy(levels, position, levels, position + 1, moved);
+        System.arraycopy(times, position, times, position + 1, moved);
+        scores[position] = score;
+        levels[position] = level;
+        times[position] = timeMillis;
+        count = Math.min(count + 1, capacity);
+        return true;
+    }
+
+    /**
+     * The loop of the writer thread.
+     */
+    private void write() {
+        ArrayList<Entry> batch = new ArrayList<Entry>();
+        ByteBuffer buffer = ByteBuffer.allocate(BATCH_LIMIT * RECORD_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        boolean running = true;
+        while (running) {
+            batch.clear();
+            try {
+                Entry entry = queue.take();
+                batch.add(entry);
+                while (!entry.stop && entry.done == null && batch.size() < BATCH_LIMIT) {
+                    entry = queue.poll(BATCH_MILLIS, TimeUnit.MILLISECONDS);
+                    if (entry == null) {
+                        break;
+                    }
+                    batch.add(entry);
+                }
+            } catch (InterruptedException e) {
+                running = false;
+            }
+            try {
+                writeBatch(batch, buffer);
+            } catch (IOException e) {
+                error = e;
+            }
+            for (int i = 0; i < batch.size(); ++i) {
+                Entry entry = batch.get(i);
+                if (entry.done != null) {
+                    entry.done.countDown();
+                }
+                if (entry.stop) {
+                    running = false;
+                }
+            }
+        }
+        try {
+            journal.close();
+        } catch (IOException e) {
+            error = e;
+        }
+    }
+
+    /**
+     * Appends the results of a batch to the journal with one sync, and then
+     * updates the top file if the best results changed.
+     */
+    private void writeBatch(ArrayList<Entry> batch, ByteBuffer buffer) throws IOException {
+        buffer.clear();
+        boolean changed = false;
+        for (int i = 0; i < batch.size(); ++i) {
+            Entry entry = batch.get(i);
+            if (entry.stop || entry.done != null) {
+                continue;
+            }
+            int position = buffer.position();
+            buffer.putInt(entry.score);
+            buffer.putInt(entry.level);
+            buffer.putLong(entry.timeMillis);
+            buffer.putInt(checksum(buffer, position, ENTRY_SIZE));
+            changed |= insert(entry.score, entry.level, entry.timeMillis);
+        }
+        if (buffer.position() == 0) {
+            return;
+        }
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            journalLength += journal.write(buffer, journalLength);
+        }
+        journal.force(false);
+        if (journalLength >= JOURNAL_LIMIT) {
+            long old = generation;
+            startJournal(generation + 1);
+            getJournal(old).delete();
+        } else if (changed) {
+            writeTop();
+        }
+    }
+
+    /**
+     * Stores the result of a round without waiting. Returns false, and counts
+     * the result as dropped, if the writer has fallen too far behind.
+     */
+    public boolean submit(int score, int level, long timeMillis) {
+        Entry entry = new Entry();
+        entry.score = score;
+        entry.level = level;
+        entry.timeMillis = timeMillis;
+        if (!queue.offer(entry)) {
+            ++dropped;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Waits until the results that have been submitted are on disk.
+     */
+    public void flush() throws InterruptedException {
+        Entry entry = new Entry();
+        entry.done = new CountDownLatch(1);
+        queue.put(entry);
+        entry.done.await();
+    }
+
+    /**
+     * Writes the submitted results and stops the writer.
+     */
+    public void close() throws InterruptedException {
+        Entry entry = new Entry();
+        entry.stop = true;
+        queue.put(entry);
+        writer.join();
+    }
+
+    /**
+     * Returns the number of results that are ranked, at most the capacity.
+     */
+    public int getCount() {
+        return top.getInt(4);
+    }
+
+    /**
+     * Returns the score of a rank, from 0 for the best one, or 0 if there is
+     * no result of that rank.
+     */
+    public int getScore(int rank) {
+        MappedByteBuffer buffer = top;
+        return rank < buffer.getInt(4) ? buffer.getInt(TOP_HEADER_SIZE + rank * ENTRY_SIZE) : 0;
+    }
+
+    /**
+     * Returns the level of a rank, or 0 if there is no result of that rank.
+     */
+    public int getLevel(int rank) {
+        MappedByteBuffer buffer = top;
+        return rank < buffer.getInt(4) ? buffer.getInt(TOP_HEADER_SIZE + rank * ENTRY_SIZE + 4) : 0;
+    }
+
+    /**
+     * Returns the time in milliseconds since 1970 that the round of a rank
+     * ended, or 0 if there is no result of that rank.
+     */
+    public long getTime(int rank) {
+        MappedByteBuffer buffer = top;
+        return rank < buffer.getInt(4) ? buffer.getLong(TOP_HEADER_SIZE + rank * ENTRY_SIZE + 8) : 0;
+    }
+
+    /**
+     * Returns the last error of the writer, or null if there has been none.
+     */
+    public IOException getError() {
+        return error;
+    }
+
+    /**
+     * Returns the number of results that were not stored because the queue
+     * was full.
+     */
+    public long getDropped() {
+        return dropped;
+    }
+
+    public void shapeMoved(BlocksgameEngine engine) {
+    }
+
+    public void shapeLocked(BlocksgameEngine engine, int lines) {
+    }
+
+    /**
+     * Stores the result of the round that ended. This is called before the
+     * score of the engine is reset.
+     */
+    public void roundEnded(BlocksgameEngine engine, int finalScore) {
+        submit(finalScore, engine.score.levelMultiplier, System.currentTimeMillis());
+    }
+}
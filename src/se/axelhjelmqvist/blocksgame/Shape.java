@@ -1,19 +1,17 @@
 package se.axelhjelmqvist.blocksgame;
 
 /**
- * Class that represents a tetromino shape in the game. Holds
- * a recursive reference to a possible "future" represenation
- * of the Shape, that is used to check if a move of the blocks
- * that represents the shape is possible.
+ * Class that represents a tetromino shape in the game. A shape is
+ * only its type, orientation, color and position, the blocks of
+ * every orientation of every type are looked up in the tables
+ * of the ShapeTool class.
  */
 
 public class Shape {
-    public int[] bitmap;
+    public int type, orientation, color;
 
     public int x, y;
 
-    private Shape future;
-
     /**
      * Initializes a new instance of the Shape object, given
      * certain values.
@@ -21,65 +19,49 @@ public class Shape {
     public Shape(int type, int orientation, int flippation) {
         x = 0;
         y = 0;
-        bitmap = new int[3 * 5];
         ShapeTool.setShape(this, type, 0);
         ShapeTool.flipShape(this, flippation);
         ShapeTool.rotateShape(this, orientation);
-        future = new Shape();
     }
 
     /**
-     * Initializes a new Shape instance using default values. 
+     * Initializes a copy of another shape, including its position.
+     */
+    public Shape(Shape other) {
+        set(other.type, other.orientation, other.color);
+        x = other.x;
+        y = other.y;
+    }
+
+    /**
+     * Sets the type, orientation and color of the shape. The
+     * position is kept.
      */
-    private Shape() {
-        this.bitmap = new int[3 * 5];
-        this.x = 0;
-        this.y = 0;
+    public void set(int type, int orientation, int color) {
+        this.type = type;
+        this.orientation = orientation;
+        this.color = color;
     }
 
     /**
-     * Returns a possible future instance of the Shape object.
-     * It can later be retained or discarded.
+     * Returns the index of the current orientation in the tables
+     * of the ShapeTool class.
      */
-    public Shape getFuture(int x, int y) {
-        future.x = this.x + x;
-        future.y = this.y + y;
-        for (int i = 0; i < 3 * 5; ++i) {
-            future.bitmap[i] = bitmap[i];
-        }
-        return future;
+    public int getIndex() {
+        return ShapeTool.index(type, orientation);
     }
 
     /**
-     * Returns a possible future instance of the Shape object
-     * using some interesting new properties such as an updated
-     * position, flip (mirroring) or rotation, however it will still
-     * be the same "type" of shape.
-     * It can later be retained or discarded.
+     * Returns the horizontal board coordinate of one of the four blocks.
      */
-    public Shape getFuture(int x, int y, int flip, int rotation) {
-        future.x = this.x + x;
-        future.y = this.y + y;
-        for (int i = 0; i < 3 * 5; ++i) {
-            future.bitmap[i] = bitmap[i];
-        }
-        if (flip >= 0) {
-            ShapeTool.flipShape(future, flip);
-        }
-        if (rotation != 0) {
-            ShapeTool.rotateShape(future, rotation);
-        }
-        return future;
+    public int getBlockX(int block) {
+        return x + ShapeTool.BLOCKS_X[getIndex() * 4 + block];
     }
 
     /**
-     * Invoked to retain the current "future" Shape object.
+     * Returns the vertical board coordinate of one of the four blocks.
      */
-    public void keepFuture() {
-        this.x = future.x;
-        this.y = future.y;
-        for (int i = 0; i < 3 * 5; ++i) {
-            bitmap[i] = future.bitmap[i];
-        }
+    public int getBlockY(int block) {
+        return y + ShapeTool.BLOCKS_Y[getIndex() * 4 + block];
     }
 }
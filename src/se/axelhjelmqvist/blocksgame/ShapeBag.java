@@ -0,0 +1,78 @@
+package se.axelhjelmqvist.blocksgame;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A randomizer of the types of shapes that deals every type once, in a
+ * random order, before any type is repeated, like drawing from a bag that
+ * is refilled when it is empty. This keeps long droughts of one type from
+ * happening.
+ */
+public class ShapeBag {
+    private int[] types;
+
+    private int remaining;
+
+    /**
+     * Constructor of a bag with every type of shape in ShapeTool.
+     */
+    public ShapeBag() {
+        types = new int[ShapeTool.TYPES];
+        for (int i = 0; i < types.length; ++i) {
+            types[i] = i;
+        }
+        remaining = 0;
+    }
+
+    /**
+     * Constructor of a bag with the types and the order of another bag.
+     */
+    ShapeBag(ShapeBag other) {
+        types = other.types.clone();
+        remaining = other.remaining;
+    }
+
+    /**
+     * Empties the bag, it is refilled at the next draw.
+     */
+    public void reset() {
+        remaining = 0;
+    }
+
+    /**
+     * Writes the order of the types and the number of remaining types to
+     * the buffer, TYPES + 1 bytes.
+     */
+    void writeState(ByteBuffer buffer) {
+        buffer.put((byte)remaining);
+        for (int i = 0; i < types.length; ++i) {
+            buffer.put((byte)types[i]);
+        }
+    }
+
+    /**
+     * Reads a state that was written by writeState.
+     */
+    void readState(ByteBuffer buffer) {
+        remaining = buffer.get();
+        for (int i = 0; i < types.length; ++i) {
+            types[i] = buffer.get();
+        }
+    }
+
+    /**
+     * Draws the next type from the bag, using the given source to shuffle.
+     */
+    public int next(RandomSource random) {
+        if (remaining == 0) {
+            remaining = types.length;
+        }
+        // Draw one of the remaining types and move it out of the remaining part
+        int index = random.nextInt(remaining);
+        int type = types[index];
+        --remaining;
+        types[index] = types[remaining];
+        types[remaining] = type;
+        return type;
+    }
+}
@@ -50,47 +50,124 @@ public class ShapeTool {
     };
 
     /**
-     * Instance of an array that is used to save results of operations on
-     * the shapes without allocating new array objects.
+     * The number of different types of shapes that are encoded in LAYOUTS.
      */
-    private static float[] result = new float[2];
+    public final static int TYPES = LAYOUTS.length / (3 * 5);
 
     /**
-     * Rotate a point about an origin. The result is not returned but
-     * is saved to the result argument.
+     * The number of orientations of each type. The lower two bits of an
+     * orientation is the number of rotation steps and the third bit
+     * tells if the shape is flipped.
      */
-    public static void rotatePoint(double theta, double x, double y, double originX, double originY, float[] result) {
-        result[0] = (float)((Math.cos(theta) * (x - originX) - Math.sin(theta) * (y - originY)) + originX);
-        result[1] = (float)((Math.sin(theta) * (x - originX) + Math.cos(theta) * (y - originY)) + originY);
+    public final static int ORIENTATIONS = 8;
+
+    /**
+     * The coordinates of the four blocks of every orientation of every type,
+     * in relation to the position of the shape. The blocks of an orientation
+     * starts at index(type, orientation) * 4.
+     */
+    public final static int[] BLOCKS_X = new int[TYPES * ORIENTATIONS * 4];
+
+    public final static int[] BLOCKS_Y = new int[TYPES * ORIENTATIONS * 4];
+
+    /**
+     * Occupancy masks of the (at most four) rows that are covered by every
+     * orientation, starting at index(type, orientation) * 4. Bit zero is the
+     * leftmost column of the orientation, MIN_X. The first row is MIN_Y.
+     */
+    public final static int[] ROW_MASKS = new int[TYPES * ORIENTATIONS * 4];
+
+    public final static int[] MIN_X = new int[TYPES * ORIENTATIONS];
+
+    public final static int[] MIN_Y = new int[TYPES * ORIENTATIONS];
+
+    public final static int[] HEIGHT = new int[TYPES * ORIENTATIONS];
+
+    static {
+        for (int type = 0; type < TYPES; ++type) {
+            for (int orientation = 0; orientation < ORIENTATIONS; ++orientation) {
+                expandOrientation(type, orientation);
+            }
+        }
+    }
+
+    /**
+     * Calculates the blocks and row masks of a single orientation of a layout.
+     * This is only done when the class is loaded. The rotation is exact, each
+     * step is a ninety degree rotation about the origin of the layout.
+     */
+    private static void expandOrientation(int type, int orientation) {
+        int offset = type * (3 * 5);
+        int index = index(type, orientation);
+        int originX = LAYOUTS[offset + 0], originY = LAYOUTS[offset + 1];
+        boolean flipped = (orientation & 4) != 0;
+        if (flipped) {
+            originX += 1;
+        }
+        int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE, maxY = Integer.MIN_VALUE;
+        for (int i = 0; i < 4; ++i) {
+            int x = LAYOUTS[offset + 3 * (i + 1) + 0];
+            int y = LAYOUTS[offset + 3 * (i + 1) + 1];
+            if (flipped) {
+                x = ((x - LAYOUTS[offset + 0]) * -1) + 1;
+            }
+            for (int step = 0; step < (orientation & 3); ++step) {
+                int rotatedX = originX + (y - originY);
+                y = originY - (x - originX);
+                x = rotatedX;
+            }
+            BLOCKS_X[index * 4 + i] = x;
+            BLOCKS_Y[index * 4 + i] = y;
+            minX = Math.min(minX, x);
+            minY = Math.min(minY, y);
+            maxY = Math.max(maxY, y);
+        }
+        MIN_X[index] = minX;
+        MIN_Y[index] = minY;
+        HEIGHT[index] = maxY - minY + 1;
+        for (int i = 0; i < 4; ++i) {
+            ROW_MASKS[index * 4 + BLOCKS_Y[index * 4 + i] - minY] |= 1 << (BLOCKS_X[index * 4 + i] - minX);
+        }
+    }
+
+    /**
+     * Returns the index of an orientation of a type in the orientation tables.
+     */
+    public static int index(int type, int orientation) {
+        return type * ORIENTATIONS + orientation;
+    }
+
+    /**
+     * Returns the orientation that is the result of rotating the given
+     * orientation ninety degrees, steps number of times.
+     */
+    public static int rotate(int orientation, int steps) {
+        return (orientation & 4) | ((orientation + steps) & 3);
+    }
+
+    /**
+     * Returns the orientation that is the result of mirroring the given
+     * orientation. Mirroring reverses the direction of the rotation.
+     */
+    public static int flip(int orientation) {
+        return ((orientation & 4) ^ 4) | (-orientation & 3);
     }
 
     /**
      * Make a shape into a certain type. Type and color can be specified.
      */
     public static void setShape(Shape shape, int type, int color) {
-        int[] bitmap = shape.bitmap;
-        if (type >= (ShapeTool.LAYOUTS.length / (3 * 5))) {
+        if (type >= TYPES) {
             type = 0;
         }
-        int offset = type * (3 * 5);
-        for (int i = 0; i < 3 * 5; ++i) {
-            bitmap[i] = ShapeTool.LAYOUTS[offset + i];
-        }
-        for (int i = 3; i < 3 * 5; i+=3) {
-            bitmap[i + 2] += color;
-        }
+        shape.set(type, 0, 1 + color);
     }
 
     /**
-     * Flip or mirror a shape object about a horizontal or vertical axis.
+     * Flip or mirror a shape object about a vertical axis.
      */
     public static void flipShape(Shape shape, int axis) {
-        int[] bitmap = shape.bitmap;
-        int originX = bitmap[0];
-        for (int i = 3; i < 3 * 5; i += 3) {
-            bitmap[i + 0] = ((bitmap[i + 0] - originX) * -1) + 1;
-        }
-        bitmap[0] += 1;
+        shape.orientation = flip(shape.orientation);
     }
 
     /**
@@ -98,13 +175,6 @@ public class ShapeTool {
      * for steps number of times.
      */
     public static void rotateShape(Shape shape, int steps) {
-        int[] bitmap = shape.bitmap;
-        double degrees = -90 * steps;
-        double radians = degrees * (Math.PI / 180.0);
-        for (int i = 3; i < 3 * 5; i += 3) {
-            rotatePoint(radians, bitmap[i + 0], bitmap[i + 1], bitmap[0], bitmap[1], result);
-            bitmap[i + 0] = (int)result[0];
-            bitmap[i + 1] = (int)result[1];
-        }
+        shape.orientation = rotate(shape.orientation, steps);
     }
 }
@@ -0,0 +1,270 @@
+package se.axelhjelmqvist.blocksgame;
+
+/**
+ * Renderer that draws into a framebuffer of ARGB pixels in memory, one int
+ * per pixel in rows from the top. It needs nothing from Android, so the
+ * drawing of the game can be run, timed and checked anywhere.
+ *
+ * The background is scaled to the size of the framebuffer once and then
+ * copied whole every frame. The sprites are scaled to the size of a brick
+ * once by init, and each row of a sprite that is fully opaque is copied
+ * with System.arraycopy, while the other rows are blended pixel by pixel.
+ * The layer is drawn in spans: a run of opaque pixels is copied, a run of
+ * transparent pixels is skipped and the rest are blended.
+ *
+ * Text is drawn with a small built-in font that has the digits and a few
+ * signs, other characters are drawn as blocks. It is not meant to look
+ * like the text on Android, only to show what is written.
+ */
+public class SoftwareRenderer
+        implements Renderer {
+    /**
+     * The glyphs of the font, three pixels wide and five high. Each glyph is
+     * five rows of three bits, the top row in the highest bits.
+     */
+    final static String GLYPH_CHARS = "0123456789:.-";
+    final static int[] GLYPHS = {
+        0x7b6f, 0x2c97, 0x73e7, 0x73cf, 0x5bc9, 0x79cf, 0x79ef, 0x7249, 0x7bef, 0x7bcf,
+        0x0410, 0x0002, 0x01c0
+    };
+    final static int BLOCK_GLYPH = 0x7fff;
+
+    final int width, height;
+
+    final int[] pixels;
+
+    final int[] background;
+
+    final int[][] sourceSprites;
+
+    final int sourceWidth, sourceHeight;
+
+    int brickWidth, brickHeight;
+
+    /**
+     * The sprites at the size of a brick, and for each sprite a flag per row
+     * that is set if the row is fully opaque.
+     */
+    int[][] sprites;
+
+    boolean[][] opaqueRows;
+
+    int[] layer;
+
+    int layerWidth, layerHeight;
+
+    float textSize;
+
+    /**
+     * Constructor of a renderer with a framebuffer of the given size. The
+     * background and the sprites are given as ARGB pixels, and all of the
+     * sprites have the same size. The first sprite is not used and may be
+     * null. The background is drawn over black.
+     */
+    public SoftwareRenderer(int width, int height, int[] background, int backgroundWidth, int backgroundHeight,
+            int[][] sprites, int spriteWidth, int spriteHeight) {
+        this.width = width;
+        this.height = height;
+        pixels = new int[width * height];
+        this.background = scale(background, backgroundWidth, backgroundHeight, width, height);
+        for (int i = 0; i < this.background.length; ++i) {
+            this.background[i] = blend(0xff000000, this.background[i]);
+        }
+        sourceSprites = sprites;
+        sourceWidth = spriteWidth;
+        sourceHeight = spriteHeight;
+        textSize = 12;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Returns the framebuffer.
+     */
+    public int[] getPixels() {
+        return pixels;
+    }
+
+    /**
+     * Returns a checksum of the framebuffer, which is the same for the same
+     * image. It is the 64-bit FNV-1a hash of the pixels.
+     */
+    public long checksum() {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < pixels.length; ++i) {
+            hash = (hash ^ (pixels[i] & 0xffffffffL)) * 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    public void init(int brickWidth, int brickHeight, int layerWidth, int layerHeight) {
+        this.brickWidth = brickWidth;
+        this.brickHeight = brickHeight;
+        sprites = new int[sourceSprites.length][];
+        opaqueRows = new boolean[sourceSprites.length][];
+        for (int i = 1; i < sprites.length; ++i) {
+            int[] sprite = scale(sourceSprites[i], sourceWidth, sourceHeight, brickWidth, brickHeight);
+            sprites[i] = sprite;
+            opaqueRows[i] = new boolean[brickHeight];
+            for (int y = 0; y < brickHeight; ++y) {
+                boolean opaque = true;
+                for (int x = 0; x < brickWidth && opaque; ++x) {
+                    opaque = (sprite[y * brickWidth + x] >>> 24) == 0xff;
+                }
+                opaqueRows[i][y] = opaque;
+            }
+        }
+        this.layerWidth = layerWidth;
+        this.layerHeight = layerHeight;
+        layer = new int[layerWidth * layerHeight];
+        textSize = Math.max(12, brickHeight / 2);
+    }
+
+    public void drawBackground() {
+        System.arraycopy(background, 0, pixels, 0, pixels.length);
+    }
+
+    public void fill(int argb) {
+        for (int i = 0; i < pixels.length; ++i) {
+            pixels[i] = blend(pixels[i], argb);
+        }
+    }
+
+    public void clearLayer(int fromY, int toY) {
+        fromY = Math.max(fromY, 0);
+        toY = Math.min(toY, layerHeight);
+        for (int i = fromY * layerWidth; i < toY * layerWidth; ++i) {
+            layer[i] = 0;
+        }
+    }
+
+    public void drawLayerSprite(int sprite, int x, int y) {
+        // Drawing on transparent pixels leaves the pixels of the sprite, and
+        // the blocks of the layer do not overlap, so they are copied
+        int[] source = sprites[sprite];
+        int left = Math.max(x, 0), right = Math.min(x + brickWidth, layerWidth);
+        if (left >= right) {
+            return;
+        }
+        for (int row = Math.max(y, 0); row < Math.min(y + brickHeight, layerHeight); ++row) {
+            System.arraycopy(source, (row - y) * brickWidth + left - x, layer, row * layerWidth + left, right - left);
+        }
+    }
+
+    public void drawLayer(int x, int y) {
+        int left = Math.max(x, 0), right = Math.min(x + layerWidth, width);
+        for (int row = Math.max(y, 0); row < Math.min(y + layerHeight, height); ++row) {
+            int source = (row - y) * layerWidth - x, target = row * width;
+            int column = left;
+            while (column < right) {
+                int alpha = layer[source + column] >>> 24;
+                int end = column + 1;
+                if (alpha == 0xff) {
+                    while (end < right && (layer[source + end] >>> 24) == 0xff) {
+                        ++end;
+                    }
+                    System.arraycopy(layer, source + column, pixels, target + column, end - column);
+                } else if (alpha == 0) {
+                    while (end < right && layer[source + end] >>> 24 == 0) {
+                        ++end;
+                    }
+                } else {
+                    pixels[target + column] = blend(pixels[target + column], layer[source + column]);
+                }
+                column = end;
+            }
+        }
+    }
+
+    public void drawSprite(int sprite, int x, int y) {
+        int[] source = sprites[sprite];
+        boolean[] opaque = opaqueRows[sprite];
+        int left = Math.max(x, 0), right = Math.min(x + brickWidth, width);
+        if (left >= right) {
+            return;
+        }
+        for (int row = Math.max(y, 0); row < Math.min(y + brickHeight, height); ++row) {
+            int from = (row - y) * brickWidth - x, target = row * width;
+            if (opaque[row - y]) {
+                System.arraycopy(source, from + left, pixels, target + left, right - left);
+            } else {
+                for (int column = left; column < right; ++column) {
+                    pixels[target + column] = blend(pixels[target + column], source[from + column]);
+                }
+            }
+        }
+    }
+
+    public void drawText(char[] text, int start, int count, float x, float y, int argb) {
+        int scale = Math.max(1, (int)(textSize / 6));
+        int left = (int)x, top = (int)y - 5 * scale;
+        for (int i = start; i < start + count; ++i) {
+            char c = text[i];
+            if (c != ' ') {
+                int index = GLYPH_CHARS.indexOf(c);
+                drawGlyph(index < 0 ? BLOCK_GLYPH : GLYPHS[index], left, top, scale, argb);
+            }
+            left += 4 * scale;
+        }
+    }
+
+    private void drawGlyph(int glyph, int x, int y, int scale, int argb) {
+        for (int row = 0; row < 5 * scale; ++row) {
+            int targetY = y + row;
+            if (targetY < 0 || targetY >= height) {
+                continue;
+            }
+            int bits = glyph >> (3 * (4 - row / scale));
+            for (int column = 0; column < 3 * scale; ++column) {
+                int targetX = x + column;
+                if (targetX >= 0 && targetX < width && ((bits >> (2 - column / scale)) & 1) != 0) {
+                    pixels[targetY * width + targetX] = blend(pixels[targetY * width + targetX], argb);
+                }
+            }
+        }
+    }
+
+    public float getTextSize() {
+        return textSize;
+    }
+
+    /**
+     * Returns a color drawn over another, with the alpha of the color on top.
+     * The colors are not premultiplied.
+     */
+    public static int blend(int below, int above) {
+        int alpha = above >>> 24;
+        if (alpha == 0xff) {
+            return above;
+        }
+        if (alpha == 0) {
+            return below;
+        }
+        int belowAlpha = ((below >>> 24) * (255 - alpha) + 127) / 255;
+        int outAlpha = alpha + belowAlpha;
+        int red = ((above >> 16 & 0xff) * alpha + (below >> 16 & 0xff) * belowAlpha + outAlpha / 2) / outAlpha;
+        int green = ((above >> 8 & 0xff) * alpha + (below >> 8 & 0xff) * belowAlpha + outAlpha / 2) / outAlpha;
+        int blue = ((above & 0xff) * alpha + (below & 0xff) * belowAlpha + outAlpha / 2) / outAlpha;
+        return (outAlpha << 24) | (red << 16) | (green << 8) | blue;
+    }
+
+    /**
+     * Returns an image scaled to another size, by taking the nearest pixel.
+     */
+    public static int[] scale(int[] source, int sourceWidth, int sourceHeight, int width, int height) {
+        int[] result = new int[width * height];
+        for (int y = 0; y < height; ++y) {
+            int sourceRow = (int)((long)y * sourceHeight / height) * sourceWidth;
+            for (int x = 0; x < width; ++x) {
+                result[y * width + x] = source[sourceRow + (int)((long)x * sourceWidth / width)];
+            }
+        }
+        return result;
+    }
+}
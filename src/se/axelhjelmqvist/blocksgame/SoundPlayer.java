@@ -7,9 +7,11 @@ import android.media.SoundPool;
 
 /**
  * SoundPlayer class. Loads and plays a few sound effects.
- * This class is a Singleton object. 
+ * This class is a Singleton object. It is attached to the
+ * BlocksgameEngine as a listener to play the effects of the game.
  */
-public class SoundPlayer {
+public class SoundPlayer
+        implements EngineListener {
     private static SoundPlayer instance = null;
 
     private ArrayList<Integer> media;
@@ -48,6 +50,27 @@ public class SoundPlayer {
         }
     }
 
+    /**
+     * Plays the sound effect of a shape that was moved or rotated.
+     */
+    public void shapeMoved(BlocksgameEngine engine) {
+        playSound(0);
+    }
+
+    /**
+     * Plays the sound effect of a shape that landed, which depends on
+     * if any rows were completed.
+     */
+    public void shapeLocked(BlocksgameEngine engine, int lines) {
+        playSound((lines > 0) ? 1 : 2);
+    }
+
+    /**
+     * The end of a round has no sound effect of its own.
+     */
+    public void roundEnded(BlocksgameEngine engine, int finalScore) {
+    }
+
     /**
      * Set a value to decide if the SoundPlayer is enabled.
      */
@@ -0,0 +1,217 @@
+package se.axelhjelmqvist.blocksgame;
+
+/**
+ * Encodes the game of an engine as messages for spectators: a keyframe that
+ * is the whole state that is shown, and for each tick where something
+ * happened a delta of the events of that tick. A spectator that starts from
+ * a keyframe and applies the deltas that follow it has the same board as the
+ * engine, so only the keyframes grow with the size of the board.
+ *
+ * A delta is the tick of the engine as a varint followed by events, each a
+ * byte of its type and varints, where the positions are zigzag varints:
+ *
+ * SPAWN: the index of the shape in the tables of ShapeTool, its color, x
+ * and y, and the index and color of the next shape.
+ * MOVE: the index, x and y of the shape, after a fall, move or rotation.
+ * LOCK: the index, color, x and y where the shape was inserted into the
+ * board, the score and the level, the number of rows that were removed and
+ * those rows, in ascending order as BlocksgameEngine.eliminateRows takes
+ * them.
+ * END: the final score, the board is cleared.
+ *
+ * A keyframe is the tick, the score and the level, the width and height of
+ * the board, the shape and the next shape as in SPAWN, and the colors of the
+ * board, row by row from the top, as runs: varints of the length of a run
+ * shifted left four bits, or:ed with its color.
+ *
+ * The encoder must be added as a listener of the engine, and encodeTick
+ * called after each update. The events of one update always fit in the
+ * encoder, but if an update is not encoded the events of the next ones may
+ * not. They are then dropped, and needsKeyframe returns true until a
+ * keyframe is encoded. Nothing is allocated.
+ */
+public class SpectatorEncoder
+        implements EngineListener {
+    public final static int SPAWN = 1, MOVE = 2, LOCK = 3, END = 4;
+
+    /**
+     * The largest size of each event, with every varint at its longest. A
+     * lock is six varints, the number of rows and the four rows.
+     */
+    final static int MAX_SPAWN_SIZE = 1 + 6 * 5, MAX_LOCK_SIZE = 1 + 6 * 5 + 1 + 4 * 5, MAX_END_SIZE = 1 + 5;
+
+    /**
+     * The largest size of the events of one update, which locks at most one
+     * shape, which may end the round, and puts the next shape in play.
+     */
+    final static int MAX_TICK_EVENTS_SIZE = MAX_LOCK_SIZE + MAX_END_SIZE + MAX_SPAWN_SIZE;
+
+    final BlocksgameEngine engine;
+
+    /**
+     * The events of the current tick, before encodeTick writes them.
+     */
+    final byte[] events;
+
+    int eventsLength;
+
+    /**
+     * Set when events were dropped because they did not fit.
+     */
+    boolean lost;
+
+    int lastShapeCount, lastIndex, lastX, lastY;
+
+    public SpectatorEncoder(BlocksgameEngine engine) {
+        this.engine = engine;
+        events = new byte[MAX_TICK_EVENTS_SIZE];
+        eventsLength = 0;
+        lost = false;
+        lastShapeCount = engine.shapeCount;
+        lastIndex = engine.shape.getIndex();
+        lastX = engine.shape.x;
+        lastY = engine.shape.y;
+    }
+
+    /**
+     * Returns the largest number of bytes that a keyframe of the engine can
+     * take.
+     */
+    public int getMaxKeyframeSize() {
+        return 16 * 5 + engine.sizeX * engine.sizeY * 5;
+    }
+
+    /**
+     * Returns the largest number of bytes that a delta can take.
+     */
+    public int getMaxDeltaSize() {
+        return 5 + events.length;
+    }
+
+    /**
+     * Returns true if events were dropped, because an update was not encoded,
+     * so that the spectators need a keyframe to be in sync again.
+     */
+    public boolean needsKeyframe() {
+        return lost;
+    }
+
+    /**
+     * Makes room for an event of the given largest size, and returns true. If
+     * there is no room, the events are dropped and false is returned.
+     */
+    private boolean reserve(int size) {
+        if (!lost && eventsLength + size > events.length) {
+            lost = true;
+            eventsLength = 0;
+        }
+        return !lost;
+    }
+
+    /**
+     * Writes the delta of the tick that the engine just made to the buffer, at
+     * the given position, and returns the position after it. If nothing
+     * happened, or events have been dropped, nothing is written and the same
+     * position is returned.
+     */
+    public int encodeTick(byte[] buffer, int position) {
+        Shape shape = engine.shape;
+        int index = shape.getIndex();
+        if (!reserve(MAX_SPAWN_SIZE)) {
+            // Nothing more is sent until the keyframe
+        } else if (engine.shapeCount != lastShapeCount) {
+            events[eventsLength++] = SPAWN;
+            eventsLength = writeShape(events, eventsLength, shape, true);
+            eventsLength = Replay.writeVarint(events, eventsLength, engine.nextShape.getIndex());
+            eventsLength = Replay.writeVarint(events, eventsLength, engine.nextShape.color);
+        } else if (index != lastIndex || shape.x != lastX || shape.y != lastY) {
+            events[eventsLength++] = MOVE;
+            eventsLength = writeShape(events, eventsLength, shape, false);
+        }
+        lastShapeCount = engine.shapeCount;
+        lastIndex = index;
+        lastX = shape.x;
+        lastY = shape.y;
+        if (eventsLength == 0) {
+            return position;
+        }
+        position = Replay.writeVarint(buffer, position, engine.ticks);
+        System.arraycopy(events, 0, buffer, position, eventsLength);
+        position += eventsLength;
+        eventsLength = 0;
+        return position;
+    }
+
+    /**
+     * Writes a keyframe of the state of the engine to the buffer, at the given
+     * position, and returns the position after it. The events that have not
+     * been encoded are in the keyframe, so they are forgotten.
+     */
+    public int encodeKeyframe(byte[] buffer, int position) {
+        eventsLength = 0;
+        lost = false;
+        lastShapeCount = engine.shapeCount;
+        lastIndex = engine.shape.getIndex();
+        lastX = engine.shape.x;
+        lastY = engine.shape.y;
+        position = Replay.writeVarint(buffer, position, engine.ticks);
+        position = Replay.writeVarint(buffer, position, engine.score.currentScore);
+        position = Replay.writeVarint(buffer, position, engine.score.levelMultiplier);
+        position = Replay.writeVarint(buffer, position, engine.sizeX);
+        position = Replay.writeVarint(buffer, position, engine.sizeY);
+        position = writeShape(buffer, position, engine.shape, true);
+        position = Replay.writeVarint(buffer, position, engine.nextShape.getIndex());
+        position = Replay.writeVarint(buffer, position, engine.nextShape.color);
+        int color = engine.field[0][0], run = 0;
+        for (int y = 0; y < engine.sizeY; ++y) {
+            int[] row = engine.field[y];
+            for (int x = 0; x < engine.sizeX; ++x) {
+                if (row[x] != color) {
+                    position = Replay.writeVarint(buffer, position, (long)run << 4 | color);
+                    color = row[x];
+                    run = 0;
+                }
+                ++run;
+            }
+        }
+        return Replay.writeVarint(buffer, position, (long)run << 4 | color);
+    }
+
+    private static int writeShape(byte[] buffer, int position, Shape shape, boolean color) {
+        position = Replay.writeVarint(buffer, position, shape.getIndex());
+        if (color) {
+            position = Replay.writeVarint(buffer, position, shape.color);
+        }
+        position = Replay.writeVarint(buffer, position, Replay.zigzag(shape.x));
+        return Replay.writeVarint(buffer, position, Replay.zigzag(shape.y));
+    }
+
+    public void shapeMoved(BlocksgameEngine engine) {
+    }
+
+    /**
+     * Adds the lock of the shape, and the rows that it removed, to the events
+     * of the tick.
+     */
+    public void shapeLocked(BlocksgameEngine engine, int lines) {
+        if (!reserve(MAX_LOCK_SIZE)) {
+            return;
+        }
+        events[eventsLength++] = LOCK;
+        eventsLength = writeShape(events, eventsLength, engine.shape, true);
+        eventsLength = Replay.writeVarint(events, eventsLength, engine.score.currentScore);
+        eventsLength = Replay.writeVarint(events, eventsLength, engine.score.levelMultiplier);
+        eventsLength = Replay.writeVarint(events, eventsLength, lines);
+        for (int i = 0; i < lines; ++i) {
+            eventsLength = Replay.writeVarint(events, eventsLength, engine.getRemovedRow(i));
+        }
+    }
+
+    public void roundEnded(BlocksgameEngine engine, int finalScore) {
+        if (!reserve(MAX_END_SIZE)) {
+            return;
+        }
+        events[eventsLength++] = END;
+        eventsLength = Replay.writeVarint(events, eventsLength, finalScore);
+    }
+}
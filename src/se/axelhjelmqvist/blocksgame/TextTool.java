@@ -0,0 +1,63 @@
+package se.axelhjelmqvist.blocksgame;
+
+/**
+ * Class with static methods that write text into char arrays, for text that
+ * is drawn every frame and must not create strings. Each method writes from
+ * a position and returns the position after what it wrote. None of the
+ * methods allocate.
+ */
+public class TextTool {
+    /**
+     * Writes a string.
+     */
+    public static int putText(char[] line, int position, String text) {
+        text.getChars(0, text.length(), line, position);
+        return position + text.length();
+    }
+
+    /**
+     * Writes microseconds as milliseconds with one decimal, such as 12.3.
+     */
+    public static int putMillis(char[] line, int position, long micros) {
+        long tenths = (Math.max(micros, 0) + 50) / 100;
+        int digits = 2;
+        for (long rest = tenths; rest >= 100; rest /= 10) {
+            ++digits;
+        }
+        int end = position + digits + 1;
+        for (int i = end - 1; i >= position; --i) {
+            if (i == end - 2) {
+                line[i] = '.';
+            } else {
+                line[i] = (char)('0' + tenths % 10);
+                tenths /= 10;
+            }
+        }
+        return end;
+    }
+
+    /**
+     * Writes the decimal digits of a number that is not negative.
+     */
+    public static int putNumber(char[] line, int position, long number) {
+        int digits = 1;
+        for (long rest = number; rest >= 10; rest /= 10) {
+            ++digits;
+        }
+        int end = position + digits;
+        for (int i = end - 1; i >= position; --i) {
+            line[i] = (char)('0' + number % 10);
+            number /= 10;
+        }
+        return end;
+    }
+
+    /**
+     * Fills the rest of the line with spaces.
+     */
+    public static void padLine(char[] line, int position) {
+        while (position < line.length) {
+            line[position++] = ' ';
+        }
+    }
+}
@@ -1,15 +1,18 @@
 package se.axelhjelmqvist.blocksgame;
 
-import android.os.SystemClock;
-
 /**
  * A timer that is used to calculate timing values for a game-loop.
  * Will account for time that the game was paused in its calculations.
+ * The times are kept as long nanoseconds of a Clock, so that the deltas
+ * stay exact however long the clock has been running, and are converted
+ * to float seconds only when they are asked for.
  */
 public class Timer {
-    float initialTime, currentTime, lastTime;
+    Clock clock;
+
+    long initialTime, currentTime, lastTime;
 
-    float deltaTime, pauseTime, totalPauseTime;
+    long deltaTime, pauseTime, totalPauseTime;
 
     public boolean pausing = false;
 
@@ -18,7 +21,16 @@ public class Timer {
      * ie. starts the timer.
      */
     public Timer() {
-        initialTime = getTime();
+        this(MonotonicClock.INSTANCE);
+    }
+
+    /**
+     * Constructor of a timer that measures the time of the given clock.
+     */
+    public Timer(Clock clock) {
+        this.clock = clock;
+        initialTime = currentTime = lastTime = clock.nanoTime();
+        deltaTime = pauseTime = totalPauseTime = 0;
     }
 
     /**
@@ -27,34 +39,42 @@ public class Timer {
      */
     public void update() {
         lastTime = currentTime;
-        currentTime = getTime();
+        currentTime = clock.nanoTime();
         deltaTime = currentTime - lastTime;
-        if (deltaTime < 0.0f) {
-            deltaTime = 0.0f;
+        if (deltaTime < 0) {
+            deltaTime = 0;
         }
     }
 
     /**
-     * Gets the current syste time (system clock uptime value).
+     * Returns the clock of the timer.
      */
-    private float getTime() {
-        return (float)SystemClock.uptimeMillis() / 1000.0f;
+    public Clock getClock() {
+        return clock;
     }
 
     /**
-     * Gets the total time since the timer was created. The amount of
-     * time that was elapsed during paused is subtracted.
+     * Gets the total time in seconds since the timer was created. The amount
+     * of time that was elapsed during paused is subtracted.
      */
     public float getTotal() {
-        return (currentTime - initialTime) - totalPauseTime;
+        return (float)((currentTime - initialTime - totalPauseTime) / 1e9);
     }
 
     /**
-     * Gets the delta of time that elapsed during the last two consectuive calls to
-     * update, not counting time elapsed when paused.
+     * Gets the delta of time in seconds that elapsed during the last two
+     * consectuive calls to update, not counting time elapsed when paused.
      */
     public float getDelta() {
-        return pausing ? 0.0f : deltaTime;
+        return (float)(getDeltaNanos() / 1e9);
+    }
+
+    /**
+     * Gets the delta of time in nanoseconds that elapsed during the last two
+     * consectuive calls to update, not counting time elapsed when paused.
+     */
+    public long getDeltaNanos() {
+        return pausing ? 0 : deltaTime;
     }
 
     /**
@@ -63,7 +83,7 @@ public class Timer {
      */
     public void pause() {
         if (!pausing) {
-            pauseTime = getTime();
+            pauseTime = clock.nanoTime();
             pausing = true;
         }
     }
@@ -73,11 +93,11 @@ public class Timer {
      */
     public void resume() {
         if (pausing) {  
-        	currentTime = getTime();
-            float interval = pauseTime-currentTime;
+            currentTime = clock.nanoTime();
+            long interval = currentTime - pauseTime;
             lastTime += interval;
             totalPauseTime += interval;
             pausing = false;
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,38 @@
+package se.axelhjelmqvist.blocksgame;
+
+/**
+ * A clock that only moves when it is advanced, for tests and simulations
+ * that run the game loop faster (or slower) than real time.
+ */
+public class VirtualClock
+        implements Clock {
+    private long time;
+
+    /**
+     * Constructor of a clock that starts at zero.
+     */
+    public VirtualClock() {
+        time = 0;
+    }
+
+    public long nanoTime() {
+        return time;
+    }
+
+    /**
+     * Moves the time forward by the given number of nanoseconds.
+     */
+    public void advance(long nanos) {
+        if (nanos < 0) {
+            throw new IllegalArgumentException("The clock cannot go backwards");
+        }
+        time += nanos;
+    }
+
+    /**
+     * Moves the time forward by the given number of seconds.
+     */
+    public void advanceSeconds(double seconds) {
+        advance((long)(seconds * 1e9));
+    }
+}
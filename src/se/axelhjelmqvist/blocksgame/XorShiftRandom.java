@@ -0,0 +1,56 @@
+package se.axelhjelmqvist.blocksgame;
+
+/**
+ * A fast random number generator that is not synchronized. It is a 64-bit
+ * xorshift generator with a multiplied output (xorshift64*). The seed is
+ * scrambled before it is used so that similar seeds give unrelated sequences.
+ */
+public class XorShiftRandom
+        implements RandomSource {
+    private long state;
+
+    /**
+     * Constructor of a generator that starts from the given seed.
+     */
+    public XorShiftRandom(long seed) {
+        setSeed(seed);
+    }
+
+    public void setSeed(long seed) {
+        long z = seed + 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        z = z ^ (z >>> 31);
+        // The state of a xorshift generator must never be zero
+        state = z == 0 ? 0x9E3779B97F4A7C15L : z;
+    }
+
+    public long getState() {
+        return state;
+    }
+
+    public void setState(long state) {
+        this.state = state == 0 ? 0x9E3779B97F4A7C15L : state;
+    }
+
+    public RandomSource copy() {
+        XorShiftRandom copy = new XorShiftRandom(0);
+        copy.state = state;
+        return copy;
+    }
+
+    /**
+     * Returns the next 64 random bits.
+     */
+    public long nextLong() {
+        state ^= state >>> 12;
+        state ^= state << 25;
+        state ^= state >>> 27;
+        return state * 0x2545F4914F6CDD1DL;
+    }
+
+    public int nextInt(int bound) {
+        // The upper 32 bits are scaled to the range instead of using the slow remainder
+        return (int)(((nextLong() >>> 32) * bound) >>> 32);
+    }
+}
@@ -0,0 +1,153 @@
+package se.axelhjelmqvist.blocksgame;
+
+/**
+ * Checks that the frame path of the game allocates nothing once it has
+ * warmed up. The Android-free part of a frame is run as Blocksgame and
+ * BlocksgameSurfaceView run it, on a VirtualClock: touches are put in an
+ * EventRing and taken out as Input.getEvent does, routed to the engine and
+ * traced by a LatencyTracer, a Timer feeds a GameLoop that ticks the engine
+ * with the recorder that the game uses and a listener attached, and a
+ * BoardPainter draws the board and the overlays on a SoftwareRenderer while
+ * a FrameProfiler times the phases. The bytes that the thread allocates are
+ * counted with the ThreadMXBean of the virtual machine, and the process exits
+ * with status 1 if a single byte was allocated after the warm-up, so that
+ * this can be run as a build step. The optional arguments are the number of
+ * frames to warm up with and the number of frames to measure.
+ */
+public class AllocationGuard {
+    final static int LEFT = 0, RIGHT = 1, DROP = 2, ROTATE = 3;
+
+    public static void main(String[] args) {
+        int warmupFrames = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        int frames = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+        VirtualClock clock = new VirtualClock();
+        Timer timer = new Timer(clock);
+        GameLoop loop = new GameLoop(BlocksgameEngine.TICK_NANOS, 5);
+        BlocksgameEngine engine = new BlocksgameEngine(10, 20, 1);
+        ReplayRecorder recorder = new ReplayRecorder(1, 10, 20, false, ReplayRecorder.GAME_CAPACITY);
+        engine.setRecorder(recorder);
+        final long[] events = new long[1];
+        engine.addListener(new EngineListener() {
+            public void shapeMoved(BlocksgameEngine engine) {
+                ++events[0];
+            }
+
+            public void shapeLocked(BlocksgameEngine engine, int lines) {
+                ++events[0];
+            }
+
+            public void roundEnded(BlocksgameEngine engine, int finalScore) {
+                ++events[0];
+            }
+        });
+        Frame frame = new Frame(clock, timer, loop, engine);
+        XorShiftRandom random = new XorShiftRandom(2);
+        frame.run(warmupFrames, random);
+        if (MicroBenchmark.getAllocatedBytes() == 0) {
+            System.out.println("The virtual machine can not count allocated bytes");
+            return;
+        }
+        long ticks = loop.getTicks();
+        long allocated = MicroBenchmark.getAllocatedBytes();
+        long checksum = frame.run(frames, random);
+        allocated = MicroBenchmark.getAllocatedBytes() - allocated;
+        ticks = loop.getTicks() - ticks;
+        System.out.println(String.format("%d frames, %d ticks, %d events, %d touches traced, %d replay bytes%s, "
+                + "%d bytes allocated, %.3f bytes per tick (%d)", frames, ticks, events[0],
+                frame.tracer.getHistogram(LatencyTracer.TOUCH_TO_POST).getCount(), recorder.getLength(),
+                recorder.isTruncated() ? " (full)" : "", allocated, (double)allocated / ticks, checksum));
+        if (allocated != 0) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * The parts of a frame of the game that do not need Android.
+     */
+    static class Frame {
+        final VirtualClock clock;
+        final Timer timer;
+        final GameLoop loop;
+        final BlocksgameEngine engine;
+        final EventRing ring;
+        final LatencyTracer tracer;
+        final FrameProfiler profiler;
+        final SoftwareRenderer renderer;
+        final BoardPainter painter;
+
+        Frame(VirtualClock clock, Timer timer, GameLoop loop, BlocksgameEngine engine) {
+            this.clock = clock;
+            this.timer = timer;
+            this.loop = loop;
+            this.engine = engine;
+            // The capacity of the ring of Input
+            ring = new EventRing(64);
+            tracer = new LatencyTracer(clock);
+            profiler = new FrameProfiler(clock, 256, 1000000000L / 60);
+            renderer = RenderBenchmark.createRenderer(240, 400);
+            painter = new BoardPainter(engine, renderer, 240, 400);
+        }
+
+        /**
+         * Runs frames of jittered length with random touches, about one every
+         * eight frames, and returns a checksum of what was drawn so that the
+         * drawing is not optimized away.
+         */
+        long run(int frames, XorShiftRandom random) {
+            long checksum = 0;
+            for (int frame = 0; frame < frames; ++frame) {
+                if (random.nextInt(8) == 0) {
+                    long touch = clock.nanoTime();
+                    clock.advance(random.nextInt(2000000));
+                    ring.offer(random.nextInt(4), random.nextInt(2), touch, clock.nanoTime());
+                }
+                clock.advance(8000000L + random.nextInt(30000000));
+                profiler.beginFrame();
+                update();
+                profiler.endPhase(FrameProfiler.UPDATE);
+                profiler.endPhase(FrameProfiler.LOCK);
+                renderer.drawBackground();
+                painter.draw(loop.getAlpha());
+                painter.drawLatency(tracer);
+                painter.drawProfile(profiler);
+                profiler.endPhase(FrameProfiler.DRAW);
+                profiler.endPhase(FrameProfiler.POST);
+                profiler.endFrame();
+                tracer.framePosted();
+                checksum += renderer.pixels[frame % renderer.pixels.length];
+            }
+            return checksum;
+        }
+
+        /**
+         * Routes the touches to the engine and ticks it, as Blocksgame.update.
+         */
+        void update() {
+            long deltaTime = timer.getDeltaNanos();
+            while (!ring.isEmpty()) {
+                int button = ring.getButton(), state = ring.getState();
+                long touch = ring.getTimeNanos(), enqueue = ring.getEnqueueNanos();
+                ring.remove();
+                long dequeue = tracer.getClock().nanoTime();
+                if (button == LEFT) {
+                    Replay.perform(engine, state == 1 ? Replay.LEFT_DOWN : Replay.LEFT_UP);
+                } else if (button == RIGHT) {
+                    Replay.perform(engine, state == 1 ? Replay.RIGHT_DOWN : Replay.RIGHT_UP);
+                } else if (button == DROP) {
+                    Replay.perform(engine, state == 1 ? Replay.DROP_DOWN : Replay.DROP_UP);
+                } else if (state == 1) {
+                    Replay.perform(engine, Replay.ROTATE);
+                }
+                if (state == 1) {
+                    tracer.actionTaken(touch, enqueue, dequeue);
+                }
+            }
+            loop.beginFrame(deltaTime);
+            while (loop.nextTick()) {
+                painter.beforeTick();
+                engine.update(loop.getTickSeconds());
+            }
+            timer.update();
+        }
+    }
+}
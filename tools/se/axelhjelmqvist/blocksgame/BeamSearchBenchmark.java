@@ -0,0 +1,34 @@
+package se.axelhjelmqvist.blocksgame;
+
+/**
+ * Plays games with the BeamSearchPlayer and reports how many boards it rates
+ * per second, how often it runs out of its time budget and how well it plays.
+ * This is used to size the hardware of bot tournaments. The optional arguments
+ * are the beam width, the depth, the time budget of a move in milliseconds,
+ * the number of threads, the number of games and the number of updates after
+ * which a game is cut short.
+ */
+public class BeamSearchBenchmark {
+    public static void main(String[] args) {
+        int beamWidth = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        int depth = args.length > 1 ? Integer.parseInt(args[1]) : 2;
+        long budgetMillis = args.length > 2 ? Long.parseLong(args[2]) : 33;
+        int threads = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+        int games = args.length > 4 ? Integer.parseInt(args[4]) : 10;
+        long maxTicks = args.length > 5 ? Long.parseLong(args[5]) : 100000;
+        BeamSearchPlayer player = new BeamSearchPlayer(10, 20, LinearHeuristic.DEFAULT_WEIGHTS,
+                beamWidth, depth, budgetMillis * 1000000L, threads);
+        GameRunner runner = new GameRunner(10, 20, BlocksgameEngine.TICK_SECONDS, maxTicks);
+        GameStatistics statistics = new GameStatistics();
+        long start = System.nanoTime();
+        for (int game = 0; game < games; ++game) {
+            runner.play(GameRunner.seedOf(1, game), player);
+            statistics.record(runner);
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        player.shutdown();
+        System.out.println(statistics);
+        System.out.println(String.format("width %d, depth %d, %d threads: %.0f nodes/s, %d searches out of time, %.2f s",
+                beamWidth, depth, threads, player.getNodesPerSecond(), player.timeouts, seconds));
+    }
+}
@@ -0,0 +1,341 @@
+package se.axelhjelmqvist.blocksgame;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Benchmarks of the hot paths of the BlocksgameEngine. Every operation is
+ * measured on a number of prepared board states, and a macro benchmark plays
+ * complete games with random input as fast as possible. The allocations
+ * of every benchmark are reported, so that garbage that is created while
+ * the game is played is noticed.
+ *
+ * The benchmarks need nothing but the Android-free classes of the game.
+ * Compile the simulation core together with the tools and run this class:
+ *
+ *     javac -d out -sourcepath src tools/se/axelhjelmqvist/blocksgame/*.java
+ *     java -cp out se.axelhjelmqvist.blocksgame.EngineBenchmark [filter] [warmup ms] [measure ms]
+ */
+public class EngineBenchmark {
+    public final static String[] STATES = new String[] {
+            "empty", "half-full", "near-top-out", "multi-line-clear"
+    };
+
+    public final static int EMPTY = 0, HALF_FULL = 1, NEAR_TOP_OUT = 2, MULTI_LINE_CLEAR = 3;
+
+    final BlocksgameEngine engine;
+
+    final int[][] savedField;
+
+    final int[] savedRows;
+
+    final Shape savedShape;
+
+    final int[] completeRows;
+
+    final int completeRowsCount;
+
+    /**
+     * Prepares an engine in one of the board states, with the shape in play
+     * resting on the board so that the next step down will land it.
+     */
+    EngineBenchmark(int state) {
+        engine = new BlocksgameEngine(10, 20, state);
+        prepare(engine, state, new Random(31 + state));
+        savedField = new int[engine.sizeY][];
+        for (int y = 0; y < engine.sizeY; ++y) {
+            savedField[y] = engine.field[y].clone();
+        }
+        savedRows = engine.rows.clone();
+        savedShape = new Shape(0, 0, 0);
+        copyShape(engine.shape, savedShape);
+        completeRows = new int[4 * 2];
+        int count = engine.checkScore(completeRows);
+        if (count == 0) {
+            // Remove the bottom row when nothing is complete, to measure the cost of moving the rows
+            completeRows[count++] = engine.sizeY - 1;
+        }
+        completeRowsCount = count;
+    }
+
+    /**
+     * Fills the board of an engine according to one of the states and places
+     * the shape in play where it is about to land.
+     */
+    public static void prepare(BlocksgameEngine engine, int state, Random random) {
+        int sizeX = engine.sizeX, sizeY = engine.sizeY;
+        engine.resetField();
+        int filledFrom = sizeY;
+        if (state == HALF_FULL) {
+            filledFrom = sizeY / 2;
+        } else if (state == NEAR_TOP_OUT) {
+            filledFrom = 3;
+        } else if (state == MULTI_LINE_CLEAR) {
+            filledFrom = sizeY / 2 + 2;
+        }
+        for (int y = filledFrom; y < sizeY; ++y) {
+            int holes = 1 + random.nextInt(2);
+            for (int x = 0; x < sizeX; ++x) {
+                engine.field[y][x] = 1 + random.nextInt(ScoreKeeper.COLORS.length / 3);
+            }
+            if (state == MULTI_LINE_CLEAR && y >= sizeY - 4) {
+                // Complete except for the last column, which a straight shape fills
+                engine.field[y][sizeX - 1] = 0;
+                continue;
+            }
+            for (int i = 0; i < holes; ++i) {
+                engine.field[y][random.nextInt(sizeX)] = 0;
+            }
+        }
+        engine.resetRows();
+        Shape shape = engine.shape;
+        if (state == MULTI_LINE_CLEAR) {
+            shape.set(0, 1, shape.color);
+            shape.x = sizeX - 1;
+        } else {
+            shape.x = (sizeX / 2) - 1;
+        }
+        shape.y = BlocksgameEngine.SPAWN_Y;
+        while (!engine.detectCollission(shape.type, shape.orientation, shape.x, shape.y + 1)) {
+            ++shape.y;
+        }
+    }
+
+    /**
+     * Helper method that copies the type, orientation, color and position of a shape.
+     */
+    static void copyShape(Shape from, Shape to) {
+        to.set(from.type, from.orientation, from.color);
+        to.x = from.x;
+        to.y = from.y;
+    }
+
+    /**
+     * Restores the board and the shape in play to the prepared state. Forks
+     * that were made of the engine must no longer be used. The benchmarks
+     * that do not restore before every operation restore before every run,
+     * since they share the engine with the ones that move the shape or
+     * remove rows.
+     */
+    void restore() {
+        for (int y = 0; y < savedField.length; ++y) {
+            System.arraycopy(savedField[y], 0, engine.field[y], 0, savedField[y].length);
+        }
+        Arrays.fill(engine.rowShared, false);
+        System.arraycopy(savedRows, 0, engine.rows, 0, savedRows.length);
+        copyShape(savedShape, engine.shape);
+        engine.score.currentScore = 0;
+        engine.score.scoreCount = 0;
+        engine.score.levelMultiplier = 1;
+    }
+
+    /**
+     * Creates the benchmarks of the operations of the engine in the given state.
+     */
+    static void addOperations(ArrayList<MicroBenchmark> benchmarks, int state) {
+        final EngineBenchmark bench = new EngineBenchmark(state);
+        final BlocksgameEngine engine = bench.engine;
+        final Shape shape = engine.shape;
+        String suffix = " [" + STATES[state] + "]";
+        benchmarks.add(new MicroBenchmark("restore (baseline)" + suffix) {
+            protected long run(int count) {
+                for (int i = 0; i < count; ++i) {
+                    bench.restore();
+                }
+                return engine.field[0][0];
+            }
+        });
+        benchmarks.add(new MicroBenchmark("moveDown" + suffix) {
+            protected long run(int count) {
+                for (int i = 0; i < count; ++i) {
+                    bench.restore();
+                    engine.moveDown();
+                }
+                return shape.y;
+            }
+        });
+        benchmarks.add(new MicroBenchmark("translateShape" + suffix) {
+            protected long run(int count) {
+                bench.restore();
+                for (int i = 0; i < count; ++i) {
+                    engine.translateShape((i & 1) == 0 ? -1 : 1);
+                }
+                return shape.x;
+            }
+        });
+        benchmarks.add(new MicroBenchmark("rotateTile" + suffix) {
+            protected long run(int count) {
+                bench.restore();
+                for (int i = 0; i < count; ++i) {
+                    engine.rotateTile();
+                }
+                return shape.orientation;
+            }
+        });
+        benchmarks.add(new MicroBenchmark("detectCollission" + suffix) {
+            protected long run(int count) {
+                bench.restore();
+                long result = 0;
+                for (int i = 0; i < count; ++i) {
+                    if (engine.detectCollission(shape.type, shape.orientation, shape.x, shape.y + (i & 1))) {
+                        ++result;
+                    }
+                }
+                return result;
+            }
+        });
+        benchmarks.add(new MicroBenchmark("checkScore" + suffix) {
+            final int[] result = new int[4 * 2];
+
+            protected long run(int count) {
+                bench.restore();
+                long total = 0;
+                for (int i = 0; i < count; ++i) {
+                    total += engine.checkScore(result);
+                }
+                return total;
+            }
+        });
+        benchmarks.add(new MicroBenchmark("eliminateRows" + suffix) {
+            protected long run(int count) {
+                for (int i = 0; i < count; ++i) {
+                    bench.restore();
+                    engine.eliminateRows(bench.completeRows, bench.completeRowsCount);
+                }
+                return engine.rows[BlocksgameEngine.ROW_PADDING];
+            }
+        });
+        benchmarks.add(new MicroBenchmark("placement search" + suffix) {
+            final PlacementSearch search = new PlacementSearch(engine.sizeX, engine.sizeY, new LinearHeuristic());
+
+            protected long run(int count) {
+                bench.restore();
+                long total = 0;
+                for (int i = 0; i < count; ++i) {
+                    search.search(engine.rows, shape.type, shape.orientation, shape.x, BlocksgameEngine.SPAWN_Y);
+                    total += search.bestX;
+                }
+                return total;
+            }
+        });
+        benchmarks.add(new MicroBenchmark("nextTile" + suffix) {
+            protected long run(int count) {
+                bench.restore();
+                for (int i = 0; i < count; ++i) {
+                    engine.nextTile();
+                }
+                return engine.nextShape.type;
+            }
+        });
+        benchmarks.add(new MicroBenchmark("fork" + suffix) {
+            protected long run(int count) {
+                bench.restore();
+                long total = 0;
+                for (int i = 0; i < count; ++i) {
+                    total += engine.fork().shape.y;
+                }
+                return total;
+            }
+        });
+        benchmarks.add(new MicroBenchmark("fork and lock" + suffix) {
+            protected long run(int count) {
+                bench.restore();
+                long total = 0;
+                for (int i = 0; i < count; ++i) {
+                    BlocksgameEngine child = engine.fork();
+                    // The prepared shape rests on the board, so it locks at once
+                    child.moveDown();
+                    if (child.shapeCount == engine.shapeCount) {
+                        throw new IllegalStateException("The shape of the fork did not lock");
+                    }
+                    total += child.score.currentScore;
+                }
+                return total;
+            }
+        });
+        benchmarks.add(createSnapshot(engine, ByteBuffer.allocate(engine.getSnapshotSize()), "heap" + suffix));
+        benchmarks.add(createSnapshot(engine, ByteBuffer.allocateDirect(engine.getSnapshotSize()).order(ByteOrder.nativeOrder()), "direct" + suffix));
+    }
+
+    /**
+     * Creates the benchmark of a round trip of a snapshot of the engine
+     * through the given buffer.
+     */
+    static MicroBenchmark createSnapshot(final BlocksgameEngine engine, final ByteBuffer buffer, String suffix) {
+        return new MicroBenchmark("snapshot and restore, " + suffix) {
+            protected long run(int count) {
+                for (int i = 0; i < count; ++i) {
+                    buffer.clear();
+                    engine.snapshot(buffer);
+                    buffer.flip();
+                    engine.restore(buffer);
+                }
+                return engine.field[engine.sizeY - 1][0];
+            }
+        };
+    }
+
+    /**
+     * Creates the macro benchmark, where one operation is a complete game
+     * played with random input and the shape moving down at every update.
+     */
+    static MicroBenchmark createFullGame() {
+        final BlocksgameEngine engine = new BlocksgameEngine(10, 20, 1);
+        final int[] rounds = new int[1];
+        engine.addListener(new EngineListener() {
+            public void shapeMoved(BlocksgameEngine engine) {
+            }
+
+            public void shapeLocked(BlocksgameEngine engine, int lines) {
+            }
+
+            public void roundEnded(BlocksgameEngine engine, int finalScore) {
+                ++rounds[0];
+            }
+        });
+        final XorShiftRandom input = new XorShiftRandom(2);
+        return new MicroBenchmark("full game") {
+            protected long run(int count) {
+                int target = rounds[0] + count;
+                while (rounds[0] < target) {
+                    int action = input.nextInt(8);
+                    if (action == 0) {
+                        engine.moveLeft(true);
+                        engine.moveLeft(false);
+                    } else if (action == 1) {
+                        engine.moveRight(true);
+                        engine.moveRight(false);
+                    } else if (action == 2) {
+                        engine.rotateTile();
+                    }
+                    engine.update(0.5f);
+                }
+                return engine.score.lastRoundScore;
+            }
+        };
+    }
+
+    /**
+     * Runs the benchmarks. The optional arguments are a filter that the names
+     * of the benchmarks must contain, the warmup time and the measurement time
+     * of each benchmark in milliseconds.
+     */
+    public static void main(String[] args) {
+        String filter = args.length > 0 ? args[0] : "";
+        long warmup = args.length > 1 ? Long.parseLong(args[1]) : 1000;
+        long measure = args.length > 2 ? Long.parseLong(args[2]) : 2000;
+        ArrayList<MicroBenchmark> benchmarks = new ArrayList<MicroBenchmark>();
+        for (int state = 0; state < STATES.length; ++state) {
+            addOperations(benchmarks, state);
+        }
+        benchmarks.add(createFullGame());
+        for (MicroBenchmark benchmark : benchmarks) {
+            if (benchmark.name.contains(filter)) {
+                System.out.println(benchmark.measure(warmup, measure));
+            }
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package se.axelhjelmqvist.blocksgame;
+
+/**
+ * Checks EventRing with a producer and a consumer thread. The producer puts
+ * in numbered events and the consumer reads them, and every event must come
+ * out once, in order and with its own state and time, or be counted as
+ * dropped. By default the producer waits for room, and every event must come
+ * out. With "drop" it puts in bursts of half the capacity and then yields, as
+ * touches come in bursts, and events that find the ring full are dropped,
+ * but at least half of them must come out. The process exits with status 1
+ * if a check fails. The optional arguments are the number of events, the
+ * capacity of the ring and "wait" or "drop".
+ */
+public class EventRingCheck {
+    public static void main(String[] args) throws InterruptedException {
+        final int count = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        final int capacity = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+        final boolean wait = args.length <= 2 || !args[2].equals("drop");
+        final EventRing ring = new EventRing(capacity);
+        Thread producer = new Thread(new Runnable() {
+            public void run() {
+                int burst = Math.max(1, capacity / 2);
+                for (int i = 0; i < count; ++i) {
+                    put(ring, i, wait);
+                    if (!wait && i % burst == burst - 1) {
+                        Thread.yield();
+                    }
+                }
+                // The last event always waits until it fits, so that the
+                // consumer knows when to stop
+                put(ring, count, true);
+            }
+        });
+        long start = System.nanoTime();
+        producer.start();
+        long received = 0, errors = 0;
+        int last = -1;
+        while (last != count) {
+            if (ring.isEmpty()) {
+                // On a single core the producer only runs when the consumer
+                // gives way
+                Thread.yield();
+                continue;
+            }
+            int button = ring.getButton();
+            if (button <= last || ring.getState() != (button & 1) || ring.getTimeNanos() != button * 3L
+                    || ring.getEnqueueNanos() != button * 5L) {
+                if (++errors <= 10) {
+                    System.out.println("Bad event " + button + " after " + last);
+                }
+            }
+            last = button;
+            ring.remove();
+            ++received;
+        }
+        producer.join();
+        long nanos = System.nanoTime() - start;
+        // The last event was only counted as received
+        long dropped = ring.getDropped();
+        long minimum = wait ? count : count / 2;
+        System.out.println(String.format("%s: %d events, %d received, %d dropped, %d errors, %.1f ns per event",
+                wait ? "wait" : "drop", count, received - 1, dropped, errors, (double)nanos / count));
+        if (errors != 0 || received - 1 + dropped != count || !ring.isEmpty() || received - 1 < minimum) {
+            System.exit(1);
+        }
+    }
+
+    static void put(EventRing ring, int number, boolean wait) {
+        while (wait && ring.size() == ring.getCapacity()) {
+            Thread.yield();
+        }
+        ring.offer(number, number & 1, number * 3L, number * 5L);
+    }
+}
@@ -0,0 +1,53 @@
+package se.axelhjelmqvist.blocksgame;
+
+/**
+ * Plays the same game through a Timer and a GameLoop at different frame
+ * rates, with the AutoPlayer acting before every tick, and checks that the
+ * game ends in the same state at every frame rate. The timer runs on a
+ * VirtualClock, so the frames take no real time. Reports the late and
+ * skipped ticks of every frame rate and how much faster than real time the
+ * game was played. The optional argument is the number of seconds of game
+ * time to play.
+ */
+public class GameLoopCheck {
+    public static void main(String[] args) {
+        float seconds = args.length > 0 ? Float.parseFloat(args[0]) : 600.0f;
+        float[] frameRates = new float[] { 60.0f, 144.0f, 30.0f, 20.0f, 7.0f };
+        BlocksgameEngine reference = null;
+        for (int i = 0; i <= frameRates.length; ++i) {
+            // The last run has jittered frames with an occasional stall
+            boolean jittered = i == frameRates.length;
+            XorShiftRandom jitter = new XorShiftRandom(3);
+            BlocksgameEngine engine = new BlocksgameEngine(10, 20, 1);
+            MovePolicy policy = AutoPlayer.factory(10, 20, LinearHeuristic.DEFAULT_WEIGHTS).create(1);
+            GameLoop loop = new GameLoop(BlocksgameEngine.TICK_NANOS, 5);
+            VirtualClock clock = new VirtualClock();
+            Timer timer = new Timer(clock);
+            long targetTicks = (long)(seconds * 60.0f);
+            long start = System.nanoTime();
+            while (loop.getTicks() < targetTicks) {
+                float frameSeconds = jittered ? (0.005f + jitter.nextInt(30) * 0.001f) : 1.0f / frameRates[i];
+                if (jittered && jitter.nextInt(500) == 0) {
+                    frameSeconds = 0.25f;
+                }
+                clock.advanceSeconds(frameSeconds);
+                timer.update();
+                loop.beginFrame(timer.getDeltaNanos());
+                while (loop.getTicks() < targetTicks && loop.nextTick()) {
+                    policy.act(engine);
+                    engine.update(loop.getTickSeconds());
+                }
+            }
+            double speed = timer.getTotal() / ((System.nanoTime() - start) / 1e9);
+            boolean same = true;
+            if (reference == null) {
+                reference = engine;
+            } else {
+                same = ReplayCheck.sameState(reference, engine);
+            }
+            System.out.println(String.format("%-10s %d ticks, %d late, %d skipped, score %d, %.0fx real time, %s",
+                    jittered ? "jittered" : frameRates[i] + " fps", loop.getTicks(), loop.getLateTicks(),
+                    loop.getSkippedTicks(), engine.score.currentScore, speed, same ? "same" : "DIFFERS"));
+        }
+    }
+}
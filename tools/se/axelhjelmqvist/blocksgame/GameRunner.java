@@ -0,0 +1,82 @@
+package se.axelhjelmqvist.blocksgame;
+
+/**
+ * Plays single games on a BlocksgameEngine as fast as possible, with a
+ * MovePolicy in place of the player, and keeps the results of the last game.
+ * The engine is updated with a fixed time step, so the gravity of the game
+ * behaves as it does when the game is played at that frame rate.
+ */
+public class GameRunner
+        implements EngineListener {
+    int sizeX, sizeY;
+
+    float tickSeconds;
+
+    long maxTicks;
+
+    BlocksgameEngine engine;
+
+    public int score, level, lines, shapes;
+
+    public long ticks;
+
+    public boolean ended;
+
+    /**
+     * Constructor. Games are played on a board of the given size, with updates
+     * of tickSeconds each. A game is cut short after maxTicks updates.
+     */
+    public GameRunner(int sizeX, int sizeY, float tickSeconds, long maxTicks) {
+        this.sizeX = sizeX;
+        this.sizeY = sizeY;
+        this.tickSeconds = tickSeconds;
+        this.maxTicks = maxTicks;
+    }
+
+    /**
+     * Plays a game from the given seed until the round ends or the game is cut short.
+     */
+    public void play(long seed, MovePolicy policy) {
+        engine = new BlocksgameEngine(sizeX, sizeY, seed);
+        engine.addListener(this);
+        score = lines = shapes = 0;
+        level = 1;
+        ticks = 0;
+        ended = false;
+        while (!ended && ticks < maxTicks) {
+            policy.act(engine);
+            engine.update(tickSeconds);
+            ++ticks;
+        }
+        if (!ended) {
+            score = engine.score.currentScore;
+            level = engine.score.levelMultiplier;
+        }
+    }
+
+    /**
+     * Returns a well mixed seed for one of the games of a batch, so that
+     * the games of a batch are independent of each other and of how the
+     * batch is split up.
+     */
+    public static long seedOf(long seed, long game) {
+        long z = seed + (game + 1) * 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    public void shapeMoved(BlocksgameEngine engine) {
+    }
+
+    public void shapeLocked(BlocksgameEngine engine, int lines) {
+        this.lines += lines;
+        ++shapes;
+    }
+
+    public void roundEnded(BlocksgameEngine engine, int finalScore) {
+        ended = true;
+        score = finalScore;
+        level = engine.score.levelMultiplier;
+    }
+}
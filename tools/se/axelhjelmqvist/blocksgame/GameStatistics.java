@@ -0,0 +1,64 @@
+package se.axelhjelmqvist.blocksgame;
+
+/**
+ * The distributions of the results of a number of simulated games. The
+ * statistics of separate batches of games can be merged.
+ */
+public class GameStatistics {
+    public final Histogram score, lines, level, ticks, shapes;
+
+    public long games, truncated;
+
+    /**
+     * Constructor of empty statistics.
+     */
+    public GameStatistics() {
+        score = new Histogram();
+        lines = new Histogram();
+        level = new Histogram();
+        ticks = new Histogram();
+        shapes = new Histogram();
+        games = truncated = 0;
+    }
+
+    /**
+     * Records the results of the game that the runner played last.
+     */
+    public void record(GameRunner runner) {
+        score.record(runner.score);
+        lines.record(runner.lines);
+        level.record(runner.level);
+        ticks.record(runner.ticks);
+        shapes.record(runner.shapes);
+        ++games;
+        if (!runner.ended) {
+            ++truncated;
+        }
+    }
+
+    /**
+     * Adds the games of other statistics to these.
+     */
+    public void merge(GameStatistics other) {
+        score.merge(other.score);
+        lines.merge(other.lines);
+        level.merge(other.level);
+        ticks.merge(other.ticks);
+        shapes.merge(other.shapes);
+        games += other.games;
+        truncated += other.truncated;
+    }
+
+    /**
+     * Returns a few lines that presents the distributions.
+     */
+    @Override
+    public String toString() {
+        return "games  " + games + " (" + truncated + " cut short)\n"
+                + "score  " + score + "\n"
+                + "lines  " + lines + "\n"
+                + "level  " + level + "\n"
+                + "ticks  " + ticks + "\n"
+                + "shapes " + shapes;
+    }
+}
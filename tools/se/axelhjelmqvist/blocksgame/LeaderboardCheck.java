@@ -0,0 +1,186 @@
+package se.axelhjelmqvist.blocksgame;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Checks LeaderboardClient against a LeaderboardServer on loopback. Many
+ * clients, each with its own outbox, finish rounds at the same moment, and
+ * every result must be stored by the server exactly once: first with a
+ * server that answers every request, then with one that fails a part of
+ * them, and then with results that were queued while the server was down
+ * and are sent by a client that is opened again from its outbox. A client
+ * opened from an outbox that was cut short, at any length, must start over
+ * with a new id. The number of requests per result is reported, which is
+ * what batching keeps low. The process exits with status 1 if a check
+ * fails. The optional arguments are the number of clients and the number of
+ * results of each client.
+ */
+public class LeaderboardCheck {
+    final static int BATCH_SIZE = 20;
+    final static long BATCH_DELAY_MILLIS = 200;
+    final static long MAX_BACKOFF_MILLIS = 2000;
+    final static int FAILURE_PERCENT = 30;
+
+    static int failures = 0;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int clientCount = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        int resultCount = args.length > 1 ? Integer.parseInt(args[1]) : 30;
+        LeaderboardServer server = new LeaderboardServer(0, 0);
+        File directory = File.createTempFile("leaderboard", "");
+        directory.delete();
+        directory.mkdirs();
+        LeaderboardClient[] clients = open(server, directory, clientCount);
+        long[] nextSequence = new long[clientCount];
+
+        // Every client finishes its rounds at once and sends on its own timer
+        Histogram submitNanos = new Histogram();
+        submit(clients, nextSequence, resultCount, submitNanos);
+        long deadline = System.currentTimeMillis() + BATCH_DELAY_MILLIS * 2 + 5000;
+        while (getSent(clients) < (long)clientCount * resultCount && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        check("batched", server, clients, new long[clientCount], nextSequence, server.getRequests(), 0);
+        System.out.println("submit ns: " + submitNanos);
+
+        // A server that fails requests, the clients retry until all is sent
+        server.setFailurePercent(FAILURE_PERCENT);
+        long requests = server.getRequests(), results = server.getResults();
+        submit(clients, nextSequence, resultCount, submitNanos);
+        for (int attempt = 0; attempt < 100 && getSent(clients) < 2L * clientCount * resultCount; ++attempt) {
+            for (int i = 0; i < clientCount; ++i) {
+                clients[i].flush();
+            }
+        }
+        check("with failures", server, clients, new long[clientCount], nextSequence, server.getRequests() - requests, results);
+
+        // The server is down, the results wait in the outboxes until the
+        // clients are opened again against a server that is up
+        server.stop();
+        long[] firstSequence = nextSequence.clone();
+        submit(clients, nextSequence, resultCount, submitNanos);
+        for (int i = 0; i < clientCount; ++i) {
+            clients[i].flush();
+            clients[i].close();
+        }
+        LeaderboardServer restarted = new LeaderboardServer(0, 0);
+        clients = open(restarted, directory, clientCount);
+        for (int i = 0; i < clientCount; ++i) {
+            clients[i].flush();
+        }
+        check("from the outbox", restarted, clients, firstSequence, nextSequence, restarted.getRequests(), 0);
+        int[] top = clients[0].fetchTop(3);
+        System.out.println("top: " + (top.length > 0 ? top[0] : -1) + " of " + top.length);
+        for (int i = 0; i < clientCount; ++i) {
+            clients[i].close();
+        }
+        checkDamaged(restarted, directory, clients[0].getInstallId());
+        restarted.stop();
+
+        File[] files = directory.listFiles();
+        for (int i = 0; i < files.length; ++i) {
+            files[i].delete();
+        }
+        directory.delete();
+        if (failures != 0) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Opens clients from copies of the outbox of the first client, with the
+     * given id, that are cut short, each of which must be started over.
+     */
+    static void checkDamaged(LeaderboardServer server, File directory, long installId)
+            throws IOException, InterruptedException {
+        RandomAccessFile file = new RandomAccessFile(new File(directory, "outbox.0"), "r");
+        byte[] outbox = new byte[(int)file.length()];
+        try {
+            file.readFully(outbox);
+        } finally {
+            file.close();
+        }
+        File damaged = new File(directory, "outbox.damaged");
+        boolean ok = true;
+        int lengths = Math.min(outbox.length, LeaderboardClient.OUTBOX_HEADER_SIZE + LeaderboardClient.OUTBOX_ENTRY_SIZE);
+        for (int length = 0; length < lengths; ++length) {
+            FileOutputStream out = new FileOutputStream(damaged);
+            try {
+                out.write(outbox, 0, length);
+            } finally {
+                out.close();
+            }
+            try {
+                LeaderboardClient client = new LeaderboardClient(server.getUrl(), damaged, 1000,
+                        BATCH_SIZE, BATCH_DELAY_MILLIS, MAX_BACKOFF_MILLIS);
+                ok = ok && client.getInstallId() != 0 && client.getInstallId() != installId;
+                client.close();
+            } catch (RuntimeException e) {
+                System.out.println("An outbox of " + length + " bytes: " + e);
+                ok = false;
+            }
+        }
+        System.out.println("damaged outboxes: " + (ok ? "ok" : "FAILED") + ", " + lengths + " lengths");
+        if (!ok) {
+            ++failures;
+        }
+    }
+
+    static LeaderboardClient[] open(LeaderboardServer server, File directory, int clientCount) throws IOException {
+        LeaderboardClient[] clients = new LeaderboardClient[clientCount];
+        for (int i = 0; i < clientCount; ++i) {
+            clients[i] = new LeaderboardClient(server.getUrl(), new File(directory, "outbox." + i), 1000,
+                    BATCH_SIZE, BATCH_DELAY_MILLIS, MAX_BACKOFF_MILLIS);
+        }
+        return clients;
+    }
+
+    static void submit(LeaderboardClient[] clients, long[] nextSequence, int resultCount, Histogram submitNanos) {
+        XorShiftRandom random = new XorShiftRandom(nextSequence[0] + 1);
+        for (int j = 0; j < resultCount; ++j) {
+            for (int i = 0; i < clients.length; ++i) {
+                long start = System.nanoTime();
+                if (clients[i].submit(random.nextInt(1000000), 1, j)) {
+                    ++nextSequence[i];
+                }
+                submitNanos.record(System.nanoTime() - start);
+            }
+        }
+    }
+
+    static long getSent(LeaderboardClient[] clients) {
+        long sent = 0;
+        for (int i = 0; i < clients.length; ++i) {
+            sent += clients[i].getSent();
+        }
+        return sent;
+    }
+
+    /**
+     * Checks that the server has stored every result that has been queued by
+     * the clients from the first sequence numbers on, and no others.
+     */
+    static void check(String name, LeaderboardServer server, LeaderboardClient[] clients, long[] firstSequence,
+            long[] nextSequence, long requests, long previousResults) {
+        long expected = 0;
+        boolean ok = true;
+        for (int i = 0; i < clients.length; ++i) {
+            expected += nextSequence[i] - firstSequence[i];
+            for (long sequence = firstSequence[i]; sequence < nextSequence[i] && ok; ++sequence) {
+                ok = server.isStored(clients[i].getInstallId(), sequence);
+            }
+            ok = ok && !server.isStored(clients[i].getInstallId(), nextSequence[i]);
+        }
+        ok = ok && server.getResults() == expected;
+        System.out.println(String.format("%s: %s, %d results stored, %d requests, %.3f requests per result, "
+                + "%d failed, %d duplicates", name, ok ? "ok" : "FAILED", server.getResults(), requests,
+                requests / (double)Math.max(1, server.getResults() - previousResults),
+                server.getFailedRequests(), server.getDuplicates()));
+        if (!ok) {
+            ++failures;
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package se.axelhjelmqvist.blocksgame;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * A small leaderboard server that stands in for the real one, so that
+ * LeaderboardClient can be run on loopback. It takes the batches that the
+ * client posts to the scores path, stores each result once by the id of the
+ * installation and its sequence number, and answers the best scores on the
+ * top path, one per line. A part of the requests can be made to fail, with
+ * 503 and a Retry-After of zero seconds or without an answer, to check the
+ * retries of the client. Run on its own it serves on the given port until
+ * it is stopped.
+ */
+public class LeaderboardServer {
+    final static int TOP_CAPACITY = 100;
+
+    final HttpServer server;
+
+    final ExecutorService executor;
+
+    final XorShiftRandom random;
+
+    /**
+     * The sequence numbers that have been stored for each installation.
+     */
+    final Map<Long, Set<Long>> stored;
+
+    final PriorityQueue<Integer> top;
+
+    int failurePercent;
+
+    long requests, failedRequests, results, duplicates;
+
+    public LeaderboardServer(int port, int failurePercent) throws IOException {
+        this.failurePercent = failurePercent;
+        random = new XorShiftRandom(3);
+        stored = new HashMap<Long, Set<Long>>();
+        top = new PriorityQueue<Integer>();
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 64);
+        server.createContext("/scores", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                handleScores(exchange);
+            }
+        });
+        server.createContext("/top", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                handleTop(exchange);
+            }
+        });
+        executor = Executors.newFixedThreadPool(4);
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 8080;
+        LeaderboardServer server = new LeaderboardServer(port, args.length > 1 ? Integer.parseInt(args[1]) : 0);
+        System.out.println("Serving on " + server.getUrl());
+    }
+
+    /**
+     * Returns the base URL of the server, to give to LeaderboardClient.
+     */
+    public URL getUrl() throws IOException {
+        return new URL("http", "127.0.0.1", server.getAddress().getPort(), "/");
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdown();
+    }
+
+    void handleScores(HttpExchange exchange) throws IOException {
+        boolean fail, drop;
+        synchronized (this) {
+            ++requests;
+            fail = random.nextInt(100) < failurePercent;
+            // Half of the failures store the batch but never answer, as when
+            // the answer is lost, so the client must send it again
+            drop = fail && random.nextInt(2) == 0;
+            if (fail) {
+                ++failedRequests;
+            }
+        }
+        if (!"POST".equals(exchange.getRequestMethod())) {
+            answer(exchange, 405, "");
+            return;
+        }
+        if (fail && !drop) {
+            exchange.getResponseHeaders().set("Retry-After", "0");
+            answer(exchange, 503, "");
+            return;
+        }
+        InputStream body = exchange.getRequestBody();
+        if ("gzip".equals(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+            body = new GZIPInputStream(body);
+        }
+        DataInputStream data = new DataInputStream(body);
+        if (data.readInt() != LeaderboardClient.MAGIC) {
+            answer(exchange, 400, "");
+            return;
+        }
+        long installId = data.readLong();
+        int count = data.readInt();
+        synchronized (this) {
+            Set<Long> sequences = stored.get(installId);
+            if (sequences == null) {
+                sequences = new HashSet<Long>();
+                stored.put(installId, sequences);
+            }
+            for (int i = 0; i < count; ++i) {
+                long sequence = data.readLong();
+                int score = data.readInt();
+                data.readInt();
+                data.readLong();
+                if (sequences.add(sequence)) {
+                    ++results;
+                    top.add(score);
+                    if (top.size() > TOP_CAPACITY) {
+                        top.poll();
+                    }
+                } else {
+                    ++duplicates;
+                }
+            }
+        }
+        if (drop) {
+            exchange.close();
+            return;
+        }
+        answer(exchange, 200, "");
+    }
+
+    void handleTop(HttpExchange exchange) throws IOException {
+        StringBuilder text = new StringBuilder();
+        synchronized (this) {
+            Integer[] scores = top.toArray(new Integer[top.size()]);
+            java.util.Arrays.sort(scores);
+            for (int i = scores.length - 1; i >= 0; --i) {
+                text.append(scores[i]).append('\n');
+            }
+        }
+        answer(exchange, 200, text.toString());
+    }
+
+    private static void answer(HttpExchange exchange, int status, String text) throws IOException {
+        byte[] bytes = text.getBytes("UTF-8");
+        exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+        OutputStream output = exchange.getResponseBody();
+        output.write(bytes);
+        output.close();
+    }
+
+    public synchronized void setFailurePercent(int failurePercent) {
+        this.failurePercent = failurePercent;
+    }
+
+    /**
+     * Returns whether the given result has been stored.
+     */
+    public synchronized boolean isStored(long installId, long sequence) {
+        Set<Long> sequences = stored.get(installId);
+        return sequences != null && sequences.contains(sequence);
+    }
+
+    public synchronized long getRequests() {
+        return requests;
+    }
+
+    public synchronized long getFailedRequests() {
+        return failedRequests;
+    }
+
+    public synchronized long getResults() {
+        return results;
+    }
+
+    public synchronized long getDuplicates() {
+        return duplicates;
+    }
+}
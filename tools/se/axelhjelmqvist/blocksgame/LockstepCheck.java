@@ -0,0 +1,165 @@
+package se.axelhjelmqvist.blocksgame;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * Checks LockstepSession with two sessions on loopback that play a versus
+ * game with random input. The packets go through a link that is simulated
+ * here, which delays them by a number of ticks and loses some of them. Each
+ * time both sessions are at the same tick, the engines of both devices must
+ * hash the same, the round must end at the same tick on both with one
+ * winner, and each session must send less than 1 KB per second. Then a game
+ * where one device's board is changed behind its back must end in a desync.
+ * The process exits with status 1 if a check fails. The optional arguments
+ * are the delay of the link in ticks and the percent of packets it loses.
+ */
+public class LockstepCheck {
+    final static int MAX_TICKS = 60 * 60 * 10;
+    final static int SIZE_X = 10, SIZE_Y = 20;
+    final static int BYTES_PER_SECOND = 1024;
+
+    static int failures = 0;
+
+    /**
+     * One direction of the simulated link: the packets that have been read
+     * from one session and are written to the other when they are due.
+     */
+    static class Link {
+        final DatagramChannel from, to;
+        final ByteBuffer[] packets = new ByteBuffer[256];
+        final long[] due = new long[256];
+        int head, tail;
+        long lost;
+
+        Link(DatagramChannel from, DatagramChannel to) {
+            this.from = from;
+            this.to = to;
+            for (int i = 0; i < packets.length; ++i) {
+                packets[i] = ByteBuffer.allocate(LockstepSession.PACKET_SIZE);
+            }
+        }
+
+        void forward(long tick, int delay, int lossPercent, XorShiftRandom random) throws IOException {
+            while (true) {
+                ByteBuffer packet = packets[tail % packets.length];
+                packet.clear();
+                if (from.read(packet) <= 0) {
+                    break;
+                }
+                if (random.nextInt(100) < lossPercent || tail - head == packets.length - 1) {
+                    ++lost;
+                    continue;
+                }
+                packet.flip();
+                due[tail % packets.length] = tick + delay;
+                ++tail;
+            }
+            while (head < tail && due[head % packets.length] <= tick) {
+                to.write(packets[head % packets.length]);
+                ++head;
+            }
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        int delay = args.length > 0 ? Integer.parseInt(args[0]) : 2;
+        int lossPercent = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        play(delay, lossPercent, false);
+        play(delay, lossPercent, true);
+        if (failures != 0) {
+            System.exit(1);
+        }
+    }
+
+    static DatagramChannel open() throws IOException {
+        DatagramChannel channel = DatagramChannel.open();
+        channel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        channel.configureBlocking(false);
+        return channel;
+    }
+
+    /**
+     * Plays one game between two sessions through the simulated link. If
+     * tamper is set, the score of one engine of the second device is changed
+     * after a while, and the game must end in a desync.
+     */
+    static void play(int delay, int lossPercent, boolean tamper) throws IOException {
+        // Each session talks to its own end of the link
+        DatagramChannel a = open(), b = open(), linkA = open(), linkB = open();
+        a.connect(linkA.getLocalAddress());
+        linkA.connect(a.getLocalAddress());
+        b.connect(linkB.getLocalAddress());
+        linkB.connect(b.getLocalAddress());
+        Link toB = new Link(linkA, linkB), toA = new Link(linkB, linkA);
+        long seed = 12345;
+        LockstepSession[] sessions = {
+            new LockstepSession(a, 0, seed, SIZE_X, SIZE_Y, LockstepSession.DEFAULT_INPUT_DELAY),
+            new LockstepSession(b, 1, seed, SIZE_X, SIZE_Y, LockstepSession.DEFAULT_INPUT_DELAY)
+        };
+        XorShiftRandom random = new XorShiftRandom(7);
+        long compared = 0, mismatches = 0;
+        long time = 0;
+        while (time < MAX_TICKS + 600 && (sessions[0].getState() == LockstepSession.PLAYING
+                || sessions[1].getState() == LockstepSession.PLAYING)) {
+            for (int i = 0; i < 2; ++i) {
+                // A player acts about eight times a second, more than most do
+                if (random.nextInt(8) == 0) {
+                    sessions[i].perform(random.nextInt(Replay.TIME_STEP));
+                }
+                sessions[i].poll();
+            }
+            toB.forward(time, delay, lossPercent, random);
+            toA.forward(time, delay, lossPercent, random);
+            if (tamper && sessions[1].getTick() == 600) {
+                ++sessions[1].getEngine(0).score.currentScore;
+            }
+            if (!tamper && sessions[0].getTick() == sessions[1].getTick()) {
+                ++compared;
+                for (int player = 0; player < 2; ++player) {
+                    if (sessions[0].getEngine(player).getStateHash() != sessions[1].getEngine(player).getStateHash()) {
+                        ++mismatches;
+                    }
+                }
+            }
+            ++time;
+            if (sessions[0].getTick() >= MAX_TICKS && sessions[1].getTick() >= MAX_TICKS) {
+                break;
+            }
+        }
+        double seconds = time / 60.0;
+        boolean ok;
+        if (tamper) {
+            ok = sessions[0].getState() == LockstepSession.DESYNC && sessions[1].getState() == LockstepSession.DESYNC;
+        } else {
+            int first = sessions[0].getState(), second = sessions[1].getState();
+            boolean ended = (first == LockstepSession.WON && second == LockstepSession.LOST)
+                    || (first == LockstepSession.LOST && second == LockstepSession.WON)
+                    || (first == LockstepSession.DRAW && second == LockstepSession.DRAW);
+            ok = mismatches == 0 && (ended || sessions[0].getTick() >= MAX_TICKS)
+                    && sessions[0].getTick() == sessions[1].getTick();
+        }
+        for (int i = 0; i < 2; ++i) {
+            LockstepSession session = sessions[i];
+            double bytesPerSecond = session.getBytesSent() / seconds;
+            ok = ok && bytesPerSecond < BYTES_PER_SECOND;
+            System.out.println(String.format("player %d: state %d at tick %d, %.0f bytes/s in %.1f packets/s, "
+                    + "%d stalls, %d hashes checked", i, session.getState(), session.getTick(),
+                    bytesPerSecond, session.getPacketsSent() / seconds, session.getStalls(),
+                    session.getHashesChecked()));
+        }
+        System.out.println(String.format("%s: %s, %.1f s, delay %d ticks, %d%% lost (%d packets), "
+                + "%d ticks compared, %d mismatches", tamper ? "tampered" : "versus", ok ? "ok" : "FAILED",
+                seconds, delay, lossPercent, toA.lost + toB.lost, compared, mismatches));
+        if (!ok) {
+            ++failures;
+        }
+        a.close();
+        b.close();
+        linkA.close();
+        linkB.close();
+    }
+}
@@ -0,0 +1,155 @@
+package se.axelhjelmqvist.blocksgame;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * A small harness for benchmarks that are run on a desktop or server Java
+ * virtual machine. A benchmark runs its operation in batches, first for a
+ * warmup period so that the code is compiled, and then for a measured period.
+ * The time per operation, the number of bytes allocated per operation by the
+ * benchmarking thread and the garbage collections during the measured period
+ * are reported.
+ */
+public abstract class MicroBenchmark {
+    /**
+     * The results of the operations are accumulated here so that the
+     * just-in-time compiler can not remove the work as dead code.
+     */
+    public static volatile long sink;
+
+    public final String name;
+
+    /**
+     * Constructor. The name is used when the result is presented.
+     */
+    protected MicroBenchmark(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Runs the operation of the benchmark count number of times. A value that
+     * depends on the work that was done should be returned.
+     */
+    protected abstract long run(int count);
+
+    /**
+     * Runs the benchmark for the warmup period and then measures it for the
+     * measurement period, both given in milliseconds.
+     */
+    public Result measure(long warmupMillis, long measureMillis) {
+        int batch = 1;
+        long start = System.nanoTime();
+        // Grow the batch until it takes about a millisecond, to keep the timing overhead low
+        while (System.nanoTime() - start < warmupMillis * 1000000L) {
+            long batchStart = System.nanoTime();
+            sink += run(batch);
+            if (System.nanoTime() - batchStart < 1000000L && batch < (1 << 24)) {
+                batch *= 2;
+            }
+        }
+        long collections = getCollectionCount(), collectionTime = getCollectionTime();
+        long allocated = getAllocatedBytes();
+        long operations = 0;
+        start = System.nanoTime();
+        long elapsed = 0;
+        while (elapsed < measureMillis * 1000000L) {
+            sink += run(batch);
+            operations += batch;
+            elapsed = System.nanoTime() - start;
+        }
+        Result result = new Result();
+        result.name = name;
+        result.operations = operations;
+        result.nanosPerOperation = (double)elapsed / operations;
+        result.bytesPerOperation = (double)(getAllocatedBytes() - allocated) / operations;
+        result.collections = getCollectionCount() - collections;
+        result.collectionMillis = getCollectionTime() - collectionTime;
+        return result;
+    }
+
+    /**
+     * The bean that counts the allocated bytes of threads, or null if the
+     * virtual machine has none.
+     */
+    private final static com.sun.management.ThreadMXBean THREAD_BEAN = getThreadBean();
+
+    private static com.sun.management.ThreadMXBean getThreadBean() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        return bean instanceof com.sun.management.ThreadMXBean ? (com.sun.management.ThreadMXBean)bean : null;
+    }
+
+    /**
+     * Returns the number of bytes that the current thread has allocated, or
+     * zero if the virtual machine can not tell. The bean is looked up once,
+     * so the call itself does not allocate.
+     */
+    public static long getAllocatedBytes() {
+        if (THREAD_BEAN == null) {
+            return 0;
+        }
+        return THREAD_BEAN.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * Returns the total number of garbage collections so far.
+     */
+    private static long getCollectionCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, bean.getCollectionCount());
+        }
+        return count;
+    }
+
+    /**
+     * Returns the total time spent in garbage collections so far, in milliseconds.
+     */
+    private static long getCollectionTime() {
+        long time = 0;
+        for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            time += Math.max(0, bean.getCollectionTime());
+        }
+        return time;
+    }
+
+    /**
+     * The measured result of a benchmark.
+     */
+    public static class Result {
+        public String name;
+
+        public long operations;
+
+        public double nanosPerOperation;
+
+        public double bytesPerOperation;
+
+        public long collections, collectionMillis;
+
+        /**
+         * Returns the number of operations per second.
+         */
+        public double getOperationsPerSecond() {
+            return 1000000000.0 / nanosPerOperation;
+        }
+
+        /**
+         * Returns the allocation rate in megabytes per second.
+         */
+        public double getAllocationRate() {
+            return bytesPerOperation * getOperationsPerSecond() / (1024.0 * 1024.0);
+        }
+
+        /**
+         * Returns a single line that presents the result.
+         */
+        @Override
+        public String toString() {
+            return String.format("%-40s %14.1f ns/op %14.0f ops/s %10.1f B/op %9.1f MB/s %5d gc %6d ms",
+                    name, nanosPerOperation, getOperationsPerSecond(), bytesPerOperation,
+                    getAllocationRate(), collections, collectionMillis);
+        }
+    }
+}
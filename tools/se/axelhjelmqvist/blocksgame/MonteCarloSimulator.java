@@ -0,0 +1,127 @@
+package se.axelhjelmqvist.blocksgame;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Plays a large number of complete games on all of the cores of the machine
+ * and collects the distributions of their scores, completed lines, reached
+ * levels and lengths. The games are split recursively into tasks of a
+ * work-stealing ForkJoinPool. Every game is played from a seed that only
+ * depends on the seed of the batch and the number of the game, so a batch
+ * gives the same results however it is split up between the threads.
+ */
+public class MonteCarloSimulator {
+    /**
+     * The largest number of games that one task plays without splitting.
+     */
+    final static int GAMES_PER_TASK = 32;
+
+    final MovePolicy.Factory policyFactory;
+
+    final ForkJoinPool pool;
+
+    int sizeX = 10, sizeY = 20;
+
+    float tickSeconds = BlocksgameEngine.TICK_SECONDS;
+
+    long maxTicks = 1000000;
+
+    /**
+     * Constructor of a simulator that plays with policies of the given factory
+     * on the given pool.
+     */
+    public MonteCarloSimulator(MovePolicy.Factory policyFactory, ForkJoinPool pool) {
+        this.policyFactory = policyFactory;
+        this.pool = pool;
+    }
+
+    /**
+     * Sets the duration of a single update of the engine, in seconds.
+     */
+    public void setTickSeconds(float tickSeconds) {
+        this.tickSeconds = tickSeconds;
+    }
+
+    /**
+     * Sets the number of updates after which a game is cut short.
+     */
+    public void setMaxTicks(long maxTicks) {
+        this.maxTicks = maxTicks;
+    }
+
+    /**
+     * Plays the given number of games and returns their statistics.
+     */
+    public GameStatistics run(long seed, int games) {
+        return pool.invoke(new SimulationTask(seed, 0, games));
+    }
+
+    /**
+     * Task that plays a range of the games of a batch, or splits the range in
+     * two halves if it is large.
+     */
+    private class SimulationTask
+            extends RecursiveTask<GameStatistics> {
+        final static long serialVersionUID = 1L;
+
+        final long seed;
+
+        final int from, to;
+
+        SimulationTask(long seed, int from, int to) {
+            this.seed = seed;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected GameStatistics compute() {
+            if (to - from > GAMES_PER_TASK) {
+                int middle = (from + to) >>> 1;
+                SimulationTask upper = new SimulationTask(seed, middle, to);
+                upper.fork();
+                GameStatistics result = new SimulationTask(seed, from, middle).compute();
+                result.merge(upper.join());
+                return result;
+            }
+            GameStatistics result = new GameStatistics();
+            GameRunner runner = new GameRunner(sizeX, sizeY, tickSeconds, maxTicks);
+            for (int game = from; game < to; ++game) {
+                long gameSeed = GameRunner.seedOf(seed, game);
+                runner.play(gameSeed, policyFactory.create(gameSeed));
+                result.record(runner);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Plays a batch of games and presents the results. The optional arguments
+     * are the number of games, the number of threads, the seed of the batch,
+     * the policy ("random" or "auto") and the number of updates after which
+     * a game is cut short.
+     */
+    public static void main(String[] args) {
+        int games = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        long seed = args.length > 2 ? Long.parseLong(args[2]) : 1;
+        String policy = args.length > 3 ? args[3] : "random";
+        MovePolicy.Factory factory = RandomPolicy.FACTORY;
+        if (policy.equals("auto")) {
+            factory = AutoPlayer.factory(10, 20, LinearHeuristic.DEFAULT_WEIGHTS);
+        }
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        MonteCarloSimulator simulator = new MonteCarloSimulator(factory, pool);
+        if (args.length > 4) {
+            simulator.setMaxTicks(Long.parseLong(args[4]));
+        }
+        long start = System.nanoTime();
+        GameStatistics statistics = simulator.run(seed, games);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        pool.shutdown();
+        System.out.println(statistics);
+        System.out.println(String.format("%d games on %d threads in %.2f s, %.0f games/s",
+                statistics.games, threads, seconds, statistics.games / seconds));
+    }
+}
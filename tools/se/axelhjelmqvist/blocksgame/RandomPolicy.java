@@ -0,0 +1,57 @@
+package se.axelhjelmqvist.blocksgame;
+
+/**
+ * A policy that plays every shape by choosing a random rotation and column
+ * for it, moving it there and then dropping it. This is about the least
+ * skilled way to play that still finishes games quickly.
+ */
+public class RandomPolicy
+        implements MovePolicy {
+    /**
+     * Factory of random policies.
+     */
+    public final static MovePolicy.Factory FACTORY = new MovePolicy.Factory() {
+        public MovePolicy create(long seed) {
+            return new RandomPolicy(seed);
+        }
+    };
+
+    private XorShiftRandom random;
+
+    private int lastShape, targetX, rotations, lastX;
+
+    /**
+     * Constructor of the policy, which makes its decisions from the given seed.
+     */
+    public RandomPolicy(long seed) {
+        random = new XorShiftRandom(seed);
+        lastShape = -1;
+    }
+
+    public void act(BlocksgameEngine engine) {
+        Shape shape = engine.shape;
+        if (engine.shapeCount != lastShape) {
+            lastShape = engine.shapeCount;
+            targetX = random.nextInt(engine.sizeX);
+            rotations = random.nextInt(4);
+            lastX = Integer.MIN_VALUE;
+            engine.fastDrop(false);
+        }
+        if (rotations > 0) {
+            engine.rotateTile();
+            --rotations;
+        } else if (shape.x != targetX && shape.x != lastX) {
+            lastX = shape.x;
+            if (shape.x < targetX) {
+                engine.moveRight(true);
+                engine.moveRight(false);
+            } else {
+                engine.moveLeft(true);
+                engine.moveLeft(false);
+            }
+        } else {
+            // Arrived, or blocked on the way
+            engine.fastDrop(true);
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package se.axelhjelmqvist.blocksgame;
+
+import java.math.BigInteger;
+
+/**
+ * Draws a game with the SoftwareRenderer and reports the frames per second
+ * and a checksum of the frames. The game is played with random input from a
+ * fixed seed on a fixed time step, with images made up here in place of the
+ * resources of the app, so the same build draws the same frames everywhere.
+ * If an expected checksum is given, in hexadecimal, the process exits with
+ * status 1 when the frames differ, so that this can be run as a regression
+ * test of the drawing. The arguments are the number of frames, the size of
+ * the framebuffer and the expected checksum, all optional.
+ */
+public class RenderBenchmark {
+    final static int CHECKSUM_INTERVAL = 64;
+
+    public static void main(String[] args) {
+        int frames = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        int width = args.length > 1 ? Integer.parseInt(args[1]) : 480;
+        int height = args.length > 2 ? Integer.parseInt(args[2]) : 800;
+        SoftwareRenderer renderer = createRenderer(width, height);
+        // One round of warm-up, then the same frames again measured
+        run(renderer, frames / 4);
+        long start = System.nanoTime();
+        long checksum = run(renderer, frames);
+        long nanos = System.nanoTime() - start;
+        System.out.println(String.format("%d frames of %dx%d, %.0f frames per second, %.1f us per frame, checksum %016x",
+                frames, width, height, frames * 1e9 / nanos, nanos / 1e3 / frames, checksum));
+        if (args.length > 3 && checksum != new BigInteger(args[3], 16).longValue()) {
+            System.out.println("The checksum differs from " + args[3]);
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Returns a renderer with a background and sprites like the ones of the
+     * app: a shaded tile with a translucent border, tinted with each color
+     * as Blocksgame.loadResources tints it.
+     */
+    static SoftwareRenderer createRenderer(int width, int height) {
+        int size = 32;
+        int[] background = new int[size * size];
+        for (int y = 0; y < size; ++y) {
+            for (int x = 0; x < size; ++x) {
+                background[y * size + x] = 0xff000000 | (x * 4 << 16) | (y * 4 << 8) | 0x40;
+            }
+        }
+        int[] tile = new int[size * size];
+        for (int y = 0; y < size; ++y) {
+            for (int x = 0; x < size; ++x) {
+                boolean border = x == 0 || y == 0 || x == size - 1 || y == size - 1;
+                int shade = 0x80 + (x + y) * 2;
+                tile[y * size + x] = (border ? 0x80000000 : 0xff000000) | (shade << 16) | (shade << 8) | shade;
+            }
+        }
+        int[] colors = ScoreKeeper.COLORS;
+        int[][] sprites = new int[colors.length / 3 + 1][];
+        for (int i = 1; i < sprites.length; ++i) {
+            int offset = (i - 1) * 3;
+            int tint = 0x3f000000 | (colors[offset] << 16) | (colors[offset + 1] << 8) | colors[offset + 2];
+            sprites[i] = new int[tile.length];
+            for (int j = 0; j < tile.length; ++j) {
+                sprites[i][j] = SoftwareRenderer.blend(tile[j], tint);
+            }
+        }
+        return new SoftwareRenderer(width, height, background, size, size, sprites, size, size);
+    }
+
+    /**
+     * Plays and draws a game from the start for the given number of frames,
+     * one tick per frame, and returns a checksum of every CHECKSUM_INTERVAL
+     * frames and the last frame. Not every frame is summed, so that the
+     * time of the checksums does not hide the time of the drawing.
+     */
+    static long run(SoftwareRenderer renderer, int frames) {
+        BlocksgameEngine engine = new BlocksgameEngine(10, 20, 1);
+        BoardPainter painter = new BoardPainter(engine, renderer, renderer.getWidth(), renderer.getHeight());
+        XorShiftRandom random = new XorShiftRandom(2);
+        long checksum = 0;
+        for (int frame = 0; frame < frames; ++frame) {
+            switch (random.nextInt(16)) {
+                case 0:
+                    engine.moveLeft(true);
+                    break;
+                case 1:
+                    engine.moveLeft(false);
+                    break;
+                case 2:
+                    engine.moveRight(true);
+                    break;
+                case 3:
+                    engine.moveRight(false);
+                    break;
+                case 4:
+                    engine.rotateTile();
+                    break;
+                case 5:
+                    engine.fastDrop(random.nextInt(2) == 0);
+                    break;
+            }
+            painter.beforeTick();
+            engine.update(BlocksgameEngine.TICK_SECONDS);
+            renderer.drawBackground();
+            painter.draw(0.5f);
+            if (frame % CHECKSUM_INTERVAL == 0 || frame == frames - 1) {
+                checksum = checksum * 31 + renderer.checksum();
+            }
+        }
+        return checksum;
+    }
+}
@@ -0,0 +1,74 @@
+package se.axelhjelmqvist.blocksgame;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Writes an archive of replays of games that the AutoPlayer plays, then
+ * measures how fast the headers of all games are scanned and how long it
+ * takes to seek to random ticks of random games. A sample of the seeks is
+ * checked against playing the replay from the start. The optional arguments
+ * are the file of the archive, the number of games, the number of ticks of
+ * a game, the keyframe interval and the number of seeks.
+ */
+public class ReplayArchiveBenchmark {
+    public static void main(String[] args) throws IOException {
+        File path = new File(args.length > 0 ? args[0] : "replays.bga");
+        int games = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        long ticks = args.length > 2 ? Long.parseLong(args[2]) : 50000;
+        int interval = args.length > 3 ? Integer.parseInt(args[3]) : 1000;
+        int seeks = args.length > 4 ? Integer.parseInt(args[4]) : 1000;
+        long start = System.nanoTime();
+        ReplayArchiveWriter writer = new ReplayArchiveWriter(path, interval);
+        for (int game = 0; game < games; ++game) {
+            long seed = GameRunner.seedOf(11, game);
+            BlocksgameEngine engine = new BlocksgameEngine(10, 20, seed);
+            ReplayRecorder recorder = new ReplayRecorder(seed, 10, 20, false);
+            engine.setRecorder(recorder);
+            MovePolicy policy = AutoPlayer.factory(10, 20, LinearHeuristic.DEFAULT_WEIGHTS).create(seed);
+            while (engine.getTicks() < ticks) {
+                policy.act(engine);
+                engine.update(BlocksgameEngine.TICK_SECONDS);
+            }
+            recorder.finish(engine.getTicks());
+            writer.add(recorder.toByteArray());
+        }
+        writer.close();
+        System.out.println(String.format("Wrote %d games in %.1f s, %d bytes",
+                games, (System.nanoTime() - start) / 1e9, path.length()));
+
+        ReplayArchive archive = new ReplayArchive(path);
+        start = System.nanoTime();
+        long totalTicks = 0, totalScore = 0;
+        for (int game = 0; game < archive.getGameCount(); ++game) {
+            totalTicks += archive.getTicks(game);
+            totalScore += archive.getScore(game);
+        }
+        System.out.println(String.format("Scanned %d headers in %.3f ms, %d ticks, mean score %.0f",
+                archive.getGameCount(), (System.nanoTime() - start) / 1e6, totalTicks,
+                (double)totalScore / archive.getGameCount()));
+
+        XorShiftRandom random = new XorShiftRandom(5);
+        Histogram latency = new Histogram(5);
+        int failures = 0, checked = 0;
+        for (int i = 0; i < seeks; ++i) {
+            int game = random.nextInt(archive.getGameCount());
+            long tick = random.nextInt((int)archive.getTicks(game) + 1);
+            long seekStart = System.nanoTime();
+            ReplayPlayer player = archive.seek(game, tick);
+            latency.record((System.nanoTime() - seekStart) / 1000);
+            if (i % 50 == 0) {
+                ReplayPlayer full = new ReplayPlayer(archive.getReplay(game));
+                full.playTo(tick);
+                ++checked;
+                if (!ReplayCheck.sameState(player.getEngine(), full.getEngine())) {
+                    ++failures;
+                    System.out.println("Seek to tick " + tick + " of game " + game + " differs");
+                }
+            }
+        }
+        archive.close();
+        System.out.println("Seek latency in microseconds: " + latency);
+        System.out.println(checked + " seeks checked, " + failures + " failures");
+    }
+}
@@ -0,0 +1,63 @@
+package se.axelhjelmqvist.blocksgame;
+
+import java.util.Arrays;
+
+/**
+ * Records games that the AutoPlayer plays with a jittered time step, like the
+ * time steps of the real game loop, plays the replays on new engines and
+ * checks that they end in the same state. Reports the size of the replays and
+ * how fast they are played. The optional arguments are the number of games,
+ * the number of updates after which a game is cut short and the jitter of the
+ * time step in milliseconds, where 0 gives a fixed time step.
+ */
+public class ReplayCheck {
+    public static void main(String[] args) {
+        int games = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+        long maxTicks = args.length > 1 ? Long.parseLong(args[1]) : 20000;
+        int jitterMillis = args.length > 2 ? Integer.parseInt(args[2]) : 6;
+        XorShiftRandom jitter = new XorShiftRandom(1);
+        long bytes = 0, ticks = 0, playNanos = 0;
+        int failures = 0;
+        for (int game = 0; game < games; ++game) {
+            long seed = GameRunner.seedOf(7, game);
+            BlocksgameEngine engine = new BlocksgameEngine(10, 20, seed);
+            ReplayRecorder recorder = new ReplayRecorder(seed, 10, 20, false);
+            engine.setRecorder(recorder);
+            MovePolicy policy = AutoPlayer.factory(10, 20, LinearHeuristic.DEFAULT_WEIGHTS).create(seed);
+            while (engine.getTicks() < maxTicks) {
+                policy.act(engine);
+                engine.update(0.030f + jitter.nextInt(jitterMillis + 1) * 0.001f);
+            }
+            recorder.finish(engine.getTicks());
+            byte[] replay = recorder.toByteArray();
+            long start = System.nanoTime();
+            ReplayPlayer player = new ReplayPlayer(new ReplayReader(replay));
+            player.playToEnd();
+            playNanos += System.nanoTime() - start;
+            BlocksgameEngine played = player.getEngine();
+            if (!sameState(engine, played)) {
+                ++failures;
+                System.out.println("Game " + game + " differs after playing the replay");
+            }
+            bytes += replay.length;
+            ticks += played.getTicks();
+        }
+        System.out.println(String.format("%d games, %d failures, %.1f bytes per game, %.2f bytes per 1000 ticks, %.0f ticks/s",
+                games, failures, (double)bytes / games, bytes * 1000.0 / ticks, ticks / (playNanos / 1e9)));
+    }
+
+    static boolean sameState(BlocksgameEngine a, BlocksgameEngine b) {
+        if (a.getTicks() != b.getTicks() || a.shapeCount != b.shapeCount
+                || a.score.currentScore != b.score.currentScore
+                || a.shape.x != b.shape.x || a.shape.y != b.shape.y
+                || a.shape.orientation != b.shape.orientation) {
+            return false;
+        }
+        for (int y = 0; y < a.sizeY; ++y) {
+            if (!Arrays.equals(a.field[y], b.field[y])) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
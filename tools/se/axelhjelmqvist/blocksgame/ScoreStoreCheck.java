@@ -0,0 +1,104 @@
+package se.axelhjelmqvist.blocksgame;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+/**
+ * Checks ScoreStore in a temporary directory. Random results are stored and
+ * the store is opened again, after closing it, after a torn record has been
+ * added to the end of its journal and while its writer is still running as
+ * if the process had died, and each time the ranks must be the best of all
+ * of the results. The time that submitting a result takes on the calling
+ * thread is reported. The process exits with status 1 if a check fails. The
+ * optional argument is the number of results.
+ */
+public class ScoreStoreCheck {
+    final static int CAPACITY = 10;
+
+    static int failures = 0;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int results = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        File directory = File.createTempFile("scores", "");
+        directory.delete();
+        XorShiftRandom random = new XorShiftRandom(1);
+        int[] all = new int[results * 2];
+        int stored = 0;
+
+        ScoreStore store = new ScoreStore(directory, CAPACITY);
+        Histogram submitNanos = new Histogram();
+        for (int i = 0; i < results; ++i) {
+            all[stored] = random.nextInt(1000000);
+            long start = System.nanoTime();
+            store.submit(all[stored], 1, i);
+            submitNanos.record(System.nanoTime() - start);
+            ++stored;
+            if (i % 200 == 199) {
+                // Let the writer keep up, a game ends a round far less often
+                store.flush();
+            }
+        }
+        store.close();
+        System.out.println("submit ns: " + submitNanos + ", dropped " + store.getDropped());
+        check("after close", new ScoreStore(directory, CAPACITY), all, stored, true);
+
+        // A damaged or torn record at the end of the journal is ignored
+        store = new ScoreStore(directory, CAPACITY);
+        store.submit(all[stored++] = 2000000, 2, results);
+        store.close();
+        File[] journals = directory.listFiles();
+        for (int i = 0; i < journals.length; ++i) {
+            if (journals[i].getName().startsWith("journal.")) {
+                RandomAccessFile file = new RandomAccessFile(journals[i], "rw");
+                file.seek(file.length());
+                // A damaged record and half of one
+                byte[] garbage = new byte[ScoreStore.RECORD_SIZE * 3 / 2];
+                Arrays.fill(garbage, (byte)0x7f);
+                file.write(garbage);
+                file.close();
+            }
+        }
+        check("after a torn record", new ScoreStore(directory, CAPACITY), all, stored, true);
+
+        // Results that are flushed survive a store that is never closed
+        store = new ScoreStore(directory, CAPACITY);
+        for (int i = 0; i < 50; ++i) {
+            store.submit(all[stored++] = random.nextInt(3000000), 3, results + 1 + i);
+        }
+        store.flush();
+        check("without closing", new ScoreStore(directory, CAPACITY), all, stored, false);
+
+        File[] files = directory.listFiles();
+        for (int i = 0; i < files.length; ++i) {
+            files[i].delete();
+        }
+        directory.delete();
+        if (failures != 0) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Checks that the ranks of a store are the best of the stored results.
+     */
+    static void check(String name, ScoreStore store, int[] all, int stored, boolean close)
+            throws InterruptedException {
+        int[] sorted = Arrays.copyOf(all, stored);
+        Arrays.sort(sorted);
+        int expectedCount = Math.min(CAPACITY, stored);
+        boolean ok = store.getCount() == expectedCount;
+        for (int rank = 0; rank < expectedCount && ok; ++rank) {
+            ok = store.getScore(rank) == sorted[stored - 1 - rank];
+        }
+        System.out.println(name + ": " + (ok ? "ok" : "FAILED") + ", best " + store.getScore(0)
+                + " of " + store.getCount() + " ranks");
+        if (!ok) {
+            ++failures;
+        }
+        if (close) {
+            store.close();
+        }
+    }
+}
@@ -0,0 +1,363 @@
+package se.axelhjelmqvist.blocksgame;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * Checks SpectatorServer and SpectatorEncoder with simulated spectators on
+ * loopback. A game with random input is played faster than real time and
+ * published, half of the spectators watch from the start and half join
+ * while it goes on. Each spectator keeps a copy of the board from the
+ * keyframe and the deltas it is sent, and when the game is over the copy of
+ * every spectator must be the board of the engine. The messages delivered
+ * per second and the lag of the spectators, from the publishing of a frame
+ * to its arrival, are reported. The process exits with status 1 if a check
+ * fails. The optional arguments are the number of spectators, the seconds
+ * the game is played and the ticks per second it is played at.
+ */
+public class SpectatorCheck {
+    final static int SIZE_X = 10, SIZE_Y = 20;
+    final static int KEYFRAME_INTERVAL = 60;
+    final static int READERS = 2;
+
+    /**
+     * A spectator, which keeps a copy of the board from the frames.
+     */
+    static class Spectator {
+        final SocketChannel channel;
+        final ByteBuffer input = ByteBuffer.allocate(64 * 1024);
+        int[][] field;
+        int shapeIndex, shapeColor, shapeX, shapeY, score, level;
+        int nextSequence = -1;
+        long joinNanos, frames, maxLagNanos;
+        boolean broken;
+        int position;
+
+        Spectator(SocketChannel channel) {
+            this.channel = channel;
+            joinNanos = System.nanoTime();
+        }
+
+        /**
+         * Takes in the frames that have arrived whole.
+         */
+        void read(Histogram lagMicros) {
+            input.flip();
+            while (input.remaining() >= 2 && input.remaining() >= 2 + (input.getShort(input.position()) & 0xffff)) {
+                int length = input.getShort() & 0xffff;
+                int end = input.position() + length;
+                boolean keyframe = input.get() == SpectatorServer.KEYFRAME;
+                int sequence = input.getInt();
+                long publishNanos = input.getLong();
+                // The frames from before the spectator joined are a catch-up
+                if (publishNanos >= joinNanos) {
+                    long lag = System.nanoTime() - publishNanos;
+                    lagMicros.record(lag / 1000);
+                    maxLagNanos = Math.max(maxLagNanos, lag);
+                }
+                ++frames;
+                byte[] message = input.array();
+                if (keyframe) {
+                    readKeyframe(message, input.position(), end);
+                    nextSequence = sequence;
+                } else if (sequence == nextSequence) {
+                    readDelta(message, input.position(), end);
+                    ++nextSequence;
+                } else {
+                    // A delta that does not follow on what came before
+                    broken = true;
+                }
+                input.position(end);
+            }
+            input.compact();
+        }
+
+        private long readVarint(byte[] data) {
+            long value = 0;
+            int shift = 0;
+            while (true) {
+                int b = data[position++];
+                value |= (long)(b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+                shift += 7;
+            }
+        }
+
+        private int readSigned(byte[] data) {
+            return (int)Replay.unzigzag(readVarint(data));
+        }
+
+        void readKeyframe(byte[] data, int from, int to) {
+            position = from;
+            readVarint(data);
+            score = (int)readVarint(data);
+            level = (int)readVarint(data);
+            int sizeX = (int)readVarint(data), sizeY = (int)readVarint(data);
+            readShape(data);
+            readVarint(data);
+            readVarint(data);
+            field = new int[sizeY][sizeX];
+            int cell = 0;
+            while (position < to) {
+                long run = readVarint(data);
+                for (long i = 0; i < run >>> 4; ++i, ++cell) {
+                    field[cell / sizeX][cell % sizeX] = (int)(run & 15);
+                }
+            }
+        }
+
+        private void readShape(byte[] data) {
+            shapeIndex = (int)readVarint(data);
+            shapeColor = (int)readVarint(data);
+            shapeX = readSigned(data);
+            shapeY = readSigned(data);
+        }
+
+        void readDelta(byte[] data, int from, int to) {
+            position = from;
+            readVarint(data);
+            while (position < to) {
+                int type = data[position++];
+                switch (type) {
+                    case SpectatorEncoder.SPAWN:
+                        readShape(data);
+                        readVarint(data);
+                        readVarint(data);
+                        break;
+                    case SpectatorEncoder.MOVE:
+                        shapeIndex = (int)readVarint(data);
+                        shapeX = readSigned(data);
+                        shapeY = readSigned(data);
+                        break;
+                    case SpectatorEncoder.LOCK:
+                        readShape(data);
+                        score = (int)readVarint(data);
+                        level = (int)readVarint(data);
+                        for (int i = 0; i < 4; ++i) {
+                            int x = shapeX + ShapeTool.BLOCKS_X[shapeIndex * 4 + i];
+                            int y = shapeY + ShapeTool.BLOCKS_Y[shapeIndex * 4 + i];
+                            if (x >= 0 && x < field[0].length && y >= 0 && y < field.length) {
+                                field[y][x] = shapeColor;
+                            }
+                        }
+                        int lines = (int)readVarint(data);
+                        for (int i = 0; i < lines; ++i) {
+                            int row = (int)readVarint(data);
+                            if (row < field.length) {
+                                System.arraycopy(field, 0, field, 1, row);
+                                field[0] = new int[field[1].length];
+                            }
+                        }
+                        break;
+                    case SpectatorEncoder.END:
+                        readVarint(data);
+                        for (int y = 0; y < field.length; ++y) {
+                            Arrays.fill(field[y], 0);
+                        }
+                        score = 0;
+                        level = 1;
+                        break;
+                    default:
+                        broken = true;
+                        return;
+                }
+            }
+        }
+
+        /**
+         * Returns whether the copy of the board is the board of the engine.
+         */
+        boolean matches(BlocksgameEngine engine) {
+            if (broken || field == null || shapeIndex != engine.shape.getIndex() || shapeX != engine.shape.x
+                    || shapeY != engine.shape.y || score != engine.score.currentScore) {
+                return false;
+            }
+            for (int y = 0; y < SIZE_Y; ++y) {
+                if (!Arrays.equals(field[y], engine.field[y])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * A thread that reads for a part of the spectators.
+     */
+    static class Reader implements Runnable {
+        final Selector selector;
+        final ArrayList<Spectator> joins = new ArrayList<Spectator>();
+        final Histogram lagMicros = new Histogram();
+        volatile boolean running = true;
+
+        Reader() throws IOException {
+            selector = Selector.open();
+        }
+
+        synchronized void add(Spectator spectator) {
+            joins.add(spectator);
+            selector.wakeup();
+        }
+
+        public void run() {
+            try {
+                while (running) {
+                    selector.select(100);
+                    synchronized (this) {
+                        for (int i = 0; i < joins.size(); ++i) {
+                            Spectator spectator = joins.get(i);
+                            spectator.channel.configureBlocking(false);
+                            spectator.channel.register(selector, SelectionKey.OP_READ, spectator);
+                        }
+                        joins.clear();
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Spectator spectator = (Spectator)key.attachment();
+                        synchronized (spectator) {
+                            if (spectator.channel.read(spectator.input) < 0) {
+                                key.cancel();
+                            }
+                            spectator.read(lagMicros);
+                        }
+                    }
+                }
+                selector.close();
+            } catch (IOException e) {
+                System.out.println("A reader failed: " + e);
+            }
+        }
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int spectatorCount = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        int ticksPerSecond = args.length > 2 ? Integer.parseInt(args[2]) : 600;
+        int workers = Runtime.getRuntime().availableProcessors();
+        SpectatorServer server = new SpectatorServer(0, workers);
+        InetSocketAddress address = server.getAddress();
+        Reader[] readers = new Reader[READERS];
+        for (int i = 0; i < READERS; ++i) {
+            readers[i] = new Reader();
+            Thread thread = new Thread(readers[i], "Spectators-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        Spectator[] spectators = new Spectator[spectatorCount];
+        connect(spectators, 0, spectatorCount / 2, address, readers);
+
+        BlocksgameEngine engine = new BlocksgameEngine(SIZE_X, SIZE_Y, 3);
+        SpectatorEncoder encoder = new SpectatorEncoder(engine);
+        engine.addListener(encoder);
+        byte[] message = new byte[Math.max(encoder.getMaxKeyframeSize(), encoder.getMaxDeltaSize())];
+        XorShiftRandom random = new XorShiftRandom(4);
+        int ticks = seconds * ticksPerSecond, deltas = 0;
+        long keyframeBytes = 0, deltaBytes = 0, keyframes = 0;
+        server.publish(message, 0, encoder.encodeKeyframe(message, 0), true);
+        long start = System.nanoTime();
+        for (int tick = 0; tick < ticks; ++tick) {
+            if (tick == ticks / 2) {
+                connect(spectators, spectatorCount / 2, spectatorCount, address, readers);
+            }
+            switch (random.nextInt(16)) {
+                case 0:
+                    engine.moveLeft(random.nextInt(2) == 0);
+                    break;
+                case 1:
+                    engine.moveRight(random.nextInt(2) == 0);
+                    break;
+                case 2:
+                    engine.rotateTile();
+                    break;
+                case 3:
+                    engine.fastDrop(random.nextInt(2) == 0);
+                    break;
+            }
+            engine.update(BlocksgameEngine.TICK_SECONDS);
+            int length = encoder.encodeTick(message, 0);
+            if (length > 0) {
+                server.publish(message, 0, length, false);
+                deltaBytes += length;
+                if (++deltas % KEYFRAME_INTERVAL == 0) {
+                    length = encoder.encodeKeyframe(message, 0);
+                    server.publish(message, 0, length, true);
+                    keyframeBytes += length;
+                    ++keyframes;
+                }
+            }
+            // Keep the pace of the game
+            long due = start + (tick + 1) * 1000000000L / ticksPerSecond;
+            while (System.nanoTime() < due) {
+                Thread.sleep(0, 200000);
+            }
+        }
+        double elapsed = (System.nanoTime() - start) / 1e9;
+
+        // Wait for every spectator to have everything
+        int last = server.getNextSequence();
+        long deadline = System.currentTimeMillis() + 20000;
+        int behind = spectatorCount;
+        while (behind > 0 && System.currentTimeMillis() < deadline) {
+            behind = 0;
+            for (int i = 0; i < spectatorCount; ++i) {
+                synchronized (spectators[i]) {
+                    if (spectators[i].nextSequence != last) {
+                        ++behind;
+                    }
+                }
+            }
+            Thread.sleep(10);
+        }
+        int matching = 0;
+        long frames = 0;
+        Histogram maxLagMicros = new Histogram();
+        for (int i = 0; i < spectatorCount; ++i) {
+            synchronized (spectators[i]) {
+                if (spectators[i].matches(engine)) {
+                    ++matching;
+                }
+                frames += spectators[i].frames;
+                maxLagMicros.record(spectators[i].maxLagNanos / 1000);
+            }
+        }
+        Histogram lagMicros = new Histogram();
+        for (int i = 0; i < READERS; ++i) {
+            readers[i].running = false;
+            lagMicros.merge(readers[i].lagMicros);
+        }
+        boolean ok = matching == spectatorCount;
+        System.out.println(String.format("%d spectators on %d workers, %d ticks in %.1f s, %d deltas of %.1f bytes, "
+                + "%d keyframes of %.1f bytes", spectatorCount, workers, ticks, elapsed, deltas,
+                deltaBytes / (double)Math.max(1, deltas), keyframes, keyframeBytes / (double)Math.max(1, keyframes)));
+        System.out.println(String.format("%.0f messages per second delivered, %.1f MB/s, %d resyncs",
+                frames / elapsed, server.getBytesSent() / elapsed / 1e6, server.getResyncs()));
+        System.out.println("lag us: " + lagMicros);
+        System.out.println("max lag per spectator us: " + maxLagMicros);
+        System.out.println((ok ? "ok" : "FAILED") + ", " + matching + " of " + spectatorCount
+                + " spectators have the board of the game");
+        server.stop();
+        if (!ok) {
+            System.exit(1);
+        }
+    }
+
+    static void connect(Spectator[] spectators, int from, int to, InetSocketAddress address, Reader[] readers)
+            throws IOException {
+        for (int i = from; i < to; ++i) {
+            SocketChannel channel = SocketChannel.open(address);
+            spectators[i] = new Spectator(channel);
+            readers[i % readers.length].add(spectators[i]);
+        }
+    }
+}
@@ -0,0 +1,494 @@
+package se.axelhjelmqvist.blocksgame;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A server that fans the messages of a live game, as SpectatorEncoder makes
+ * them, out to many spectators over TCP. Each message that is published is
+ * framed once into a buffer that is shared by every spectator and counted by
+ * references, and is given back to a pool when the last spectator has
+ * written it. The spectators are spread over one worker per processor, each
+ * with its own non-blocking selector, and a worker writes as many of the
+ * queued frames of a spectator as the socket takes with one gathering write.
+ *
+ * A spectator that joins is first sent the latest keyframe and the deltas
+ * that have been published since it. A spectator whose queue is full, because
+ * it reads slower than the game goes, is sent the same again in place of the
+ * frames that it has not started, so a slow spectator skips ahead and does
+ * not hold memory.
+ *
+ * A frame is the length of what follows as two bytes, the type, DELTA or
+ * KEYFRAME, the sequence number of the frame as an int, the System.nanoTime
+ * of when it was published as a long, all big-endian, and the message. The
+ * deltas have consecutive sequence numbers, and a keyframe has the number of
+ * the delta that follows it. The time is only meaningful on the same
+ * machine, it is there for measuring the lag on loopback.
+ *
+ * The publisher must publish a keyframe first and then at least once every
+ * HISTORY_CAPACITY deltas. Run on its own, the server takes spectators on
+ * the first port and one game at a time on the second, as frames of the
+ * length as two bytes, the type and the message.
+ */
+public class SpectatorServer {
+    public final static byte DELTA = 0, KEYFRAME = 1;
+
+    public final static int HEADER_SIZE = 15;
+
+    public final static int MAX_MESSAGE_SIZE = 4096;
+
+    final static int QUEUE_CAPACITY = 512;
+
+    /**
+     * The deltas after a keyframe that are kept for spectators that join.
+     */
+    public final static int HISTORY_CAPACITY = QUEUE_CAPACITY / 4;
+
+    final static int GATHER_SIZE = 64;
+
+    /**
+     * A framed message that is shared by the spectators.
+     */
+    static class Frame {
+        final ArrayBlockingQueue<Frame> pool;
+        final ByteBuffer data;
+        final AtomicInteger references;
+        /**
+         * One view of the data for each worker, which have their own positions.
+         */
+        final ByteBuffer[] views;
+        int sequence;
+        boolean keyframe;
+        long publishNanos;
+
+        Frame(ArrayBlockingQueue<Frame> pool, int workers) {
+            this.pool = pool;
+            data = ByteBuffer.allocateDirect(HEADER_SIZE + MAX_MESSAGE_SIZE);
+            references = new AtomicInteger();
+            views = new ByteBuffer[workers];
+            for (int i = 0; i < workers; ++i) {
+                views[i] = data.duplicate();
+            }
+        }
+
+        void retain() {
+            references.incrementAndGet();
+        }
+
+        void release() {
+            if (references.decrementAndGet() == 0) {
+                pool.offer(this);
+            }
+        }
+    }
+
+    /**
+     * A spectator and the frames that it has yet to be sent, of which the
+     * first offset bytes of the first have been written.
+     */
+    static class Client {
+        final SocketChannel channel;
+        SelectionKey key;
+        final Frame[] queue = new Frame[QUEUE_CAPACITY];
+        int head, tail, offset;
+        int nextSequence;
+
+        Client(SocketChannel channel) {
+            this.channel = channel;
+        }
+    }
+
+    /**
+     * A thread with a selector that writes to a part of the spectators.
+     */
+    class Worker implements Runnable {
+        final int index;
+        final Selector selector;
+        final ConcurrentLinkedQueue<Frame> inbox;
+        final ConcurrentLinkedQueue<SocketChannel> joins;
+        final ArrayList<Client> clients;
+        final ByteBuffer[] gather;
+        final Thread thread;
+
+        Worker(int index) throws IOException {
+            this.index = index;
+            selector = Selector.open();
+            inbox = new ConcurrentLinkedQueue<Frame>();
+            joins = new ConcurrentLinkedQueue<SocketChannel>();
+            clients = new ArrayList<Client>();
+            gather = new ByteBuffer[GATHER_SIZE];
+            thread = new Thread(this, "SpectatorServer-" + index);
+            thread.setDaemon(true);
+        }
+
+        public void run() {
+            while (running) {
+                try {
+                    selector.select();
+                } catch (IOException e) {
+                    break;
+                }
+                if (keyframe != null) {
+                    SocketChannel channel = joins.poll();
+                    while (channel != null) {
+                        join(channel);
+                        channel = joins.poll();
+                    }
+                }
+                Frame frame = inbox.poll();
+                while (frame != null) {
+                    for (int i = 0; i < clients.size(); ++i) {
+                        Client client = clients.get(i);
+                        if (frame.sequence >= client.nextSequence) {
+                            if (client.tail - client.head == QUEUE_CAPACITY) {
+                                resync(client);
+                            } else {
+                                frame.retain();
+                                client.queue[client.tail++ % QUEUE_CAPACITY] = frame;
+                            }
+                        }
+                    }
+                    frame.release();
+                    frame = inbox.poll();
+                }
+                // Everyone is written to at once, the selector only waits
+                // for the sockets that were full
+                for (int i = 0; i < clients.size(); ++i) {
+                    Client client = clients.get(i);
+                    if (client.head != client.tail && !write(client)) {
+                        clients.remove(i--);
+                    }
+                }
+                selector.selectedKeys().clear();
+            }
+            for (int i = 0; i < clients.size(); ++i) {
+                close(clients.get(i));
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                // Closing anyway
+            }
+        }
+
+        private void join(SocketChannel channel) {
+            Client client = new Client(channel);
+            try {
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                client.key = channel.register(selector, 0, client);
+            } catch (IOException e) {
+                close(client);
+                return;
+            }
+            catchUp(client);
+            clients.add(client);
+            spectators.incrementAndGet();
+        }
+
+        /**
+         * Drops the frames of a spectator that has fallen too far behind, all
+         * but one that has been partly written, and queues the latest
+         * keyframe and deltas in their place.
+         */
+        private void resync(Client client) {
+            int keep = client.offset > 0 ? 1 : 0;
+            for (int i = client.head + keep; i < client.tail; ++i) {
+                client.queue[i % QUEUE_CAPACITY].release();
+                client.queue[i % QUEUE_CAPACITY] = null;
+            }
+            client.tail = client.head + keep;
+            catchUp(client);
+            resyncs.incrementAndGet();
+        }
+
+        /**
+         * Writes as much of the queue of a spectator as the socket takes.
+         * Returns false if the spectator has gone and was closed.
+         */
+        private boolean write(Client client) {
+            int count = Math.min(client.tail - client.head, GATHER_SIZE);
+            for (int i = 0; i < count; ++i) {
+                Frame frame = client.queue[(client.head + i) % QUEUE_CAPACITY];
+                ByteBuffer view = frame.views[index];
+                view.limit(frame.data.limit());
+                view.position(i == 0 ? client.offset : 0);
+                gather[i] = view;
+            }
+            long written;
+            try {
+                written = client.channel.write(gather, 0, count);
+            } catch (IOException e) {
+                close(client);
+                return false;
+            }
+            bytesSent.addAndGet(written);
+            int done = 0;
+            while (done < count && !gather[done].hasRemaining()) {
+                ++done;
+            }
+            for (int i = 0; i < done; ++i) {
+                int slot = (client.head + i) % QUEUE_CAPACITY;
+                client.queue[slot].release();
+                client.queue[slot] = null;
+            }
+            client.head += done;
+            client.offset = done < count ? gather[done].position() : 0;
+            framesSent.addAndGet(done);
+            for (int i = 0; i < count; ++i) {
+                gather[i] = null;
+            }
+            // Wait for the socket to drain if not all was taken
+            int interest = client.head != client.tail ? SelectionKey.OP_WRITE : 0;
+            if (client.key.interestOps() != interest) {
+                client.key.interestOps(interest);
+            }
+            return true;
+        }
+
+        private void close(Client client) {
+            for (int i = client.head; i < client.tail; ++i) {
+                client.queue[i % QUEUE_CAPACITY].release();
+            }
+            client.head = client.tail;
+            try {
+                client.channel.close();
+            } catch (IOException e) {
+                // Gone anyway
+            }
+            if (client.key != null) {
+                spectators.decrementAndGet();
+            }
+        }
+    }
+
+    final ServerSocketChannel serverChannel;
+
+    final Worker[] workers;
+
+    final ArrayBlockingQueue<Frame> pool;
+
+    final Thread acceptor;
+
+    volatile boolean running;
+
+    /**
+     * The latest keyframe and the deltas since, changed only when holding the
+     * server. The workers wait for the first keyframe before they take in
+     * spectators.
+     */
+    volatile Frame keyframe;
+
+    final Frame[] history;
+
+    int historyCount;
+
+    int nextSequence;
+
+    final AtomicInteger spectators;
+
+    final AtomicLong framesSent, bytesSent, resyncs;
+
+    long published;
+
+    /**
+     * Constructor of a server that takes spectators on the given port of the
+     * loopback address, or a free one if the port is zero, with the given
+     * number of workers.
+     */
+    public SpectatorServer(int port, int workerCount) throws IOException {
+        pool = new ArrayBlockingQueue<Frame>(QUEUE_CAPACITY * 4);
+        history = new Frame[HISTORY_CAPACITY];
+        historyCount = 0;
+        nextSequence = 0;
+        spectators = new AtomicInteger();
+        framesSent = new AtomicLong();
+        bytesSent = new AtomicLong();
+        resyncs = new AtomicLong();
+        running = true;
+        workers = new Worker[workerCount];
+        for (int i = 0; i < workerCount; ++i) {
+            workers[i] = new Worker(i);
+            workers[i].thread.start();
+        }
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 1024);
+        acceptor = new Thread(new Runnable() {
+            public void run() {
+                accept();
+            }
+        }, "SpectatorServer-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 8090;
+        int gamePort = args.length > 1 ? Integer.parseInt(args[1]) : 8091;
+        SpectatorServer server = new SpectatorServer(port, Runtime.getRuntime().availableProcessors());
+        System.out.println("Spectators on " + server.getAddress() + ", the game on port " + gamePort);
+        ServerSocket games = new ServerSocket(gamePort, 1, InetAddress.getLoopbackAddress());
+        byte[] message = new byte[MAX_MESSAGE_SIZE];
+        while (true) {
+            Socket game = games.accept();
+            DataInputStream input = new DataInputStream(game.getInputStream());
+            try {
+                while (true) {
+                    int length = input.readUnsignedShort();
+                    boolean keyframe = input.readByte() == KEYFRAME;
+                    input.readFully(message, 0, length);
+                    server.publish(message, 0, length, keyframe);
+                }
+            } catch (IOException e) {
+                System.out.println("The game has gone: " + e);
+            }
+            game.close();
+        }
+    }
+
+    public InetSocketAddress getAddress() throws IOException {
+        return (InetSocketAddress)serverChannel.getLocalAddress();
+    }
+
+    private void accept() {
+        int next = 0;
+        while (running) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                Worker worker = workers[next++ % workers.length];
+                worker.joins.offer(channel);
+                worker.selector.wakeup();
+            } catch (ClosedChannelException e) {
+                break;
+            } catch (IOException e) {
+                // Try the next one
+            }
+        }
+    }
+
+    private Frame obtain() {
+        Frame frame = pool.poll();
+        return frame != null ? frame : new Frame(pool, workers.length);
+    }
+
+    /**
+     * Publishes a message of the game to every spectator. A keyframe is only
+     * sent to spectators that join or fall behind, the deltas to everyone.
+     * The message is copied, so the array can be used again at once.
+     */
+    public synchronized void publish(byte[] message, int offset, int length, boolean isKeyframe) {
+        if (length > MAX_MESSAGE_SIZE) {
+            throw new IllegalArgumentException("The message is longer than " + MAX_MESSAGE_SIZE + " bytes");
+        }
+        if (!isKeyframe && (keyframe == null || historyCount == HISTORY_CAPACITY)) {
+            throw new IllegalStateException("A keyframe must be published first and every "
+                    + HISTORY_CAPACITY + " deltas");
+        }
+        Frame frame = obtain();
+        frame.keyframe = isKeyframe;
+        frame.sequence = isKeyframe ? nextSequence : nextSequence++;
+        frame.publishNanos = System.nanoTime();
+        ByteBuffer data = frame.data;
+        data.clear();
+        data.putShort((short)(length + HEADER_SIZE - 2));
+        data.put(isKeyframe ? KEYFRAME : DELTA);
+        data.putInt(frame.sequence);
+        data.putLong(frame.publishNanos);
+        data.put(message, offset, length);
+        data.flip();
+        // The reference of the history
+        frame.references.set(1);
+        if (isKeyframe) {
+            if (keyframe != null) {
+                keyframe.release();
+            }
+            for (int i = 0; i < historyCount; ++i) {
+                history[i].release();
+                history[i] = null;
+            }
+            historyCount = 0;
+            keyframe = frame;
+        } else {
+            history[historyCount++] = frame;
+            for (int i = 0; i < workers.length; ++i) {
+                frame.retain();
+                workers[i].inbox.offer(frame);
+                workers[i].selector.wakeup();
+            }
+        }
+        ++published;
+    }
+
+    /**
+     * Queues the latest keyframe and the deltas since it for a spectator.
+     */
+    synchronized void catchUp(Client client) {
+        keyframe.retain();
+        client.queue[client.tail++ % QUEUE_CAPACITY] = keyframe;
+        for (int i = 0; i < historyCount; ++i) {
+            history[i].retain();
+            client.queue[client.tail++ % QUEUE_CAPACITY] = history[i];
+        }
+        client.nextSequence = nextSequence;
+    }
+
+    /**
+     * Returns the sequence number that the next delta will have.
+     */
+    public synchronized int getNextSequence() {
+        return nextSequence;
+    }
+
+    public synchronized long getPublished() {
+        return published;
+    }
+
+    public int getSpectators() {
+        return spectators.get();
+    }
+
+    /**
+     * Returns the number of frames that have been written whole to the
+     * spectators.
+     */
+    public long getFramesSent() {
+        return framesSent.get();
+    }
+
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    /**
+     * Returns the number of times that a spectator had fallen so far behind
+     * that it was sent a keyframe again.
+     */
+    public long getResyncs() {
+        return resyncs.get();
+    }
+
+    public void stop() throws IOException, InterruptedException {
+        running = false;
+        serverChannel.close();
+        for (int i = 0; i < workers.length; ++i) {
+            workers[i].selector.wakeup();
+            workers[i].thread.join();
+        }
+    }
+}
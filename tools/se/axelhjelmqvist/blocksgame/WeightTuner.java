@@ -0,0 +1,365 @@
+package se.axelhjelmqvist.blocksgame;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Tunes the weights of the LinearHeuristic of the AutoPlayer by playing
+ * games. Every generation samples a population of weight vectors from a
+ * normal distribution with a separate deviation per weight, plays a number
+ * of games with every candidate and moves the distribution towards the best
+ * candidates (the cross-entropy method, a simplified CMA with a diagonal
+ * covariance). All candidates of a generation play the same seeds, so the
+ * differences between them come from the weights and not from the shapes
+ * they were dealt. The games of all candidates are played in parallel on a
+ * ForkJoinPool. The state is written to a checkpoint file after every
+ * generation, and a run that finds a checkpoint continues from it, with the
+ * population and games that the checkpoint was made with. The arguments
+ * that are given again must match them, and the rest are taken from the
+ * checkpoint.
+ */
+public class WeightTuner {
+    /**
+     * The lowest deviation of a weight, which keeps the search from stalling.
+     */
+    final static double MIN_DEVIATION = 0.01;
+
+    /**
+     * Extra variance that is added in the first generations and decreases
+     * linearly to zero over NOISE_GENERATIONS, so that the distribution does
+     * not collapse before the search has found a good region.
+     */
+    final static double NOISE = 0.04;
+
+    final static int NOISE_GENERATIONS = 50;
+
+    final ForkJoinPool pool;
+
+    final File checkpoint;
+
+    int population = 50, elite = 10, gamesPerCandidate = 20;
+
+    long maxTicks = 20000;
+
+    long seed = 1;
+
+    int generation;
+
+    /**
+     * Set when the settings can no longer change, because they were read from
+     * the checkpoint or a generation has been run with them.
+     */
+    boolean settingsFixed;
+
+    double[] mean, deviation, best;
+
+    double bestFitness;
+
+    /**
+     * Constructor of a tuner that plays on the given pool and keeps its state
+     * in the given checkpoint file. If the file exists, the state is read from it.
+     */
+    public WeightTuner(ForkJoinPool pool, File checkpoint) throws IOException {
+        this.pool = pool;
+        this.checkpoint = checkpoint;
+        generation = 0;
+        settingsFixed = false;
+        mean = new double[LinearHeuristic.FEATURES];
+        deviation = new double[LinearHeuristic.FEATURES];
+        for (int i = 0; i < deviation.length; ++i) {
+            deviation[i] = 1.0;
+        }
+        best = mean.clone();
+        bestFitness = Double.NEGATIVE_INFINITY;
+        if (checkpoint.exists()) {
+            load();
+        }
+    }
+
+    /**
+     * Sets the number of candidates of a generation and how many of the best
+     * of them the next generation is sampled from. A run that continues from
+     * a checkpoint can not change them.
+     */
+    public void setPopulation(int population, int elite) {
+        if (elite < 1 || elite > population) {
+            throw new IllegalArgumentException("The elite must be between one and the population");
+        }
+        checkSetting("population", this.population, population);
+        checkSetting("elite", this.elite, elite);
+        this.population = population;
+        this.elite = elite;
+    }
+
+    /**
+     * Sets the number of games that every candidate plays, and the number of
+     * updates after which a game is cut short. A run that continues from a
+     * checkpoint can not change them.
+     */
+    public void setGames(int gamesPerCandidate, long maxTicks) {
+        checkSetting("gamesPerCandidate", this.gamesPerCandidate, gamesPerCandidate);
+        checkSetting("maxTicks", this.maxTicks, maxTicks);
+        this.gamesPerCandidate = gamesPerCandidate;
+        this.maxTicks = maxTicks;
+    }
+
+    /**
+     * Refuses to change a setting after generations have been run with it,
+     * since the fitness of the generations would not be comparable.
+     */
+    private void checkSetting(String name, long current, long value) {
+        if (settingsFixed && current != value) {
+            throw new IllegalArgumentException("The checkpoint " + checkpoint + " was made with " + name
+                    + " " + current + ", not " + value);
+        }
+    }
+
+    /**
+     * Runs generations until the given number of generations has been reached.
+     */
+    public void run(int generations) throws IOException {
+        settingsFixed = true;
+        while (generation < generations) {
+            long start = System.nanoTime();
+            double[][] candidates = sample();
+            double[] fitness = evaluate(candidates);
+            update(candidates, fitness);
+            ++generation;
+            save();
+            System.out.println(String.format("generation %d: best %.1f mean %s deviation %s (%.1f s)",
+                    generation, bestFitness, format(mean), format(deviation), (System.nanoTime() - start) / 1e9));
+        }
+    }
+
+    /**
+     * Samples the candidates of the current generation. The sampling only
+     * depends on the seed and the generation, so a resumed run samples the
+     * same candidates.
+     */
+    double[][] sample() {
+        Random random = new Random(GameRunner.seedOf(seed, 2 * generation));
+        double[][] candidates = new double[population][LinearHeuristic.FEATURES];
+        for (int i = 0; i < population; ++i) {
+            double length = 0.0;
+            for (int j = 0; j < LinearHeuristic.FEATURES; ++j) {
+                candidates[i][j] = mean[j] + deviation[j] * random.nextGaussian();
+                length += candidates[i][j] * candidates[i][j];
+            }
+            // The heuristic only compares boards, so only the direction of the weights matters
+            length = Math.sqrt(length);
+            for (int j = 0; j < LinearHeuristic.FEATURES && length > 0.0; ++j) {
+                candidates[i][j] /= length;
+            }
+        }
+        return candidates;
+    }
+
+    /**
+     * Plays the games of every candidate and returns the mean number of completed
+     * lines of each. The games of all candidates use the same seeds.
+     */
+    double[] evaluate(double[][] candidates) {
+        double[][] lines = new double[candidates.length][gamesPerCandidate];
+        long gamesSeed = GameRunner.seedOf(seed, 2 * generation + 1);
+        pool.invoke(new EvaluationTask(candidates, lines, gamesSeed, 0, candidates.length * gamesPerCandidate));
+        double[] fitness = new double[candidates.length];
+        for (int i = 0; i < candidates.length; ++i) {
+            for (int j = 0; j < gamesPerCandidate; ++j) {
+                fitness[i] += lines[i][j];
+            }
+            fitness[i] /= gamesPerCandidate;
+        }
+        return fitness;
+    }
+
+    /**
+     * Moves the distribution to the mean and deviation of the best candidates.
+     */
+    void update(double[][] candidates, double[] fitness) {
+        Integer[] order = new Integer[candidates.length];
+        for (int i = 0; i < order.length; ++i) {
+            order[i] = i;
+        }
+        final double[] sortBy = fitness;
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return Double.compare(sortBy[b], sortBy[a]);
+            }
+        });
+        if (fitness[order[0]] > bestFitness) {
+            bestFitness = fitness[order[0]];
+            best = candidates[order[0]].clone();
+        }
+        for (int j = 0; j < LinearHeuristic.FEATURES; ++j) {
+            double sum = 0.0;
+            for (int i = 0; i < elite; ++i) {
+                sum += candidates[order[i]][j];
+            }
+            mean[j] = sum / elite;
+            double variance = 0.0;
+            for (int i = 0; i < elite; ++i) {
+                double difference = candidates[order[i]][j] - mean[j];
+                variance += difference * difference;
+            }
+            double noise = NOISE * Math.max(0.0, 1.0 - (double)generation / NOISE_GENERATIONS);
+            deviation[j] = Math.max(MIN_DEVIATION, Math.sqrt(variance / elite + noise));
+        }
+    }
+
+    /**
+     * Task that plays a range of the games of all candidates, where game
+     * number i is game (i % gamesPerCandidate) of candidate (i / gamesPerCandidate).
+     */
+    private class EvaluationTask
+            extends RecursiveAction {
+        final static long serialVersionUID = 1L;
+
+        final double[][] candidates, lines;
+
+        final long gamesSeed;
+
+        final int from, to;
+
+        EvaluationTask(double[][] candidates, double[][] lines, long gamesSeed, int from, int to) {
+            this.candidates = candidates;
+            this.lines = lines;
+            this.gamesSeed = gamesSeed;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new EvaluationTask(candidates, lines, gamesSeed, from, middle),
+                        new EvaluationTask(candidates, lines, gamesSeed, middle, to));
+                return;
+            }
+            int candidate = from / gamesPerCandidate, game = from % gamesPerCandidate;
+            GameRunner runner = new GameRunner(10, 20, BlocksgameEngine.TICK_SECONDS, maxTicks);
+            runner.play(GameRunner.seedOf(gamesSeed, game), new AutoPlayer(10, 20, new LinearHeuristic(candidates[candidate])));
+            lines[candidate][game] = runner.lines;
+        }
+    }
+
+    /**
+     * Writes the state to the checkpoint file. The state is written to a
+     * temporary file first, which then replaces the checkpoint, so that a
+     * crash never leaves a partial checkpoint.
+     */
+    void save() throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty("seed", Long.toString(seed));
+        properties.setProperty("generation", Integer.toString(generation));
+        properties.setProperty("population", Integer.toString(population));
+        properties.setProperty("elite", Integer.toString(elite));
+        properties.setProperty("gamesPerCandidate", Integer.toString(gamesPerCandidate));
+        properties.setProperty("maxTicks", Long.toString(maxTicks));
+        properties.setProperty("mean", format(mean));
+        properties.setProperty("deviation", format(deviation));
+        properties.setProperty("best", format(best));
+        properties.setProperty("bestFitness", Double.toString(bestFitness));
+        File temporary = new File(checkpoint.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(temporary);
+        try {
+            properties.store(out, "WeightTuner checkpoint");
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!temporary.renameTo(checkpoint)) {
+            checkpoint.delete();
+            if (!temporary.renameTo(checkpoint)) {
+                throw new IOException("Could not replace " + checkpoint);
+            }
+        }
+    }
+
+    /**
+     * Reads the state from the checkpoint file, and the settings that it was
+     * made with if it has them.
+     */
+    void load() throws IOException {
+        Properties properties = new Properties();
+        FileInputStream in = new FileInputStream(checkpoint);
+        try {
+            properties.load(in);
+        } finally {
+            in.close();
+        }
+        seed = Long.parseLong(properties.getProperty("seed"));
+        generation = Integer.parseInt(properties.getProperty("generation"));
+        if (properties.getProperty("population") != null) {
+            population = Integer.parseInt(properties.getProperty("population"));
+            elite = Integer.parseInt(properties.getProperty("elite"));
+            gamesPerCandidate = Integer.parseInt(properties.getProperty("gamesPerCandidate"));
+            maxTicks = Long.parseLong(properties.getProperty("maxTicks"));
+            settingsFixed = true;
+        } else {
+            System.out.println("The checkpoint " + checkpoint + " does not record its population and games, "
+                    + "they are taken from the arguments");
+        }
+        mean = parse(properties.getProperty("mean"));
+        deviation = parse(properties.getProperty("deviation"));
+        best = parse(properties.getProperty("best"));
+        bestFitness = Double.parseDouble(properties.getProperty("bestFitness"));
+    }
+
+    static String format(double[] values) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < values.length; ++i) {
+            if (i > 0) {
+                builder.append(',');
+            }
+            builder.append(values[i]);
+        }
+        return builder.toString();
+    }
+
+    static double[] parse(String text) {
+        String[] parts = text.split(",");
+        double[] values = new double[parts.length];
+        for (int i = 0; i < parts.length; ++i) {
+            values[i] = Double.parseDouble(parts[i].trim());
+        }
+        return values;
+    }
+
+    /**
+     * Runs the tuner. The arguments are the checkpoint file and optionally the
+     * number of generations, the population, the games per candidate, the
+     * number of updates after which a game is cut short and the number of
+     * threads. A run that continues from a checkpoint only applies the
+     * settings that are given, so that it can be resumed with the checkpoint
+     * and the number of generations alone.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.out.println("usage: WeightTuner checkpoint [generations] [population] [games] [max ticks] [threads]");
+            return;
+        }
+        int generations = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        int threads = args.length > 5 ? Integer.parseInt(args[5]) : Runtime.getRuntime().availableProcessors();
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        WeightTuner tuner = new WeightTuner(pool, new File(args[0]));
+        if (args.length > 2) {
+            int population = Integer.parseInt(args[2]);
+            tuner.setPopulation(population, Math.max(1, population / 5));
+        }
+        if (args.length > 3) {
+            tuner.setGames(Integer.parseInt(args[3]), args.length > 4 ? Long.parseLong(args[4]) : tuner.maxTicks);
+        }
+        tuner.run(generations);
+        pool.shutdown();
+        System.out.println("best weights " + format(tuner.best) + " with " + tuner.bestFitness + " lines per game");
+    }
+}
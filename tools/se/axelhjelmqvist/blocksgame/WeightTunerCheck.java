@@ -0,0 +1,100 @@
+package se.axelhjelmqvist.blocksgame;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Checks that WeightTuner resumes from its checkpoint, with small games in a
+ * temporary file. A run of two generations is made in one go, and another
+ * is stopped after one generation and resumed by main with only the
+ * checkpoint and the number of generations, and both must end with the same
+ * distribution and the settings of the first run. A resumed run must refuse
+ * other settings, and a checkpoint that does not record its settings must
+ * take them from the arguments. The process exits with status 1 if a check
+ * fails.
+ */
+public class WeightTunerCheck {
+    final static int POPULATION = 4, ELITE = 2, GAMES = 2;
+    final static long MAX_TICKS = 5000;
+
+    static int failures = 0;
+
+    public static void main(String[] args) throws IOException {
+        ForkJoinPool pool = new ForkJoinPool(2);
+        File whole = File.createTempFile("tuner", ".properties");
+        File resumed = File.createTempFile("tuner", ".properties");
+        whole.delete();
+        resumed.delete();
+        try {
+            WeightTuner tuner = create(pool, whole);
+            tuner.run(2);
+
+            create(pool, resumed).run(1);
+            WeightTuner.main(new String[] {resumed.getPath(), "2"});
+            WeightTuner resumedTuner = new WeightTuner(pool, resumed);
+            check(resumedTuner.generation == 2, "The resumed run made " + resumedTuner.generation + " generations");
+            check(resumedTuner.population == POPULATION && resumedTuner.elite == ELITE
+                    && resumedTuner.gamesPerCandidate == GAMES && resumedTuner.maxTicks == MAX_TICKS,
+                    "The resumed run changed its settings");
+            check(Arrays.equals(tuner.mean, resumedTuner.mean) && Arrays.equals(tuner.deviation, resumedTuner.deviation),
+                    "The resumed run ended with " + WeightTuner.format(resumedTuner.mean) + ", not "
+                    + WeightTuner.format(tuner.mean));
+
+            try {
+                resumedTuner.setPopulation(POPULATION * 2, ELITE);
+                check(false, "The resumed run took another population");
+            } catch (IllegalArgumentException e) {
+            }
+            resumedTuner.setGames(GAMES, MAX_TICKS);
+
+            // A checkpoint from before the settings were recorded
+            Properties properties = new Properties();
+            FileInputStream in = new FileInputStream(resumed);
+            try {
+                properties.load(in);
+            } finally {
+                in.close();
+            }
+            properties.remove("population");
+            properties.remove("elite");
+            properties.remove("gamesPerCandidate");
+            properties.remove("maxTicks");
+            FileOutputStream out = new FileOutputStream(resumed);
+            try {
+                properties.store(out, "WeightTuner checkpoint");
+            } finally {
+                out.close();
+            }
+            WeightTuner old = create(pool, resumed);
+            check(old.population == POPULATION && old.gamesPerCandidate == GAMES && old.maxTicks == MAX_TICKS,
+                    "The old checkpoint did not take the settings from the arguments");
+        } finally {
+            pool.shutdown();
+            whole.delete();
+            resumed.delete();
+        }
+        System.out.println(failures == 0 ? "ok" : failures + " failures");
+        if (failures != 0) {
+            System.exit(1);
+        }
+    }
+
+    static WeightTuner create(ForkJoinPool pool, File checkpoint) throws IOException {
+        WeightTuner tuner = new WeightTuner(pool, checkpoint);
+        tuner.setPopulation(POPULATION, ELITE);
+        tuner.setGames(GAMES, MAX_TICKS);
+        return tuner;
+    }
+
+    static void check(boolean condition, String message) {
+        if (!condition) {
+            System.out.println(message);
+            ++failures;
+        }
+    }
+}